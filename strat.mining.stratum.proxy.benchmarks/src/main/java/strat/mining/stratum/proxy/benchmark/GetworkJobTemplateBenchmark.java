@@ -0,0 +1,69 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import strat.mining.stratum.proxy.worker.GetworkJobTemplate;
+import strat.mining.stratum.proxy.worker.GetworkJobTemplate.GetworkRequestResult;
+
+/**
+ * Build of the getwork data for each getwork request.
+ * 
+ * @author Strat
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GetworkJobTemplateBenchmark {
+
+	@Param({ "false", "true" })
+	private boolean noMidState;
+
+	private GetworkJobTemplate template;
+	private int extranonce2;
+
+	@Setup
+	public void setup() {
+		template = new GetworkJobTemplate("bf", "00000002", "4d16b6f85af6e2198f44ae2a6de67f78487ae5611b77c6c0440b921e00000000", "504e86b9",
+				"1c2ac4af", Arrays.asList("57351e8569cb9d036187a79fd1844fd930c1309efcd16c46af9bb9713b6ee734",
+						"936ab9c33420f187acae660fcdb07ffdffa081273674f0f41e6ecc1347451d23"),
+				"01000000010000000000000000000000000000000000000000000000000000000000000000ffffffff20020862062f503253482f04b8864e5008",
+				"072f736c7573682f000000000100f2052a010000001976a914d23fcdf86f7e756a64a7a9688ef9903327048ed988ac00000000", "08000002",
+				noMidState);
+	}
+
+	@Benchmark
+	public GetworkRequestResult getData() {
+		// A new extranonce2 on each request, as the getwork connections do.
+		return template.getData(String.format("%08x", extranonce2++));
+	}
+
+}
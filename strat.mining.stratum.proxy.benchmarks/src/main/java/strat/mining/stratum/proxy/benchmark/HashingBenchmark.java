@@ -0,0 +1,100 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import strat.mining.stratum.proxy.utils.mining.SHA256Engine;
+import strat.mining.stratum.proxy.utils.mining.SHA256HashingUtils;
+import strat.mining.stratum.proxy.utils.mining.ScryptHasher;
+import strat.mining.stratum.proxy.utils.mining.ScryptHashingUtils;
+
+/**
+ * Hash functions used on the getwork and share validation paths.
+ * 
+ * @author Strat
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HashingBenchmark {
+
+	private byte[] midstateInput;
+	private byte[] blockHeader;
+	private int[] blockHeaderMidstate;
+	private byte[] hash;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		midstateInput = new byte[64];
+		random.nextBytes(midstateInput);
+		blockHeader = new byte[80];
+		random.nextBytes(blockHeader);
+		blockHeaderMidstate = new int[8];
+		SHA256Engine.get().midstate(blockHeader, 0, blockHeaderMidstate);
+		hash = new byte[SHA256Engine.DIGEST_LENGTH];
+	}
+
+	@Benchmark
+	public byte[] midstateSHA256() {
+		return SHA256HashingUtils.midstateSHA256(midstateInput);
+	}
+
+	@Benchmark
+	public byte[] doubleSha256Hash() {
+		return SHA256HashingUtils.doubleSha256Hash(blockHeader);
+	}
+
+	@Benchmark
+	public byte[] engineDoubleHash() {
+		SHA256Engine.get().doubleHash(blockHeader, 0, blockHeader.length, hash, 0);
+		return hash;
+	}
+
+	@Benchmark
+	public byte[] engineDoubleHashFromMidstate() {
+		SHA256Engine.get().doubleHashFromMidstate(blockHeaderMidstate, blockHeader, 64, 16, hash, 0);
+		return hash;
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public byte[] scryptHash() {
+		return ScryptHashingUtils.scryptHash(blockHeader);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public byte[] scryptHasher() {
+		ScryptHasher.get().hash(blockHeader, 0, hash, 0);
+		return hash;
+	}
+
+}
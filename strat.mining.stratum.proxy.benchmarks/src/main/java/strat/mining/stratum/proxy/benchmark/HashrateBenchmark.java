@@ -0,0 +1,95 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.benchmark;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import strat.mining.stratum.proxy.CryptoAlgorithm;
+import strat.mining.stratum.proxy.model.Share;
+import strat.mining.stratum.proxy.utils.mining.HashrateUtils;
+import strat.mining.stratum.proxy.utils.mining.HashrateWindow;
+
+/**
+ * Hashrate computation from the submitted shares. Compare the share list
+ * computation with the bucketed window used by the connections and the pools.
+ * 
+ * @author Strat
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HashrateBenchmark {
+
+	// In seconds
+	private static final int SAMPLING_PERIOD = 600;
+
+	@Param({ "100", "10000" })
+	private int numberOfShares;
+
+	private Deque<Share> shareList;
+	private HashrateWindow window;
+	private long now;
+
+	// Refilled on each iteration since the share list is purged while the
+	// shares get old.
+	@Setup(Level.Iteration)
+	public void setup() {
+		now = System.currentTimeMillis();
+		shareList = new ConcurrentLinkedDeque<Share>();
+		window = new HashrateWindow(SAMPLING_PERIOD, CryptoAlgorithm.SHA256);
+		// The shares are spread over the second half of the period.
+		long interval = SAMPLING_PERIOD * 500L / numberOfShares;
+		for (int i = 0; i < numberOfShares; i++) {
+			Share share = new Share();
+			share.setTime(now - (numberOfShares - i) * interval);
+			share.setDifficulty(16);
+			shareList.addLast(share);
+			window.addShare(share.getTime(), share.getDifficulty());
+		}
+	}
+
+	@Benchmark
+	public double getHashrateFromShareList() {
+		return HashrateUtils.getHashrateFromShareList(shareList, SAMPLING_PERIOD * 1000, CryptoAlgorithm.SHA256);
+	}
+
+	@Benchmark
+	public double getHashrateFromWindow() {
+		return window.getHashrate();
+	}
+
+	@Benchmark
+	public void addShareToWindow() {
+		window.addShare(System.currentTimeMillis(), 16);
+	}
+
+}
@@ -0,0 +1,77 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import strat.mining.stratum.proxy.pool.ShareFingerprintSet;
+
+/**
+ * Duplicate share detection, done for each submitted share.
+ * 
+ * @author Strat
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ShareFingerprintBenchmark {
+
+	// The number of shares of a job with a high hashrate.
+	private static final int NUMBER_OF_SHARES = 10000;
+
+	private String[] nonces;
+	private ShareFingerprintSet set;
+	private int index;
+
+	@Setup(Level.Trial)
+	public void setUpNonces() {
+		nonces = new String[NUMBER_OF_SHARES];
+		for (int i = 0; i < NUMBER_OF_SHARES; i++) {
+			nonces[i] = String.format("%08x", i * 7919);
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void setUpSet() {
+		set = new ShareFingerprintSet();
+		index = 0;
+	}
+
+	@Benchmark
+	public long fingerprint() {
+		return ShareFingerprintSet.fingerprint("0100000000", "504e86b9", nonces[index++ % NUMBER_OF_SHARES]);
+	}
+
+	@Benchmark
+	public boolean add() {
+		// The first pass adds new shares, the next ones find duplicates.
+		return set.add("0100000000", "504e86b9", nonces[index++ % NUMBER_OF_SHARES]);
+	}
+
+}
@@ -0,0 +1,143 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.benchmark;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import strat.mining.stratum.proxy.json.MiningNotifyNotification;
+import strat.mining.stratum.proxy.json.MiningSubmitRequest;
+import strat.mining.stratum.proxy.json.MiningSubmitResponse;
+import strat.mining.stratum.proxy.network.StratumJsonCodec;
+
+/**
+ * Parsing and serialization of the Stratum lines, as done by the
+ * StratumConnection for each line read or written.
+ * 
+ * @author Strat
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StratumJsonCodecBenchmark {
+
+	private static final String NOTIFY_LINE = "{\"id\": null, \"method\": \"mining.notify\", \"params\": [\"bf\", \"4d16b6f85af6e2198f44ae2a6de67f78487ae5611b77c6c0440b921e00000000\", \"01000000010000000000000000000000000000000000000000000000000000000000000000ffffffff20020862062f503253482f04b8864e5008\", \"072f736c7573682f000000000100f2052a010000001976a914d23fcdf86f7e756a64a7a9688ef9903327048ed988ac00000000\", [], \"00000002\", \"1c2ac4af\", \"504e86b9\", false]}";
+
+	private static final String SUBMIT_LINE = "{\"params\": [\"worker1\", \"bf\", \"00000001\", \"504e86ed\", \"b2957c02\"], \"id\": 4, \"method\": \"mining.submit\"}";
+
+	private static final String RESPONSE_LINE = "{\"id\": 4, \"result\": true, \"error\": null}";
+
+	private MiningNotifyNotification notify;
+	private MiningSubmitRequest submit;
+	private MiningSubmitResponse response;
+
+	@Setup
+	public void setup() {
+		notify = new MiningNotifyNotification();
+		notify.setJobId("bf");
+		notify.setPreviousHash("4d16b6f85af6e2198f44ae2a6de67f78487ae5611b77c6c0440b921e00000000");
+		notify.setCoinbase1("01000000010000000000000000000000000000000000000000000000000000000000000000ffffffff20020862062f503253482f04b8864e5008");
+		notify.setCoinbase2("072f736c7573682f000000000100f2052a010000001976a914d23fcdf86f7e756a64a7a9688ef9903327048ed988ac00000000");
+		notify.setMerkleBranches(Collections.<String> emptyList());
+		notify.setBitcoinVersion("00000002");
+		notify.setNetworkDifficultyBits("1c2ac4af");
+		notify.setCurrentNTime("504e86b9");
+		notify.setCleanJobs(false);
+
+		submit = new MiningSubmitRequest();
+		submit.setWorkerName("worker1");
+		submit.setJobId("bf");
+		submit.setExtranonce2("00000001");
+		submit.setNtime("504e86ed");
+		submit.setNonce("b2957c02");
+
+		response = new MiningSubmitResponse();
+		response.setId(4);
+		response.setIsAccepted(true);
+	}
+
+	@Benchmark
+	public void decodeNotify(Blackhole blackhole) throws IOException {
+		StratumJsonCodec.decode(NOTIFY_LINE, new BlackholeHandler(blackhole));
+	}
+
+	@Benchmark
+	public void decodeSubmit(Blackhole blackhole) throws IOException {
+		StratumJsonCodec.decode(SUBMIT_LINE, new BlackholeHandler(blackhole));
+	}
+
+	@Benchmark
+	public void decodeResponse(Blackhole blackhole) throws IOException {
+		StratumJsonCodec.decode(RESPONSE_LINE, new BlackholeHandler(blackhole));
+	}
+
+	@Benchmark
+	public byte[] encodeNotify() throws IOException {
+		return StratumJsonCodec.encodeNotification(notify);
+	}
+
+	@Benchmark
+	public byte[] encodeSubmit() throws IOException {
+		return StratumJsonCodec.encodeRequest(submit);
+	}
+
+	@Benchmark
+	public byte[] encodeResponse() throws IOException {
+		return StratumJsonCodec.encodeResponse(response);
+	}
+
+	private static class BlackholeHandler implements StratumJsonCodec.MessageHandler {
+
+		private final Blackhole blackhole;
+
+		public BlackholeHandler(Blackhole blackhole) {
+			this.blackhole = blackhole;
+		}
+
+		public void onRequest(Object id, String method, List<Object> params) {
+			blackhole.consume(id);
+			blackhole.consume(method);
+			blackhole.consume(params);
+		}
+
+		public void onResponse(Object id, Object result, Object error) {
+			blackhole.consume(id);
+			blackhole.consume(result);
+			blackhole.consume(error);
+		}
+
+		public void onNotification(String method, List<Object> params) {
+			blackhole.consume(method);
+			blackhole.consume(params);
+		}
+	}
+
+}
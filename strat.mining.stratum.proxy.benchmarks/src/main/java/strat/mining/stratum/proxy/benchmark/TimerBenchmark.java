@@ -0,0 +1,66 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import strat.mining.stratum.proxy.utils.Timer;
+import strat.mining.stratum.proxy.utils.Timer.Task;
+
+/**
+ * Schedule then cancel of a timer task, as done for each connection timeout.
+ * 
+ * @author Strat
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimerBenchmark {
+
+	// Long enough to never be run during the benchmark.
+	private static final long DELAY = 60000;
+
+	@Benchmark
+	public void scheduleAndCancel() {
+		Task task = new NoopTask();
+		Timer.getInstance().schedule(task, DELAY);
+		task.cancel();
+	}
+
+	@Benchmark
+	public void scheduleTimeoutAndCancel() {
+		Task task = new NoopTask();
+		Timer.getInstance().scheduleTimeout(task, DELAY);
+		task.cancel();
+	}
+
+	private static class NoopTask extends Task {
+		public void run() {
+		}
+	}
+
+}
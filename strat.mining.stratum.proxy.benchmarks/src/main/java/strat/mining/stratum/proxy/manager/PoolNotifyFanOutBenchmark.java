@@ -0,0 +1,202 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.manager;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import strat.mining.stratum.proxy.CryptoAlgorithm;
+import strat.mining.stratum.proxy.ProxyConfiguration;
+import strat.mining.stratum.proxy.json.MiningNotifyNotification;
+import strat.mining.stratum.proxy.json.MiningSetDifficultyNotification;
+import strat.mining.stratum.proxy.json.MiningSubmitRequest;
+import strat.mining.stratum.proxy.json.MiningSubmitResponse;
+import strat.mining.stratum.proxy.model.Share;
+import strat.mining.stratum.proxy.network.EncodedNotification;
+import strat.mining.stratum.proxy.pool.Pool;
+import strat.mining.stratum.proxy.worker.WorkerConnection;
+
+/**
+ * Fan-out of a pool notify to the worker connections bound on the pool. The
+ * worker connections only get the encoded bytes, so the benchmark measures the
+ * proxy side of the broadcast without any IO.
+ * 
+ * In the manager package to register the connections on the pool.
+ * 
+ * @author Strat
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PoolNotifyFanOutBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	private int numberOfWorkerConnections;
+
+	private ProxyInstance proxyInstance;
+	private Pool pool;
+	private MiningNotifyNotification notify;
+
+	@Setup
+	public void setup() {
+		ProxyConfiguration configuration = new ProxyConfiguration();
+		configuration.setPoolSwitchingStrategy("priorityFailover");
+		proxyInstance = new ProxyInstance(configuration);
+		pool = new Pool("benchmark", "127.0.0.1:3333", "user", "password", CryptoAlgorithm.SHA256);
+
+		Set<WorkerConnection> connections = proxyInstance.getPoolWorkerConnections(pool);
+		for (int i = 0; i < numberOfWorkerConnections; i++) {
+			connections.add(new FakeWorkerConnection(pool, i));
+		}
+
+		notify = new MiningNotifyNotification();
+		notify.setJobId("bf");
+		notify.setPreviousHash("4d16b6f85af6e2198f44ae2a6de67f78487ae5611b77c6c0440b921e00000000");
+		notify.setCoinbase1("01000000010000000000000000000000000000000000000000000000000000000000000000ffffffff20020862062f503253482f04b8864e5008");
+		notify.setCoinbase2("072f736c7573682f000000000100f2052a010000001976a914d23fcdf86f7e756a64a7a9688ef9903327048ed988ac00000000");
+		notify.setMerkleBranches(Collections.<String> emptyList());
+		notify.setBitcoinVersion("00000002");
+		notify.setNetworkDifficultyBits("1c2ac4af");
+		notify.setCurrentNTime("504e86b9");
+		notify.setCleanJobs(false);
+	}
+
+	@Benchmark
+	public void onPoolNotify() {
+		proxyInstance.onPoolNotify(pool, notify);
+	}
+
+	/**
+	 * A worker connection which only reads the bytes it would write.
+	 * 
+	 * @author Strat
+	 * 
+	 */
+	private static class FakeWorkerConnection implements WorkerConnection {
+
+		private final Pool pool;
+		private final int index;
+		private final Date activeSince;
+
+		private volatile int numberOfWrittenBytes;
+
+		public FakeWorkerConnection(Pool pool, int index) {
+			this.pool = pool;
+			this.index = index;
+			this.activeSince = new Date();
+		}
+
+		public void close() {
+		}
+
+		public String getConnectionName() {
+			return "FakeWorkerConnection-" + index;
+		}
+
+		public InetAddress getRemoteAddress() {
+			return InetAddress.getLoopbackAddress();
+		}
+
+		public Integer getRemotePort() {
+			return 10000 + index;
+		}
+
+		public Integer getLocalPort() {
+			return 3333;
+		}
+
+		public Pool getPool() {
+			return pool;
+		}
+
+		public boolean isConnected() {
+			return true;
+		}
+
+		public void rebindToPool(Pool newPool) {
+		}
+
+		public void onPoolExtranonceChange() {
+		}
+
+		public void onPoolDifficultyChanged(EncodedNotification<MiningSetDifficultyNotification> notification) {
+			write(notification);
+		}
+
+		public void onPoolNotify(EncodedNotification<MiningNotifyNotification> notification) {
+			write(notification);
+		}
+
+		public void updateShareLists(Share share, boolean isAccepted) {
+		}
+
+		public Double getWorkerDifficulty() {
+			return null;
+		}
+
+		public void onWorkerShareAccepted() {
+		}
+
+		public void onPoolSubmitResponse(MiningSubmitRequest workerRequest, MiningSubmitResponse poolResponse) {
+		}
+
+		public void setSamplingHashesPeriod(Integer samplingHashesPeriod) {
+		}
+
+		public double getRejectedHashrate() {
+			return 0;
+		}
+
+		public double getAcceptedHashrate() {
+			return 0;
+		}
+
+		public Map<String, String> getAuthorizedWorkers() {
+			return Collections.emptyMap();
+		}
+
+		public Date getActiveSince() {
+			return activeSince;
+		}
+
+		private void write(EncodedNotification<?> notification) {
+			try {
+				numberOfWrittenBytes = notification.getBytes().length;
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.verification;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import strat.mining.stratum.proxy.json.MiningNotifyNotification;
+import strat.mining.stratum.proxy.pool.BlockHeaderTemplate;
+import strat.mining.stratum.proxy.utils.mining.SHA256HashingUtils;
+
+/**
+ * Check the block headers of BlockHeaderTemplate (built in the buffers of the
+ * thread) against the previous computation, which decoded the values and
+ * hashed the merkle levels in new arrays on each share.
+ * 
+ * @author Strat
+ * 
+ */
+public class BlockHeaderTemplateVerification extends Verification {
+
+	private static final int NUMBER_OF_TEMPLATES = 200;
+	private static final int NUMBER_OF_SHARES_PER_TEMPLATE = 5;
+
+	public BlockHeaderTemplateVerification() {
+		super("BlockHeaderTemplate");
+	}
+
+	@Override
+	public void run() throws Exception {
+		Random random = new Random(42);
+		for (int i = 0; i < NUMBER_OF_TEMPLATES; i++) {
+			List<String> merkleBranches = new ArrayList<String>();
+			int numberOfBranches = random.nextInt(12);
+			for (int j = 0; j < numberOfBranches; j++) {
+				merkleBranches.add(randomHex(random, 32));
+			}
+			MiningNotifyNotification notify = new MiningNotifyNotification();
+			notify.setJobId("job");
+			notify.setBitcoinVersion(randomHex(random, 4));
+			notify.setPreviousHash(randomHex(random, 32));
+			notify.setNetworkDifficultyBits(randomHex(random, 4));
+			notify.setMerkleBranches(merkleBranches);
+			// The coinbase grows beyond the initial buffer of the thread.
+			notify.setCoinbase1(randomHex(random, 40 + random.nextInt(80)));
+			notify.setCoinbase2(randomHex(random, 40 + random.nextInt(400)));
+			String extranonce1 = randomHex(random, 4 + random.nextInt(4));
+
+			BlockHeaderTemplate template = new BlockHeaderTemplate(notify, extranonce1, 1);
+			for (int j = 0; j < NUMBER_OF_SHARES_PER_TEMPLATE; j++) {
+				String extranonce2 = randomHex(random, 2 + random.nextInt(6));
+				String ntime = randomHex(random, 4);
+				String nonce = randomHex(random, 4);
+				checkEquals("Header of the coinbase " + notify.getCoinbase1() + extranonce1 + extranonce2 + notify.getCoinbase2()
+						+ " and merkle branches " + merkleBranches, buildHeader(notify, extranonce1, extranonce2, ntime, nonce),
+						template.buildHeader(extranonce2, ntime, nonce).clone());
+			}
+		}
+
+		// The invalid values are still rejected.
+		MiningNotifyNotification notify = new MiningNotifyNotification();
+		notify.setBitcoinVersion("00000002");
+		notify.setPreviousHash(randomHex(random, 32));
+		notify.setNetworkDifficultyBits("1b00ffff");
+		notify.setCoinbase1("01");
+		notify.setCoinbase2("02");
+		BlockHeaderTemplate template = new BlockHeaderTemplate(notify, "0000", 1);
+		checkRejected("Short ntime", template, "00000000", "0000", "00000000");
+		checkRejected("Non hexadecimal nonce", template, "00000000", "00000000", "0000000z");
+		checkRejected("Odd extranonce2", template, "000", "00000000", "00000000");
+	}
+
+	private void checkRejected(String description, BlockHeaderTemplate template, String extranonce2, String ntime, String nonce) {
+		boolean rejected = false;
+		try {
+			template.buildHeader(extranonce2, ntime, nonce);
+		} catch (IllegalArgumentException e) {
+			rejected = true;
+		}
+		check(description + " rejected", rejected);
+	}
+
+	/**
+	 * The previous computation of the header.
+	 */
+	private static byte[] buildHeader(MiningNotifyNotification notify, String extranonce1, String extranonce2, String ntime, String nonce) {
+		byte[] merkleRoot = SHA256HashingUtils.doubleSha256Hash(fromHex(notify.getCoinbase1() + extranonce1 + extranonce2
+				+ notify.getCoinbase2()));
+		byte[] buffer = new byte[64];
+		for (String merkleBranch : notify.getMerkleBranches()) {
+			System.arraycopy(merkleRoot, 0, buffer, 0, 32);
+			System.arraycopy(fromHex(merkleBranch), 0, buffer, 32, 32);
+			merkleRoot = SHA256HashingUtils.doubleSha256Hash(buffer);
+		}
+
+		byte[] header = new byte[BlockHeaderTemplate.BLOCK_HEADER_LENGTH];
+		copySwapped(fromHex(notify.getBitcoinVersion()), header, 0);
+		copySwapped(fromHex(notify.getPreviousHash()), header, 4);
+		System.arraycopy(merkleRoot, 0, header, 36, 32);
+		copySwapped(fromHex(ntime), header, 68);
+		copySwapped(fromHex(notify.getNetworkDifficultyBits()), header, 72);
+		copySwapped(fromHex(nonce), header, 76);
+		return header;
+	}
+
+	private static void copySwapped(byte[] source, byte[] destination, int position) {
+		for (int i = 0; i < source.length; i += 4) {
+			destination[position + i] = source[i + 3];
+			destination[position + i + 1] = source[i + 2];
+			destination[position + i + 2] = source[i + 1];
+			destination[position + i + 3] = source[i];
+		}
+	}
+
+	private static String randomHex(Random random, int length) {
+		byte[] data = new byte[length];
+		random.nextBytes(data);
+		return toHex(data);
+	}
+
+}
@@ -0,0 +1,164 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.verification;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import strat.mining.stratum.proxy.utils.mining.SHA256HashingUtils;
+import strat.mining.stratum.proxy.worker.GetworkJobTemplate;
+import strat.mining.stratum.proxy.worker.GetworkJobTemplate.GetworkRequestResult;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Check the getwork data of GetworkJobTemplate (job parameters decoded once
+ * per notify) against the previous computation, which concatenated the hex
+ * strings of the coinbase and decoded the merkle branches on each request.
+ * 
+ * @author Strat
+ * 
+ */
+public class GetworkJobTemplateVerification extends Verification {
+
+	// Position of the time in the hex data.
+	private static final int TIME_HEX_POSITION = 136;
+
+	// Padding of the 80 bytes block header to 128 bytes.
+	private static final String BLOCK_HEADER_PADDING = "000000800000000000000000000000000000000000000000000000000000000000000000000000000000000080020000";
+
+	private static final int NUMBER_OF_TEMPLATES = 200;
+	private static final int NUMBER_OF_REQUESTS_PER_TEMPLATE = 5;
+
+	private final MessageDigest messageDigest;
+
+	public GetworkJobTemplateVerification() throws Exception {
+		super("GetworkJobTemplate");
+		messageDigest = MessageDigest.getInstance("SHA-256");
+	}
+
+	@Override
+	public void run() throws Exception {
+		Random random = new Random(42);
+		for (int i = 0; i < NUMBER_OF_TEMPLATES; i++) {
+			List<String> merkleBranches = new ArrayList<String>();
+			int numberOfBranches = random.nextInt(12);
+			for (int j = 0; j < numberOfBranches; j++) {
+				merkleBranches.add(randomHex(random, 32));
+			}
+			String version = randomHex(random, 4);
+			String hashPrevBlock = randomHex(random, 32);
+			// Keep the time on 4 bytes with a positive high byte, the
+			// template stores it as a BigInteger.
+			String time = "4e" + randomHex(random, 3);
+			String bits = randomHex(random, 4);
+			String coinbase1 = randomHex(random, 40 + random.nextInt(80));
+			String coinbase2 = randomHex(random, 40 + random.nextInt(200));
+			String extranonce1 = randomHex(random, 4 + random.nextInt(4));
+			boolean noMidState = random.nextBoolean();
+
+			GetworkJobTemplate template = new GetworkJobTemplate("job", version, hashPrevBlock, time, bits, merkleBranches, coinbase1,
+					coinbase2, extranonce1, noMidState);
+			for (int j = 0; j < NUMBER_OF_REQUESTS_PER_TEMPLATE; j++) {
+				String extranonce2 = randomHex(random, 4);
+				checkData(template.getData(extranonce2), version + hashPrevBlock, time, bits, merkleBranches, coinbase1, extranonce1,
+						extranonce2, coinbase2, noMidState);
+			}
+
+			// The coinbase and merkle branches of a running job may be
+			// updated, and the template is cloned to compute the real share
+			// difficulties.
+			List<String> newMerkleBranches = new ArrayList<String>();
+			for (int j = 0; j < 3; j++) {
+				newMerkleBranches.add(randomHex(random, 32));
+			}
+			coinbase1 = randomHex(random, 50);
+			coinbase2 = randomHex(random, 60);
+			extranonce1 = randomHex(random, 4);
+			template.setMerkleBranches(newMerkleBranches);
+			template.setCoinbase1(coinbase1);
+			template.setCoinbase2(coinbase2);
+			template.setExtranonce1(extranonce1);
+			GetworkJobTemplate clone = new GetworkJobTemplate(template);
+			String extranonce2 = randomHex(random, 4);
+			checkData(clone.getData(extranonce2), version + hashPrevBlock, time, bits, newMerkleBranches, coinbase1, extranonce1,
+					extranonce2, coinbase2, noMidState);
+		}
+	}
+
+	/**
+	 * Check the result against the previous computation of the merkle root,
+	 * the data and the midstate.
+	 * 
+	 * @param result
+	 * @param headerStart
+	 *            version and previous block hash
+	 * @param time
+	 * @param bits
+	 * @param merkleBranches
+	 * @param coinbase1
+	 * @param extranonce1
+	 * @param extranonce2
+	 * @param coinbase2
+	 * @param noMidState
+	 */
+	private void checkData(GetworkRequestResult result, String headerStart, String time, String bits, List<String> merkleBranches,
+			String coinbase1, String extranonce1, String extranonce2, String coinbase2, boolean noMidState) {
+		// The template rolls the time forward when a second boundary is
+		// crossed between two updates of its data.
+		String resultTime = result.getData().substring(TIME_HEX_POSITION, TIME_HEX_POSITION + 8);
+		long timeShift = Long.parseLong(resultTime, 16) - Long.parseLong(time, 16);
+		check("Time " + resultTime + " of the template with time " + time, timeShift >= 0 && timeShift <= 2);
+
+		byte[] merkleRoot = doubleHash(fromHex(coinbase1 + extranonce1 + extranonce2 + coinbase2));
+		for (String merkleBranch : merkleBranches) {
+			merkleRoot = doubleHash(fromHex(toHex(merkleRoot) + merkleBranch));
+		}
+		// The getwork merkle root is made of little-endian words.
+		byte[] littleEndianMerkleRoot = new byte[merkleRoot.length];
+		for (int i = 0; i < merkleRoot.length; i += 4) {
+			littleEndianMerkleRoot[i] = merkleRoot[i + 3];
+			littleEndianMerkleRoot[i + 1] = merkleRoot[i + 2];
+			littleEndianMerkleRoot[i + 2] = merkleRoot[i + 1];
+			littleEndianMerkleRoot[i + 3] = merkleRoot[i];
+		}
+		String expectedData = headerStart + toHex(littleEndianMerkleRoot) + resultTime + bits + "00000000" + BLOCK_HEADER_PADDING;
+		String expectedMidstate = noMidState ? null : BaseEncoding.base16().encode(
+				SHA256HashingUtils.midstateSHA256(BaseEncoding.base16().decode(expectedData.substring(0, 128).toUpperCase())));
+
+		String description = "coinbase " + coinbase1 + extranonce1 + extranonce2 + coinbase2 + " and merkle branches " + merkleBranches;
+		check("Merkle root of the " + description, toHex(littleEndianMerkleRoot).equalsIgnoreCase(result.getMerkleRoot()));
+		check("Data of the " + description, expectedData.equalsIgnoreCase(result.getData()));
+		check("Midstate of the " + description, expectedMidstate == null ? result.getMidstate() == null
+				: expectedMidstate.equalsIgnoreCase(result.getMidstate()));
+	}
+
+	private byte[] doubleHash(byte[] data) {
+		return messageDigest.digest(messageDigest.digest(data));
+	}
+
+	private static String randomHex(Random random, int length) {
+		byte[] data = new byte[length];
+		random.nextBytes(data);
+		return toHex(data);
+	}
+
+}
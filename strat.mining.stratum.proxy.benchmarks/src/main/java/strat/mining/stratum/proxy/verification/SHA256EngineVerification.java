@@ -0,0 +1,179 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.verification;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import strat.mining.stratum.proxy.utils.mining.SHA256Engine;
+
+/**
+ * Check SHA256Engine against the JDK MessageDigest: known vectors, random
+ * messages of 0 to 300 bytes, the hashes continued from a midstate and the
+ * getwork midstate.
+ * 
+ * @author Strat
+ * 
+ */
+public class SHA256EngineVerification extends Verification {
+
+	// The genesis block header and its double SHA-256 hash (little-endian).
+	private static final String GENESIS_BLOCK_HEADER = "0100000000000000000000000000000000000000000000000000000000000000000000003ba3edfd7a7b12b27ac72c3e67768f617fc81bc3888a51323a9fb8aa4b1e5e4a29ab5f49ffff001d1dac2b7c";
+	private static final String GENESIS_BLOCK_HASH = "6fe28c0ab6f1b372c1a6a246ae63f74f931e8365e15a089c68d6190000000000";
+
+	// The getwork midstate of the bytes 0 to 63, given by the previous
+	// midstateSHA256 implementation.
+	private static final String GETWORK_MIDSTATE = "eb9adee680e26bb67096801ee2c1e9d548f259c85748cd32bbf41edb5fc526c3";
+
+	private static final int MAX_LENGTH = 300;
+	private static final int ROUNDS_PER_LENGTH = 3;
+
+	public SHA256EngineVerification() {
+		super("SHA256Engine");
+	}
+
+	@Override
+	public void run() throws Exception {
+		SHA256Engine engine = SHA256Engine.get();
+		MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+
+		checkEquals("SHA-256 of the empty message", fromHex("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855"),
+				hash(engine, new byte[0]));
+		checkEquals("SHA-256 of abc", fromHex("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad"),
+				hash(engine, "abc".getBytes(StandardCharsets.US_ASCII)));
+		checkEquals("SHA-256 of the 448 bits message",
+				fromHex("248d6a61d20638b8e5c026930c3e6039a33ce45964ff2167f6ecedd419db06c1"),
+				hash(engine, "abcdbcdecdefdefgefghfghighijhijkijkljklmklmnlmnomnopnopq".getBytes(StandardCharsets.US_ASCII)));
+
+		byte[] genesis = fromHex(GENESIS_BLOCK_HEADER);
+		byte[] out = new byte[SHA256Engine.DIGEST_LENGTH];
+		engine.doubleHash(genesis, 0, genesis.length, out, 0);
+		checkEquals("Double SHA-256 of the genesis block header", fromHex(GENESIS_BLOCK_HASH), out);
+		int[] midstate = new int[8];
+		engine.midstate(genesis, 0, midstate);
+		engine.doubleHashFromMidstate(midstate, genesis, SHA256Engine.BLOCK_LENGTH, genesis.length - SHA256Engine.BLOCK_LENGTH, out, 0);
+		checkEquals("Double SHA-256 of the genesis block header from its midstate", fromHex(GENESIS_BLOCK_HASH), out);
+
+		byte[] sequence = new byte[SHA256Engine.BLOCK_LENGTH];
+		for (int i = 0; i < sequence.length; i++) {
+			sequence[i] = (byte) i;
+		}
+		engine.getworkMidstate(sequence, 0, out, 0);
+		checkEquals("Getwork midstate of the bytes 0 to 63", fromHex(GETWORK_MIDSTATE), out);
+
+		Random random = new Random(42);
+		for (int length = 0; length <= MAX_LENGTH; length++) {
+			for (int round = 0; round < ROUNDS_PER_LENGTH; round++) {
+				byte[] message = new byte[length];
+				random.nextBytes(message);
+				checkMessage(engine, messageDigest, message, random.nextInt(8));
+			}
+		}
+
+		for (int round = 0; round < 1000; round++) {
+			byte[] block = new byte[SHA256Engine.BLOCK_LENGTH];
+			random.nextBytes(block);
+			checkGetworkMidstate(engine, block);
+		}
+	}
+
+	/**
+	 * Check the hashes of the message, read at the given offset of a bigger
+	 * array and written at the same offset of the output array.
+	 * 
+	 * @param engine
+	 * @param messageDigest
+	 * @param message
+	 * @param offset
+	 */
+	private void checkMessage(SHA256Engine engine, MessageDigest messageDigest, byte[] message, int offset) {
+		byte[] expectedHash = messageDigest.digest(message);
+		byte[] expectedDoubleHash = messageDigest.digest(expectedHash);
+		String description = message.length + " bytes message " + toHex(message);
+
+		byte[] data = new byte[offset + message.length];
+		System.arraycopy(message, 0, data, offset, message.length);
+		byte[] out = new byte[offset + SHA256Engine.DIGEST_LENGTH];
+
+		engine.hash(data, offset, message.length, out, offset);
+		checkEquals("SHA-256 of the " + description, expectedHash, Arrays.copyOfRange(out, offset, out.length));
+		engine.doubleHash(data, offset, message.length, out, offset);
+		checkEquals("Double SHA-256 of the " + description, expectedDoubleHash, Arrays.copyOfRange(out, offset, out.length));
+
+		if (message.length >= SHA256Engine.BLOCK_LENGTH) {
+			int[] midstate = new int[8];
+			engine.midstate(data, offset, midstate);
+			int remaining = message.length - SHA256Engine.BLOCK_LENGTH;
+			engine.hashFromState(midstate, SHA256Engine.BLOCK_LENGTH, data, offset + SHA256Engine.BLOCK_LENGTH, remaining, out, offset);
+			checkEquals("SHA-256 from the midstate of the " + description, expectedHash, Arrays.copyOfRange(out, offset, out.length));
+			engine.doubleHashFromMidstate(midstate, data, offset + SHA256Engine.BLOCK_LENGTH, remaining, out, offset);
+			checkEquals("Double SHA-256 from the midstate of the " + description, expectedDoubleHash,
+					Arrays.copyOfRange(out, offset, out.length));
+
+			// Continue the compression block by block.
+			int processedLength = SHA256Engine.BLOCK_LENGTH;
+			while (message.length - processedLength >= SHA256Engine.BLOCK_LENGTH) {
+				engine.compressBlock(midstate, data, offset + processedLength);
+				processedLength += SHA256Engine.BLOCK_LENGTH;
+			}
+			engine.hashFromState(midstate, processedLength, data, offset + processedLength, message.length - processedLength, out, offset);
+			checkEquals("SHA-256 from the compressed blocks of the " + description, expectedHash,
+					Arrays.copyOfRange(out, offset, out.length));
+		}
+	}
+
+	/**
+	 * The getwork midstate is the standard midstate of the block with its
+	 * 32-bit words byte-swapped, written as little-endian words.
+	 * 
+	 * @param engine
+	 * @param block
+	 */
+	private void checkGetworkMidstate(SHA256Engine engine, byte[] block) {
+		byte[] swappedBlock = new byte[block.length];
+		for (int i = 0; i < block.length; i += 4) {
+			swappedBlock[i] = block[i + 3];
+			swappedBlock[i + 1] = block[i + 2];
+			swappedBlock[i + 2] = block[i + 1];
+			swappedBlock[i + 3] = block[i];
+		}
+		int[] midstate = new int[8];
+		engine.midstate(swappedBlock, 0, midstate);
+		byte[] expected = new byte[SHA256Engine.DIGEST_LENGTH];
+		for (int i = 0; i < 8; i++) {
+			expected[i * 4] = (byte) midstate[i];
+			expected[i * 4 + 1] = (byte) (midstate[i] >>> 8);
+			expected[i * 4 + 2] = (byte) (midstate[i] >>> 16);
+			expected[i * 4 + 3] = (byte) (midstate[i] >>> 24);
+		}
+
+		byte[] out = new byte[SHA256Engine.DIGEST_LENGTH];
+		engine.getworkMidstate(block, 0, out, 0);
+		checkEquals("Getwork midstate of " + toHex(block), expected, out);
+	}
+
+	private static byte[] hash(SHA256Engine engine, byte[] message) {
+		byte[] out = new byte[SHA256Engine.DIGEST_LENGTH];
+		engine.hash(message, 0, message.length, out, 0);
+		return out;
+	}
+
+}
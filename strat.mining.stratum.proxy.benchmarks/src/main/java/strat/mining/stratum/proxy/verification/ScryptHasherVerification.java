@@ -0,0 +1,81 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.verification;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import strat.mining.stratum.proxy.utils.mining.ScryptHasher;
+import strat.mining.stratum.proxy.utils.mining.ScryptHashingUtils;
+
+/**
+ * Check ScryptHasher (reused scratch memory, pre-keyed HMAC) against the
+ * previous implementation on fixed and random block headers.
+ * 
+ * @author Strat
+ * 
+ */
+public class ScryptHasherVerification extends Verification {
+
+	// Scrypt hashes of the header of 80 zero bytes and of the header made of
+	// the bytes 0 to 79, given by the previous implementation.
+	private static final String ZERO_HEADER_HASH = "161d0876f3b93b1048cda1bdeaa7332ee210f7131b42013cb43913a6553a4b69";
+	private static final String SEQUENCE_HEADER_HASH = "bc540a1a801df96e493005c71e010e2d387607fbf0fec416fd3c2645aa1ba9d2";
+
+	private static final int NUMBER_OF_RANDOM_HEADERS = 500;
+
+	public ScryptHasherVerification() {
+		super("ScryptHasher");
+	}
+
+	@Override
+	public void run() throws Exception {
+		ScryptHasher hasher = ScryptHasher.get();
+
+		byte[] sequence = new byte[ScryptHasher.HEADER_LENGTH];
+		for (int i = 0; i < sequence.length; i++) {
+			sequence[i] = (byte) i;
+		}
+		checkEquals("Scrypt hash of the zero header", fromHex(ZERO_HEADER_HASH), hash(hasher, new byte[ScryptHasher.HEADER_LENGTH], 0));
+		checkEquals("Scrypt hash of the sequence header", fromHex(SEQUENCE_HEADER_HASH), hash(hasher, sequence, 0));
+		checkEquals("Reference Scrypt hash of the sequence header", fromHex(SEQUENCE_HEADER_HASH), ScryptReference.scryptHash(sequence));
+
+		// The hasher keeps its scratch memory and HMAC state between the
+		// hashes, so the headers are hashed one after the other on the same
+		// thread.
+		Random random = new Random(42);
+		for (int i = 0; i < NUMBER_OF_RANDOM_HEADERS; i++) {
+			int offset = random.nextInt(8);
+			byte[] data = new byte[offset + ScryptHasher.HEADER_LENGTH + random.nextInt(48)];
+			random.nextBytes(data);
+			byte[] header = Arrays.copyOfRange(data, offset, offset + ScryptHasher.HEADER_LENGTH);
+			byte[] expected = ScryptReference.scryptHash(header);
+
+			checkEquals("Scrypt hash of " + toHex(header), expected, hash(hasher, data, offset));
+			checkEquals("ScryptHashingUtils hash of " + toHex(header), expected, ScryptHashingUtils.scryptHash(header));
+		}
+	}
+
+	private static byte[] hash(ScryptHasher hasher, byte[] data, int offset) {
+		byte[] out = new byte[offset + 32];
+		hasher.hash(data, offset, out, offset);
+		return Arrays.copyOfRange(out, offset, out.length);
+	}
+
+}
@@ -0,0 +1,178 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.verification;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Random;
+
+import strat.mining.stratum.proxy.CryptoAlgorithm;
+import strat.mining.stratum.proxy.utils.mining.DifficultyUtils;
+import strat.mining.stratum.proxy.utils.mining.SHA256HashingUtils;
+import strat.mining.stratum.proxy.utils.mining.ScryptHashingUtils;
+import strat.mining.stratum.proxy.utils.mining.UInt256;
+
+/**
+ * Check UInt256 and the difficulty/target conversions against the previous
+ * BigInteger/BigDecimal code: difficulty 1 round trips, targets of a range of
+ * difficulties, difficulty of known hashes and comparison with little-endian
+ * hashes.
+ * 
+ * @author Strat
+ * 
+ */
+public class UInt256Verification extends Verification {
+
+	// The targets are computed with doubles, so they are exact up to the
+	// double precision.
+	private static final double MAX_RELATIVE_ERROR = 1e-15;
+
+	private static final BigInteger MAX_UINT256 = BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE);
+
+	// The genesis block hash (little-endian).
+	private static final String GENESIS_BLOCK_HASH = "6fe28c0ab6f1b372c1a6a246ae63f74f931e8365e15a089c68d6190000000000";
+
+	private static final int NUMBER_OF_RANDOM_VALUES = 100000;
+
+	public UInt256Verification() {
+		super("UInt256");
+	}
+
+	@Override
+	public void run() throws Exception {
+		check("SHA256 difficulty 1 target", SHA256HashingUtils.DIFFICULTY_1_TARGET_UINT256.toBigInteger().equals(
+				new BigInteger("00000000ffff0000000000000000000000000000000000000000000000000000", 16)));
+		check("Scrypt difficulty 1 target", ScryptHashingUtils.DIFFICULTY_1_TARGET_UINT256.toBigInteger().equals(
+				new BigInteger("0000ffff00000000000000000000000000000000000000000000000000000000", 16)));
+
+		Random random = new Random(42);
+		for (CryptoAlgorithm algo : new CryptoAlgorithm[] { CryptoAlgorithm.SHA256, CryptoAlgorithm.Scrypt }) {
+			BigDecimal difficulty1Target = algo == CryptoAlgorithm.SHA256 ? SHA256HashingUtils.DIFFICULTY_1_TARGET
+					: ScryptHashingUtils.DIFFICULTY_1_TARGET;
+			UInt256 difficulty1TargetUInt256 = algo == CryptoAlgorithm.SHA256 ? SHA256HashingUtils.DIFFICULTY_1_TARGET_UINT256
+					: ScryptHashingUtils.DIFFICULTY_1_TARGET_UINT256;
+
+			check(algo + " target of difficulty 1", DifficultyUtils.getTarget(1, algo).equals(difficulty1TargetUInt256));
+			check(algo + " difficulty of the difficulty 1 target", DifficultyUtils.getDifficulty(difficulty1TargetUInt256, algo) == 1);
+
+			double[] difficulties = new double[] { 0.001, 0.0625, 0.5, 1, 2, 3, 7.3, 16, 1024, 65536, 123456.789, 1e9, 1e12, 1e15 };
+			for (double difficulty : difficulties) {
+				checkDifficulty(algo, difficulty1Target, difficulty);
+			}
+			for (int i = 0; i < 1000; i++) {
+				checkDifficulty(algo, difficulty1Target, Math.pow(10, random.nextDouble() * 15 - 3));
+			}
+
+			// The previous code did not saturate, the target is the highest
+			// 256 bits integer.
+			check(algo + " target of a tiny difficulty", DifficultyUtils.getTarget(1e-70, algo).equals(UInt256.MAX_VALUE));
+		}
+
+		// The previous code divided the integers, so its difficulty is the
+		// integer part of the exact one.
+		UInt256 genesisHash = UInt256.fromLittleEndian(fromHex(GENESIS_BLOCK_HASH), 0);
+		BigDecimal expectedDifficulty = SHA256HashingUtils.DIFFICULTY_1_TARGET.divide(new BigDecimal(genesisHash.toBigInteger()),
+				MathContext.DECIMAL64);
+		double difficulty = DifficultyUtils.getDifficulty(genesisHash, CryptoAlgorithm.SHA256);
+		check("Difficulty of the genesis block hash", isClose(expectedDifficulty.doubleValue(), difficulty));
+		check("Difficulty of the genesis block hash with the previous code", (long) difficulty == SHA256HashingUtils.DIFFICULTY_1_TARGET
+				.toBigInteger().divide(genesisHash.toBigInteger()).longValue());
+
+		for (int i = 0; i < NUMBER_OF_RANDOM_VALUES; i++) {
+			checkRandomValues(random);
+		}
+	}
+
+	/**
+	 * Check the target of the difficulty against the previous BigDecimal
+	 * division, and the difficulty of this target.
+	 * 
+	 * @param algo
+	 * @param difficulty1Target
+	 * @param difficulty
+	 */
+	private void checkDifficulty(CryptoAlgorithm algo, BigDecimal difficulty1Target, double difficulty) {
+		BigInteger expected = difficulty1Target.divide(BigDecimal.valueOf(difficulty), 0, RoundingMode.HALF_EVEN).toBigInteger();
+		UInt256 target = DifficultyUtils.getTarget(difficulty, algo);
+		BigDecimal error = new BigDecimal(expected.subtract(target.toBigInteger()).abs());
+		check(algo + " target of difficulty " + difficulty + ". Expected " + expected.toString(16) + ", got " + target,
+				error.compareTo(new BigDecimal(expected).multiply(BigDecimal.valueOf(MAX_RELATIVE_ERROR))) <= 0);
+		check(algo + " difficulty of the target of difficulty " + difficulty, isClose(difficulty, DifficultyUtils.getDifficulty(target, algo)));
+	}
+
+	/**
+	 * Check the conversions and comparisons of random integers against
+	 * BigInteger. Half of the values are hash-like (high bytes zero) and some
+	 * pairs differ by a single bit.
+	 * 
+	 * @param random
+	 */
+	private void checkRandomValues(Random random) {
+		byte[] hash = new byte[32];
+		random.nextBytes(hash);
+		if (random.nextBoolean()) {
+			Arrays.fill(hash, 24, 32, (byte) 0);
+		}
+		byte[] target = new byte[32];
+		int kind = random.nextInt(4);
+		if (kind == 0) {
+			target = hash.clone();
+		} else if (kind == 1) {
+			target = hash.clone();
+			target[random.nextInt(32)] ^= 1 << random.nextInt(8);
+		} else {
+			random.nextBytes(target);
+		}
+
+		BigInteger hashInteger = fromLittleEndian(hash);
+		BigInteger targetInteger = fromLittleEndian(target);
+		UInt256 hashUInt256 = UInt256.fromLittleEndian(hash, 0);
+		UInt256 targetUInt256 = UInt256.fromLittleEndian(target, 0);
+		String description = "target " + targetInteger.toString(16) + " and hash " + hashInteger.toString(16);
+
+		check("Little-endian conversion of " + description, hashUInt256.toBigInteger().equals(hashInteger)
+				&& targetUInt256.toBigInteger().equals(targetInteger));
+		check("BigInteger conversion of " + description, UInt256.fromBigInteger(targetInteger).equals(targetUInt256));
+		byte[] out = new byte[32];
+		targetUInt256.toLittleEndian(out, 0);
+		check("Little-endian output of " + description, Arrays.equals(target, out));
+
+		int expected = Integer.signum(targetInteger.compareTo(hashInteger));
+		check("compareToLittleEndian of " + description, Integer.signum(targetUInt256.compareToLittleEndian(hash, 0)) == expected);
+		check("compareTo of " + description, Integer.signum(targetUInt256.compareTo(hashUInt256)) == expected);
+
+		check("Double value of " + description, isClose(new BigDecimal(targetInteger).doubleValue(), targetUInt256.doubleValue()));
+	}
+
+	private static BigInteger fromLittleEndian(byte[] data) {
+		byte[] bigEndian = new byte[data.length];
+		for (int i = 0; i < data.length; i++) {
+			bigEndian[i] = data[data.length - 1 - i];
+		}
+		return new BigInteger(1, bigEndian);
+	}
+
+	private static boolean isClose(double expected, double actual) {
+		return Math.abs(expected - actual) <= Math.abs(expected) * MAX_RELATIVE_ERROR * 10;
+	}
+
+}
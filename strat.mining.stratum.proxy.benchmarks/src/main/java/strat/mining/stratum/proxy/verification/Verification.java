@@ -0,0 +1,86 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.verification;
+
+import java.util.Arrays;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * A check of an optimized implementation against a reference one. The
+ * failures are counted and printed, the run goes on after a failure.
+ * 
+ * @author Strat
+ * 
+ */
+public abstract class Verification {
+
+	private final String name;
+
+	private int numberOfChecks;
+	private int numberOfFailures;
+
+	protected Verification(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Run all the checks of the verification.
+	 * 
+	 * @throws Exception
+	 */
+	public abstract void run() throws Exception;
+
+	protected void check(String description, boolean condition) {
+		numberOfChecks++;
+		if (!condition) {
+			numberOfFailures++;
+			System.out.println(name + " FAILED: " + description);
+		}
+	}
+
+	protected void checkEquals(String description, byte[] expected, byte[] actual) {
+		numberOfChecks++;
+		if (!Arrays.equals(expected, actual)) {
+			numberOfFailures++;
+			System.out.println(name + " FAILED: " + description + ". Expected " + toHex(expected) + ", got " + toHex(actual) + ".");
+		}
+	}
+
+	protected static byte[] fromHex(String hex) {
+		return BaseEncoding.base16().decode(hex.toUpperCase());
+	}
+
+	protected static String toHex(byte[] data) {
+		return data == null ? "null" : BaseEncoding.base16().lowerCase().encode(data);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getNumberOfChecks() {
+		return numberOfChecks;
+	}
+
+	public int getNumberOfFailures() {
+		return numberOfFailures;
+	}
+
+}
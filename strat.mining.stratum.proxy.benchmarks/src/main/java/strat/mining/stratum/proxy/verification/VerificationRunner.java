@@ -0,0 +1,58 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.verification;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Run the verifications of the optimized hashing and arithmetic code. Exits
+ * with status 1 if a check fails.
+ * 
+ * <pre>
+ * java -cp target/benchmarks.jar strat.mining.stratum.proxy.verification.VerificationRunner
+ * </pre>
+ * 
+ * @author Strat
+ * 
+ */
+public class VerificationRunner {
+
+	public static void main(String[] args) throws Exception {
+		List<Verification> verifications = new ArrayList<Verification>();
+		verifications.add(new SHA256EngineVerification());
+		verifications.add(new ScryptHasherVerification());
+		verifications.add(new UInt256Verification());
+		verifications.add(new GetworkJobTemplateVerification());
+		verifications.add(new BlockHeaderTemplateVerification());
+
+		int numberOfFailures = 0;
+		for (Verification verification : verifications) {
+			verification.run();
+			System.out.println(verification.getName() + ": " + verification.getNumberOfChecks() + " checks, "
+					+ verification.getNumberOfFailures() + " failures.");
+			numberOfFailures += verification.getNumberOfFailures();
+		}
+
+		if (numberOfFailures > 0) {
+			System.exit(1);
+		}
+	}
+
+}
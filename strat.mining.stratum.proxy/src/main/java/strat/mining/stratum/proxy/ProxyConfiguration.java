@@ -7,6 +7,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import strat.mining.stratum.proxy.PoolConfiguration;
+import strat.mining.stratum.proxy.constant.Constants;
 
 
 /**
@@ -33,6 +34,15 @@ public class ProxyConfiguration {
 	
 	private Boolean noMidstate;
 	private Boolean validateGetworkShares;
+	private Boolean validateStratumShares = false;
+	private Integer shareValidationThreads = Constants.DEFAULT_SHARE_VALIDATION_THREADS;
+	private Integer shareValidationQueueSize = Constants.DEFAULT_SHARE_VALIDATION_QUEUE_SIZE;
+
+	private Boolean vardiffEnabled = Constants.DEFAULT_VARDIFF_ENABLED;
+	private Double vardiffTargetSharesPerMinute = Constants.DEFAULT_VARDIFF_TARGET_SHARES_PER_MINUTE;
+	private Double vardiffMinimumDifficulty = Constants.DEFAULT_VARDIFF_MINIMUM_DIFFICULTY;
+	private Integer vardiffRetargetPeriod = Constants.DEFAULT_VARDIFF_RETARGET_PERIOD;
+	private Integer vardiffGracePeriod = Constants.DEFAULT_VARDIFF_GRACE_PERIOD;
 
 	private String poolSwitchingStrategy;
 	private Integer weightedRoundRobinRoundDuration;
@@ -45,6 +55,25 @@ public class ProxyConfiguration {
 	private Double minimumDifficulty;
 	
 	private Boolean logRealShareDifficulty = false;
+
+	private Boolean useNioTransport = false;
+	private Integer nioEventLoopThreads = Constants.DEFAULT_NIO_EVENT_LOOP_THREADS;
+	private Integer nioMaxPendingWriteBytes = Constants.DEFAULT_NIO_MAX_PENDING_WRITE_BYTES;
+
+	private Integer extranonce1TailSize = Constants.DEFAULT_EXTRANONCE1_TAIL_SIZE;
+	private Integer maxWorkersPerUpstreamSession = Constants.DEFAULT_MAX_WORKERS_PER_UPSTREAM_SESSION;
+	private Integer maxUpstreamSessionsPerPool = Constants.DEFAULT_MAX_UPSTREAM_SESSIONS_PER_POOL;
+	private Integer maxInFlightSubmits = Constants.DEFAULT_MAX_IN_FLIGHT_SUBMITS;
+	private String submitBackpressurePolicy = Constants.DEFAULT_SUBMIT_BACKPRESSURE_POLICY;
+	private Integer migrationBatchSize = Constants.DEFAULT_MIGRATION_BATCH_SIZE;
+	private Integer migrationConcurrency = Constants.DEFAULT_MIGRATION_CONCURRENCY;
+	private Integer migrationBatchInterval = Constants.DEFAULT_MIGRATION_BATCH_INTERVAL;
+	private Integer migrationDeadline = Constants.DEFAULT_MIGRATION_DEADLINE;
+	private Boolean hotStandbyPools = Constants.DEFAULT_HOT_STANDBY_POOLS;
+	private Boolean rejectStaleShares = Constants.DEFAULT_REJECT_STALE_SHARES;
+	private Boolean rejectDuplicateShares = Constants.DEFAULT_REJECT_DUPLICATE_SHARES;
+	private Integer shareBufferSize = Constants.DEFAULT_SHARE_BUFFER_SIZE;
+	private Integer shareBufferDeadline = Constants.DEFAULT_SHARE_BUFFER_DEADLINE;
 	
 	private CryptoAlgorithm algo;
 	
@@ -208,6 +237,70 @@ public class ProxyConfiguration {
 		this.validateGetworkShares = validateGetworkShares;
 	}
 
+	public Boolean getValidateStratumShares() {
+		return validateStratumShares;
+	}
+
+	public void setValidateStratumShares(Boolean validateStratumShares) {
+		this.validateStratumShares = validateStratumShares;
+	}
+
+	public Integer getShareValidationThreads() {
+		return shareValidationThreads;
+	}
+
+	public void setShareValidationThreads(Integer shareValidationThreads) {
+		this.shareValidationThreads = shareValidationThreads;
+	}
+
+	public Integer getShareValidationQueueSize() {
+		return shareValidationQueueSize;
+	}
+
+	public void setShareValidationQueueSize(Integer shareValidationQueueSize) {
+		this.shareValidationQueueSize = shareValidationQueueSize;
+	}
+
+	public Boolean isVardiffEnabled() {
+		return vardiffEnabled;
+	}
+
+	public void setVardiffEnabled(Boolean vardiffEnabled) {
+		this.vardiffEnabled = vardiffEnabled;
+	}
+
+	public Double getVardiffTargetSharesPerMinute() {
+		return vardiffTargetSharesPerMinute;
+	}
+
+	public void setVardiffTargetSharesPerMinute(Double vardiffTargetSharesPerMinute) {
+		this.vardiffTargetSharesPerMinute = vardiffTargetSharesPerMinute;
+	}
+
+	public Double getVardiffMinimumDifficulty() {
+		return vardiffMinimumDifficulty;
+	}
+
+	public void setVardiffMinimumDifficulty(Double vardiffMinimumDifficulty) {
+		this.vardiffMinimumDifficulty = vardiffMinimumDifficulty;
+	}
+
+	public Integer getVardiffRetargetPeriod() {
+		return vardiffRetargetPeriod;
+	}
+
+	public void setVardiffRetargetPeriod(Integer vardiffRetargetPeriod) {
+		this.vardiffRetargetPeriod = vardiffRetargetPeriod;
+	}
+
+	public Integer getVardiffGracePeriod() {
+		return vardiffGracePeriod;
+	}
+
+	public void setVardiffGracePeriod(Integer vardiffGracePeriod) {
+		this.vardiffGracePeriod = vardiffGracePeriod;
+	}
+
 	public String getPoolSwitchingStrategy() {
 		return poolSwitchingStrategy;
 	}
@@ -259,5 +352,141 @@ public class ProxyConfiguration {
 	public Boolean getDisableLogAppend() {
 		return disableLogAppend;
 	}
+
+	public Boolean isUseNioTransport() {
+		return useNioTransport;
+	}
+
+	public void setUseNioTransport(Boolean useNioTransport) {
+		this.useNioTransport = useNioTransport;
+	}
+
+	public Integer getNioEventLoopThreads() {
+		return nioEventLoopThreads;
+	}
+
+	public void setNioEventLoopThreads(Integer nioEventLoopThreads) {
+		this.nioEventLoopThreads = nioEventLoopThreads;
+	}
+
+	public Integer getNioMaxPendingWriteBytes() {
+		return nioMaxPendingWriteBytes;
+	}
+
+	public void setNioMaxPendingWriteBytes(Integer nioMaxPendingWriteBytes) {
+		this.nioMaxPendingWriteBytes = nioMaxPendingWriteBytes;
+	}
+
+	public Integer getExtranonce1TailSize() {
+		return extranonce1TailSize;
+	}
+
+	public void setExtranonce1TailSize(Integer extranonce1TailSize) {
+		this.extranonce1TailSize = extranonce1TailSize;
+	}
+
+	public Integer getMaxWorkersPerUpstreamSession() {
+		return maxWorkersPerUpstreamSession;
+	}
+
+	public void setMaxWorkersPerUpstreamSession(Integer maxWorkersPerUpstreamSession) {
+		this.maxWorkersPerUpstreamSession = maxWorkersPerUpstreamSession;
+	}
+
+	public Integer getMaxUpstreamSessionsPerPool() {
+		return maxUpstreamSessionsPerPool;
+	}
+
+	public void setMaxUpstreamSessionsPerPool(Integer maxUpstreamSessionsPerPool) {
+		this.maxUpstreamSessionsPerPool = maxUpstreamSessionsPerPool;
+	}
+
+	public Integer getMaxInFlightSubmits() {
+		return maxInFlightSubmits;
+	}
+
+	public void setMaxInFlightSubmits(Integer maxInFlightSubmits) {
+		this.maxInFlightSubmits = maxInFlightSubmits;
+	}
+
+	public String getSubmitBackpressurePolicy() {
+		return submitBackpressurePolicy;
+	}
+
+	public void setSubmitBackpressurePolicy(String submitBackpressurePolicy) {
+		this.submitBackpressurePolicy = submitBackpressurePolicy;
+	}
+
+	public Integer getMigrationBatchSize() {
+		return migrationBatchSize;
+	}
+
+	public void setMigrationBatchSize(Integer migrationBatchSize) {
+		this.migrationBatchSize = migrationBatchSize;
+	}
+
+	public Integer getMigrationConcurrency() {
+		return migrationConcurrency;
+	}
+
+	public void setMigrationConcurrency(Integer migrationConcurrency) {
+		this.migrationConcurrency = migrationConcurrency;
+	}
+
+	public Integer getMigrationBatchInterval() {
+		return migrationBatchInterval;
+	}
+
+	public void setMigrationBatchInterval(Integer migrationBatchInterval) {
+		this.migrationBatchInterval = migrationBatchInterval;
+	}
+
+	public Integer getMigrationDeadline() {
+		return migrationDeadline;
+	}
+
+	public void setMigrationDeadline(Integer migrationDeadline) {
+		this.migrationDeadline = migrationDeadline;
+	}
 	
+	public Boolean isHotStandbyPools() {
+		return hotStandbyPools;
+	}
+
+	public void setHotStandbyPools(Boolean hotStandbyPools) {
+		this.hotStandbyPools = hotStandbyPools;
+	}
+
+	public Boolean isRejectStaleShares() {
+		return rejectStaleShares;
+	}
+
+	public void setRejectStaleShares(Boolean rejectStaleShares) {
+		this.rejectStaleShares = rejectStaleShares;
+	}
+
+	public Boolean isRejectDuplicateShares() {
+		return rejectDuplicateShares;
+	}
+
+	public void setRejectDuplicateShares(Boolean rejectDuplicateShares) {
+		this.rejectDuplicateShares = rejectDuplicateShares;
+	}
+
+	public Integer getShareBufferSize() {
+		return shareBufferSize;
+	}
+
+	public void setShareBufferSize(Integer shareBufferSize) {
+		this.shareBufferSize = shareBufferSize;
+	}
+
+	public Integer getShareBufferDeadline() {
+		return shareBufferDeadline;
+	}
+
+	public void setShareBufferDeadline(Integer shareBufferDeadline) {
+		this.shareBufferDeadline = shareBufferDeadline;
+	}
+
 }
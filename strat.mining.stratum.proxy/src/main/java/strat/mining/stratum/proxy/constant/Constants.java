@@ -48,6 +48,62 @@ public class Constants {
 	// the connection.
 	public static final Integer DEFAULT_SUBSCRIBE_RECEIVE_TIMEOUT = 10000;
 
+	// In milli seconds. The time to wait the pool response to a worker
+	// authorize request.
+	public static final Integer DEFAULT_POOL_AUTHORIZE_RESPONSE_TIMEOUT = 5000;
+	// The max number of jobs of a pool on which shares are accepted.
+	public static final Integer DEFAULT_POOL_MAX_LIVE_JOBS = 64;
+	public static final Boolean DEFAULT_REJECT_STALE_SHARES = true;
+	public static final Boolean DEFAULT_REJECT_DUPLICATE_SHARES = true;
+	// The max number of shares held while a pool is reconnecting.
+	public static final Integer DEFAULT_SHARE_BUFFER_SIZE = 256;
+	// In milli seconds. The max time a share is held.
+	public static final Integer DEFAULT_SHARE_BUFFER_DEADLINE = 15000;
+
+	public static final Integer DEFAULT_SHARE_VALIDATION_THREADS = Runtime.getRuntime().availableProcessors();
+	// The max number of shares waiting to be validated.
+	public static final Integer DEFAULT_SHARE_VALIDATION_QUEUE_SIZE = 1024;
+
+	// Difficulty of the stratum worker connections computed by the proxy.
+	public static final Boolean DEFAULT_VARDIFF_ENABLED = false;
+	public static final Double DEFAULT_VARDIFF_TARGET_SHARES_PER_MINUTE = 20d;
+	public static final Double DEFAULT_VARDIFF_MINIMUM_DIFFICULTY = 0.001;
+	// In milli seconds.
+	public static final Integer DEFAULT_VARDIFF_RETARGET_PERIOD = 60000;
+	// In milli seconds. The time during which the shares of the previous
+	// difficulty are accepted.
+	public static final Integer DEFAULT_VARDIFF_GRACE_PERIOD = 10000;
+
+	public static final Integer DEFAULT_EXTRANONCE1_TAIL_SIZE = 1;
+	public static final Integer MINIMUM_WORKER_EXTRANONCE2_SIZE = 2;
+	public static final Integer DEFAULT_MAX_WORKERS_PER_UPSTREAM_SESSION = 256;
+	public static final Integer DEFAULT_MAX_UPSTREAM_SESSIONS_PER_POOL = 8;
+
+	// The max number of submits waiting for a pool response.
+	public static final Integer DEFAULT_MAX_IN_FLIGHT_SUBMITS = 256;
+	public static final String DEFAULT_SUBMIT_BACKPRESSURE_POLICY = "queue";
+	// The max number of submits waiting to be sent when the QUEUE policy is
+	// used. The next ones are rejected.
+	public static final Integer DEFAULT_MAX_QUEUED_SUBMITS = 4096;
+	// In milli seconds. An in-flight submit without pool response after this
+	// delay is rejected and its slot freed.
+	public static final Integer DEFAULT_SUBMIT_RESPONSE_TIMEOUT = 30000;
+
+	// Rebind of the worker connections when the current pool changes.
+	public static final Integer DEFAULT_MIGRATION_BATCH_SIZE = 50;
+	public static final Integer DEFAULT_MIGRATION_CONCURRENCY = 4;
+	// In milli seconds.
+	public static final Integer DEFAULT_MIGRATION_BATCH_INTERVAL = 100;
+	public static final Integer DEFAULT_MIGRATION_DEADLINE = 30000;
+
+	// In seconds. The period of the internal statistics log.
+	public static final Integer DEFAULT_STATISTICS_LOG_PERIOD = 300;
+
+	// Pre-authorize the known users on the pools which are not in use.
+	// Disabled by default since it sends the authorizations of all the users
+	// to all the ready pools.
+	public static final Boolean DEFAULT_HOT_STANDBY_POOLS = false;
+
 	public static final String ERROR_MESSAGE_SUBSCRIBE_EXTRANONCE = "Method 'subscribe' not found for service 'mining.extranonce'";
 
 	public static final String VERSION = "strat.mining.proxy-" + PROXY_VERSION;
@@ -63,6 +119,20 @@ public class Constants {
 	public static final Integer DEFAULT_HASHRATE_DATABASE_SAMPLING_PERIOD = 60;
 	public static final Integer DEFAULT_HASHRATE_DATABASE_HISTORY_DEPTH = 7;
 
+	public static final Integer DEFAULT_NIO_EVENT_LOOP_THREADS = Runtime.getRuntime().availableProcessors();
+	public static final Integer DEFAULT_NIO_POOL_EVENT_LOOP_THREADS = 1;
+	// In bytes. A connection with more bytes waiting to be written is closed.
+	public static final Integer DEFAULT_NIO_MAX_PENDING_WRITE_BYTES = 1024 * 1024;
+
+	public static final Integer DEFAULT_TIMER_EXECUTOR_THREADS = 8;
+	public static final Integer DEFAULT_TIMER_EXECUTOR_QUEUE_SIZE = 1024;
+	public static final Integer DEFAULT_TIMER_WHEEL_TICK_DURATION = 100;
+	public static final Integer DEFAULT_TIMER_WHEEL_SIZE = 512;
+
+	// The threads draining the submit queues of the pools, one per upstream
+	// session of a pool.
+	public static final Integer DEFAULT_SUBMIT_PIPELINE_THREADS = DEFAULT_MAX_UPSTREAM_SESSIONS_PER_POOL;
+
 	public static final Integer DEFAULT_POOL_WEIGHT = 1;
 	public static final Integer DEFAULT_WEIGHTED_ROUND_ROBIN_ROUND_DURATION = 3600000;
 
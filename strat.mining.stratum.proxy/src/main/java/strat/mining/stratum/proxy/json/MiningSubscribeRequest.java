@@ -23,6 +23,7 @@ import java.util.List;
 
 import strat.mining.stratum.proxy.constant.Constants;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
@@ -30,6 +31,10 @@ public class MiningSubscribeRequest extends JsonRpcRequest {
 
 	public static final String METHOD_NAME = "mining.subscribe";
 
+	// The ID of a previous session to resume. Null for a new session.
+	@JsonIgnore
+	private String sessionId;
+
 	public MiningSubscribeRequest() {
 		super(METHOD_NAME);
 	}
@@ -42,9 +47,20 @@ public class MiningSubscribeRequest extends JsonRpcRequest {
 	public List<Object> getParams() {
 		ArrayList<Object> params = new ArrayList<Object>();
 		params.add(Constants.VERSION);
+		if (sessionId != null) {
+			params.add(sessionId);
+		}
 		return params;
 	}
 
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	public void setSessionId(String sessionId) {
+		this.sessionId = sessionId;
+	}
+
 	@Override
 	public void setParams(List<Object> params) {
 		// Do nothing since there is no mutable parameters for this request
@@ -50,6 +50,35 @@ public class MiningSubscribeResponse extends JsonRpcResponse {
 		this.subscriptionDetails = subscriptionDetails;
 	}
 
+	/**
+	 * Return the ID of the mining.notify subscription, used to resume the
+	 * session on reconnection. Null if not found.
+	 * 
+	 * @return
+	 */
+	@JsonIgnore
+	public String getSessionId() {
+		String sessionId = null;
+		if (subscriptionDetails != null) {
+			// The details are either a list of [method, id] pairs or a single
+			// pair.
+			if (subscriptionDetails.size() == 2 && MiningNotifyNotification.METHOD_NAME.equals(subscriptionDetails.get(0))
+					&& subscriptionDetails.get(1) instanceof String) {
+				sessionId = (String) subscriptionDetails.get(1);
+			} else {
+				for (Object detail : subscriptionDetails) {
+					if (detail instanceof List) {
+						List<?> pair = (List<?>) detail;
+						if (pair.size() == 2 && MiningNotifyNotification.METHOD_NAME.equals(pair.get(0)) && pair.get(1) instanceof String) {
+							sessionId = (String) pair.get(1);
+						}
+					}
+				}
+			}
+		}
+		return sessionId;
+	}
+
 	public String getExtranonce1() {
 		return extranonce1;
 	}
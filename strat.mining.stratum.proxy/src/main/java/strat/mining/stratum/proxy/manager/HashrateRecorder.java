@@ -18,6 +18,7 @@
  */
 package strat.mining.stratum.proxy.manager;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -112,7 +113,7 @@ public class HashrateRecorder {
 			}
 		}
 
-		List<User> users = stratumProxyManager.getUsers();
+		Collection<User> users = stratumProxyManager.getUsers();
 		if (users != null) {
 			LOGGER.debug("Capturing users hashrate.");
 			for (User user : users) {
@@ -20,12 +20,16 @@ package strat.mining.stratum.proxy.manager;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -34,6 +38,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,10 +67,22 @@ import strat.mining.stratum.proxy.manager.strategy.PoolSwitchingStrategyFactory;
 import strat.mining.stratum.proxy.manager.strategy.PoolSwitchingStrategyManager;
 import strat.mining.stratum.proxy.model.Share;
 import strat.mining.stratum.proxy.model.User;
+import strat.mining.stratum.proxy.network.EncodedNotification;
+import strat.mining.stratum.proxy.network.NioEventLoopGroup;
+import strat.mining.stratum.proxy.network.NioServerAcceptor;
 import strat.mining.stratum.proxy.pool.Pool;
+import strat.mining.stratum.proxy.pool.SubmitPipeline;
+import strat.mining.stratum.proxy.utils.Timer;
+import strat.mining.stratum.proxy.utils.Timer.Task;
+import strat.mining.stratum.proxy.worker.GetworkWorkerConnection;
 import strat.mining.stratum.proxy.worker.StratumWorkerConnection;
 import strat.mining.stratum.proxy.worker.WorkerConnection;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * Manage connections (PoolConfiguration and Worker) and build some stats.
  * 
@@ -78,14 +95,34 @@ public class ProxyInstance {
 
 	private final Map<ServerSocket, Thread> listeningThreads = new HashMap<>();
 
+	private final List<ServerSocketChannel> listeningChannels = new CopyOnWriteArrayList<>();
+
+	// Event loops of the non-blocking transport. Null if the blocking
+	// transport is used. Pools have their own loop so that a worker loop
+	// waiting for a pool response never blocks the pool reading.
+	private NioEventLoopGroup workerEventLoopGroup;
+	private NioEventLoopGroup poolEventLoopGroup;
+
 	private List<Pool> pools;
 
 	private List<WorkerConnection> workerConnections;
 
-	private Map<String, User> users;
+	private UserRegistry users;
+
+	// Null if no share hash is computed by the proxy.
+	private ShareValidationExecutor shareValidationExecutor;
+
+	// Null if the shares are not validated.
+	private ShareValidator shareValidator;
+
+	private StatisticsLogger statisticsLogger;
 
 	private Map<Pool, Set<WorkerConnection>> poolWorkerConnections;
 
+	// The pools down whose connections are kept until the end of the share
+	// buffer deadline, by pool.
+	private Map<Pool, Task> pendingPoolDownTasks;
+
 	private boolean closeRequested = false;
 
 	private AuthorizationManager stratumAuthorizationManager;
@@ -106,10 +143,43 @@ public class ProxyInstance {
 		this.stratumAuthorizationManager = new AuthorizationManager();
 		this.pools = Collections.synchronizedList(new ArrayList<Pool>());
 		this.workerConnections = new CopyOnWriteArrayList<WorkerConnection>();
-		this.users = Collections.synchronizedMap(new HashMap<String, User>());
+		this.users = new UserRegistry(configuration.getAlgo(), configuration.getUserHashrateSamplingPeriod());
+		boolean isShareValidationRequested = Boolean.TRUE.equals(configuration.getValidateStratumShares())
+				|| Boolean.TRUE.equals(configuration.getValidateGetworkShares()) || Boolean.TRUE.equals(configuration.isVardiffEnabled());
+		if (isShareValidationRequested || Boolean.TRUE.equals(configuration.getLogRealShareDifficulty())) {
+			this.shareValidationExecutor = new ShareValidationExecutor(configuration.getAlgo(), configuration.getShareValidationThreads(),
+					configuration.getShareValidationQueueSize());
+		}
+		if (isShareValidationRequested) {
+			if (ShareValidator.isSupported(configuration.getAlgo())) {
+				this.shareValidator = new ShareValidator(shareValidationExecutor);
+			} else {
+				LOGGER.warn("Share validation is not supported for the algorithm {}. The shares will not be validated and the workers will use the pool difficulty.",
+						configuration.getAlgo());
+			}
+		}
 		this.poolWorkerConnections = Collections.synchronizedMap(new HashMap<Pool, Set<WorkerConnection>>());
+		this.pendingPoolDownTasks = new ConcurrentHashMap<Pool, Task>();
+		this.statisticsLogger = new StatisticsLogger(this, Constants.DEFAULT_STATISTICS_LOG_PERIOD * 1000);
 		this.poolSwitchingStrategyFactory = new PoolSwitchingStrategyFactory(this);
 
+		if (Boolean.TRUE.equals(configuration.isUseNioTransport())) {
+			try {
+				this.workerEventLoopGroup = new NioEventLoopGroup("WorkerEventLoop", configuration.getNioEventLoopThreads());
+				if (configuration.getNioMaxPendingWriteBytes() != null) {
+					this.workerEventLoopGroup.setMaxPendingWriteBytes(configuration.getNioMaxPendingWriteBytes());
+				}
+				this.poolEventLoopGroup = new NioEventLoopGroup("PoolEventLoop", Constants.DEFAULT_NIO_POOL_EVENT_LOOP_THREADS);
+				LOGGER.info("Using the non-blocking transport with {} worker event loops.", configuration.getNioEventLoopThreads());
+			} catch (IOException e) {
+				LOGGER.error("Failed to start the event loops. Falling back to the blocking transport.", e);
+				if (workerEventLoopGroup != null) {
+					workerEventLoopGroup.shutdown();
+					workerEventLoopGroup = null;
+				}
+			}
+		}
+
 		setPoolSwitchingStrategy(configuration.getPoolSwitchingStrategy());
 	}
 
@@ -153,6 +223,12 @@ public class ProxyInstance {
 	 * @throws IOException
 	 */
 	public void startListeningIncomingConnections(String bindInterface, Integer port) throws IOException {
+		statisticsLogger.start();
+		if (workerEventLoopGroup != null) {
+			startListeningIncomingConnectionsNio(bindInterface, port);
+			return;
+		}
+
 		final ServerSocket serverSocket;
 		if (bindInterface == null) {
 			serverSocket = new ServerSocket(port, 0);
@@ -194,10 +270,66 @@ public class ProxyInstance {
 		listeningThread.start();
 	}
 
+	/**
+	 * Start listening incoming connections with the non-blocking transport.
+	 * 
+	 * @param bindInterface
+	 * @param port
+	 * @throws IOException
+	 */
+	private void startListeningIncomingConnectionsNio(String bindInterface, Integer port) throws IOException {
+		final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		try {
+			if (bindInterface == null) {
+				serverChannel.bind(new InetSocketAddress(port), 0);
+			} else {
+				serverChannel.bind(new InetSocketAddress(InetAddress.getByName(bindInterface), port), 0);
+			}
+			serverChannel.configureBlocking(false);
+		} catch (IOException e) {
+			serverChannel.close();
+			throw e;
+		}
+		LOGGER.info("ServerSocket opened on {}.", serverChannel.socket().getLocalSocketAddress());
+
+		NioServerAcceptor acceptor = new NioServerAcceptor(serverChannel, workerEventLoopGroup.next()) {
+			protected void onConnectionAccepted(SocketChannel channel) {
+				try {
+					channel.socket().setTcpNoDelay(true);
+					channel.socket().setKeepAlive(true);
+					channel.configureBlocking(false);
+					LOGGER.info("New connection on {} from {}.", serverChannel.socket().getLocalSocketAddress(), channel.socket()
+							.getRemoteSocketAddress());
+					StratumWorkerConnection workerConnection = new StratumWorkerConnection(channel, workerEventLoopGroup, ProxyInstance.this);
+					workerConnection.setSamplingHashesPeriod(configuration.getConnectionHashrateSamplingPeriod());
+					workerConnection.startReading();
+				} catch (Exception e) {
+					LOGGER.error("Failed to set up the incoming connection on {}.", serverChannel.socket().getLocalSocketAddress(), e);
+					try {
+						channel.close();
+					} catch (IOException e1) {
+						LOGGER.error("Failed to close the incoming connection.", e1);
+					}
+				}
+			}
+
+			protected void onAcceptError(Throwable cause) {
+				// Do not log the error if a close has been requested (as the
+				// error is expected and is part of the shutdown process)
+				if (!closeRequested) {
+					LOGGER.error("Error on the server socket {}.", serverChannel.socket().getLocalSocketAddress(), cause);
+				}
+			}
+		};
+		listeningChannels.add(serverChannel);
+		acceptor.start();
+	}
+
 	/**
 	 * Stop to listen incoming connections
 	 */
 	public void stopListeningIncomingConnections() {
+		statisticsLogger.stop();
 		for(ServerSocket serverSocket : listeningThreads.keySet()){
 			if (serverSocket != null) {
 				LOGGER.info("Closing the server socket on {}.", serverSocket.getLocalSocketAddress());
@@ -209,6 +341,26 @@ public class ProxyInstance {
 				}
 			}
 		}
+		for (ServerSocketChannel serverChannel : listeningChannels) {
+			LOGGER.info("Closing the server socket on {}.", serverChannel.socket().getLocalSocketAddress());
+			try {
+				closeRequested = true;
+				serverChannel.close();
+			} catch (Exception e) {
+				LOGGER.error("Failed to close serverSocket on {}.", serverChannel.socket().getLocalSocketAddress(), e);
+			}
+		}
+		listeningChannels.clear();
+	}
+
+	/**
+	 * Return the event loops to use for pool connections. Return null if the
+	 * blocking transport is used.
+	 * 
+	 * @return
+	 */
+	public NioEventLoopGroup getPoolEventLoopGroup() {
+		return poolEventLoopGroup;
 	}
 
 	/**
@@ -228,7 +380,9 @@ public class ProxyInstance {
 	 * @param request
 	 */
 	public Pool onSubscribeRequest(WorkerConnection connection, MiningSubscribeRequest request) throws NoPoolAvailableException {
-		Pool pool = poolSwitchingStrategyManager.getPoolForConnection(connection);
+		// Bind the connection on an upstream session of the selected pool
+		// with a free slot.
+		Pool pool = poolSwitchingStrategyManager.getPoolForConnection(connection).getSessionForNewWorker();
 
 		Set<WorkerConnection> workerConnections = getPoolWorkerConnections(pool);
 		workerConnections.add(connection);
@@ -240,29 +394,61 @@ public class ProxyInstance {
 	}
 
 	/**
-	 * To call when an authorize request is received.
+	 * To call when an authorize request is received. Throws an exception if the
+	 * worker is not authorized on this proxy. Else, return a future completed
+	 * when the worker is authorized on the pool of the connection (or failed
+	 * with an {@link AuthorizationException} if the pool refuses the worker).
 	 * 
 	 * @param connection
 	 * @param request
+	 * @return
 	 */
-	public void onAuthorizeRequest(WorkerConnection connection, MiningAuthorizeRequest request) throws AuthorizationException {
+	public ListenableFuture<Void> onAuthorizeRequest(final WorkerConnection connection, final MiningAuthorizeRequest request)
+			throws AuthorizationException {
+		return authorizeWorker(connection, request, true);
+	}
+
+	/**
+	 * Authorize the worker on the pool of the connection. The user is
+	 * pre-authorized on the standby pools only if preAuthorizeOnStandbyPools
+	 * is true (not on the rebind of a connection, the user is already known).
+	 * 
+	 * @param connection
+	 * @param request
+	 * @param preAuthorizeOnStandbyPools
+	 * @return
+	 */
+	private ListenableFuture<Void> authorizeWorker(final WorkerConnection connection, final MiningAuthorizeRequest request,
+			final boolean preAuthorizeOnStandbyPools) throws AuthorizationException {
 		// Check that the worker is authorized on this proxy
 		stratumAuthorizationManager.checkAuthorization(connection, request);
 
-		// Authorize the worker on the pool. Block until the authorization is
-		// done.
-		connection.getPool().authorizeWorker(request);
-
-		linkConnectionToUser(connection, request);
-		
-		LOGGER.info("Authorized worker: "+request.getUsername());
+		// Authorize the worker on the pool. The connection is linked to the
+		// user once the pool has authorized the worker.
+		return Futures.transform(connection.getPool().authorizeWorkerAsync(request), new Function<Void, Void>() {
+			public Void apply(Void input) {
+				// The worker may have disconnected while the authorization was
+				// pending: do not link the closed connection since it has
+				// already been cleaned up.
+				if (!connection.isConnected()) {
+					return null;
+				}
+				linkConnectionToUser(connection, request);
+				LOGGER.info("Authorized worker: " + request.getUsername());
+				poolSwitchingStrategyManager.onWorkerAuthorized(connection, request.getUsername());
+				if (preAuthorizeOnStandbyPools) {
+					preAuthorizeUserOnStandbyPools(users.getUser(request.getUsername()));
+				}
+				return null;
+			}
+		});
 	}
 	
 	public void updatePoolForConnection(WorkerConnection connection){
 		
 		try {
 			Pool p = poolSwitchingStrategyManager.getPoolForConnection(connection);
-			if (!p.equals(connection.getPool())){
+			if (connection.getPool() == null || !p.equals(connection.getPool().getRootPool())){
 				LOGGER.info("Moving worker {} to pool {}", connection.getConnectionName(), p.getName());
 				switchPoolForConnection(connection, p);
 			}
@@ -287,13 +473,70 @@ public class ProxyInstance {
 	 * @param request
 	 */
 	private void linkConnectionToUser(WorkerConnection connection, MiningAuthorizeRequest request) {
-		User user = users.get(request.getUsername());
-		if (user == null) {
-			user = new User(request.getUsername(), configuration.getAlgo());
-			user.setSamplingHashesPeriod(configuration.getUserHashrateSamplingPeriod());
-			users.put(request.getUsername(), user);
+		User user = users.attach(request.getUsername(), connection);
+		user.setLastPassword(request.getPassword());
+	}
+
+	/**
+	 * Authorize the given user on the upstream sessions of all the ready pools,
+	 * so that a failover to one of these pools does not wait for the
+	 * authorization of the workers. Do nothing if hot standby is disabled.
+	 * 
+	 * @param user
+	 */
+	private void preAuthorizeUserOnStandbyPools(User user) {
+		if (user != null && Boolean.TRUE.equals(configuration.isHotStandbyPools())) {
+			for (Pool pool : getPools()) {
+				if (pool.isEnabled() && pool.isReady()) {
+					for (Pool session : pool.getUpstreamSessions()) {
+						preAuthorizeUser(session, user);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Authorize all the known users on the given upstream session. Do nothing
+	 * if hot standby is disabled.
+	 * 
+	 * @param session
+	 */
+	private void preAuthorizeUsersOnSession(Pool session) {
+		if (Boolean.TRUE.equals(configuration.isHotStandbyPools())) {
+			Collection<User> knownUsers = getUsers();
+			if (!knownUsers.isEmpty()) {
+				LOGGER.info("Pre-authorizing {} users on pool {}.", knownUsers.size(), session.getName());
+				for (User user : knownUsers) {
+					preAuthorizeUser(session, user);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Authorize the user on the given upstream session. The pool ignores the
+	 * request if the user is already authorized or if the worker names are not
+	 * appended. A failure is only logged, the authorization will be retried
+	 * when a worker connection is bound to the pool.
+	 * 
+	 * @param session
+	 * @param user
+	 */
+	private void preAuthorizeUser(final Pool session, final User user) {
+		if (session.isReady()) {
+			MiningAuthorizeRequest request = new MiningAuthorizeRequest();
+			request.setUsername(user.getName());
+			request.setPassword(user.getLastPassword());
+			Futures.addCallback(session.authorizeWorkerAsync(request), new FutureCallback<Void>() {
+				public void onSuccess(Void result) {
+				}
+
+				public void onFailure(Throwable t) {
+					LOGGER.info("Failed to pre-authorize user {} on pool {}. {}", user.getName(), session.getName(), t.getMessage());
+				}
+			});
 		}
-		user.addConnection(connection);
 	}
 
 	/**
@@ -304,40 +547,227 @@ public class ProxyInstance {
 	 * @param workerRequest
 	 */
 	public void onSubmitRequest(final WorkerConnection workerConnection, final MiningSubmitRequest workerRequest) {
-		if (workerConnection.getPool() != null && workerConnection.getPool().isReady()) {
-			for (int i = 0; i < workerConnection.getPool().getNumberOfSubmit(); i++) {
-				workerConnection.getPool().submitShare(workerRequest, new ResponseReceivedCallback<MiningSubmitRequest, MiningSubmitResponse>() {
-					public void onResponseReceived(MiningSubmitRequest request, MiningSubmitResponse response) {
-						updateShareLists(workerRequest, response, workerConnection);
-						workerConnection.onPoolSubmitResponse(workerRequest, response);
-					}
-				});
+		processSubmit(workerConnection.getPool(), workerConnection, workerRequest);
+	}
 
-			}
-		} else {
+	/**
+	 * Called when a share held during the reconnection of the pool can be
+	 * sent. The share is sent to the given pool, even if the connection has
+	 * been moved to another pool in the meantime.
+	 * 
+	 * @param pool
+	 * @param workerConnection
+	 * @param workerRequest
+	 */
+	public void onBufferedShareReplay(Pool pool, WorkerConnection workerConnection, MiningSubmitRequest workerRequest) {
+		processSubmit(pool, workerConnection, workerRequest);
+	}
+
+	/**
+	 * Called when a share held during the reconnection of the pool has
+	 * expired.
+	 * 
+	 * @param workerConnection
+	 * @param workerRequest
+	 * @param cause
+	 */
+	public void onBufferedShareExpired(WorkerConnection workerConnection, MiningSubmitRequest workerRequest, String cause) {
+		LOGGER.info("REJECTED share. Held share from {}@{} expired. {}", workerRequest.getWorkerName(), workerConnection.getConnectionName(),
+				cause);
+		if (workerConnection.isConnected()) {
+			rejectShare(workerConnection, workerRequest, JsonRpcError.ErrorCode.UNKNOWN, cause);
+		}
+	}
+
+	/**
+	 * Check the share and send it to the given pool.
+	 * 
+	 * @param pool
+	 * @param workerConnection
+	 * @param workerRequest
+	 */
+	private void processSubmit(Pool pool, final WorkerConnection workerConnection, final MiningSubmitRequest workerRequest) {
+		if (pool != null && !pool.isReady() && pool.bufferShare(workerConnection, workerRequest)) {
+			// The share is sent if the pool resumes the session.
+			LOGGER.debug("Share from {}@{} held until pool {} is reconnected.", workerRequest.getWorkerName(),
+					workerConnection.getConnectionName(), pool.getName());
+		} else if (pool == null || !pool.isReady()) {
 			LOGGER.warn("REJECTED share. Share submit from {}@{} dropped since pool {} is not ready.", workerRequest.getWorkerName(),
-					workerConnection.getConnectionName(), workerConnection.getPool());
+					workerConnection.getConnectionName(), pool);
 
 			// Notify the worker that the target pool is no more ready
-			MiningSubmitResponse fakePoolResponse = new MiningSubmitResponse();
-			fakePoolResponse.setId(workerRequest.getId());
-			fakePoolResponse.setIsAccepted(false);
-			JsonRpcError error = new JsonRpcError();
-			error.setCode(JsonRpcError.ErrorCode.UNKNOWN.getCode());
-			error.setMessage("The target pool is no more ready.");
-			fakePoolResponse.setErrorRpc(error);
-			workerConnection.onPoolSubmitResponse(workerRequest, fakePoolResponse);
+			rejectShare(workerConnection, workerRequest, JsonRpcError.ErrorCode.UNKNOWN, "The target pool is no more ready.");
+		} else if (Boolean.TRUE.equals(configuration.isRejectStaleShares()) && !pool.isJobLive(workerRequest.getJobId())) {
+			// The pool would reject the share. Do not send it to keep the
+			// reject ratio of the pool low.
+			LOGGER.info("REJECTED share. Stale share from {}@{} on job {} of pool {}.", workerRequest.getWorkerName(),
+					workerConnection.getConnectionName(), workerRequest.getJobId(), pool.getName());
+			rejectShare(workerConnection, workerRequest, JsonRpcError.ErrorCode.JOB_NOT_FOUND, "Stale share.");
+		} else if (Boolean.TRUE.equals(configuration.isRejectDuplicateShares()) && !pool.registerShare(workerRequest)) {
+			LOGGER.info("REJECTED share. Duplicate share from {}@{} on job {} of pool {}.", workerRequest.getWorkerName(),
+					workerConnection.getConnectionName(), workerRequest.getJobId(), pool.getName());
+			rejectShare(workerConnection, workerRequest, JsonRpcError.ErrorCode.DUPLICATE_SHARE, "Duplicate share.");
+		} else if (isShareValidationEnabled(workerConnection)) {
+			validateAndSubmitShare(pool, workerConnection, workerRequest);
+		} else {
+			submitShare(pool, workerConnection, workerRequest, false);
+		}
+	}
+
+	/**
+	 * Return true if the difficulty of the stratum worker connections is
+	 * computed by the proxy. It needs the share validation to find the shares
+	 * reaching the pool difficulty.
+	 * 
+	 * @return
+	 */
+	public boolean isVardiffEnabled() {
+		return Boolean.TRUE.equals(configuration.isVardiffEnabled()) && shareValidator != null;
+	}
+
+	/**
+	 * Return true if the shares of the given connection have to be validated
+	 * before being sent to the pool.
+	 * 
+	 * @param workerConnection
+	 * @return
+	 */
+	private boolean isShareValidationEnabled(WorkerConnection workerConnection) {
+		boolean result = false;
+		if (shareValidator != null) {
+			if (workerConnection.getWorkerDifficulty() != null) {
+				result = true;
+			} else if (workerConnection instanceof GetworkWorkerConnection) {
+				result = Boolean.TRUE.equals(configuration.getValidateGetworkShares());
+			} else {
+				result = Boolean.TRUE.equals(configuration.getValidateStratumShares());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Validate the share, then send it to the pool if it reaches the pool
+	 * difficulty. A share only reaching the worker difficulty is accepted
+	 * locally. If the validation is not possible (too many shares waiting to
+	 * be validated or failure), the share is sent without validation.
+	 * 
+	 * @param pool
+	 * @param workerConnection
+	 * @param workerRequest
+	 */
+	private void validateAndSubmitShare(final Pool pool, final WorkerConnection workerConnection, final MiningSubmitRequest workerRequest) {
+		final Double workerDifficulty = workerConnection.getWorkerDifficulty();
+		ListenableFuture<ShareValidator.Result> validation = null;
+		try {
+			validation = shareValidator.validate(pool, workerRequest, workerDifficulty);
+		} catch (RejectedExecutionException e) {
+			LOGGER.debug("Too many shares waiting for validation. Share from {}@{} sent without validation.", workerRequest.getWorkerName(),
+					workerConnection.getConnectionName());
+			submitShare(pool, workerConnection, workerRequest, false);
+			return;
+		}
+
+		Futures.addCallback(validation, new FutureCallback<ShareValidator.Result>() {
+			public void onSuccess(ShareValidator.Result result) {
+				switch (result) {
+				case POOL_SHARE:
+					if (workerDifficulty != null) {
+						onWorkerShareAccepted(workerConnection, workerRequest, workerDifficulty);
+					}
+					submitShare(pool, workerConnection, workerRequest, workerDifficulty != null);
+					break;
+				case WORKER_SHARE:
+					// Counted for the hashrate of the worker, but useless for
+					// the pool.
+					onWorkerShareAccepted(workerConnection, workerRequest, workerDifficulty);
+					acceptShare(workerConnection, workerRequest);
+					break;
+				case LOW_DIFFICULTY:
+					LOGGER.info("REJECTED share. Low difficulty share from {}@{} on pool {}.", workerRequest.getWorkerName(),
+							workerConnection.getConnectionName(), pool.getName());
+					rejectShare(workerConnection, workerRequest, JsonRpcError.ErrorCode.LOW_DIFFICULTY_SHARE, "Low difficulty share.");
+					break;
+				default:
+					submitShare(pool, workerConnection, workerRequest, false);
+				}
+			}
+
+			public void onFailure(Throwable t) {
+				LOGGER.debug("Failed to validate the share from {}@{}. Share sent without validation.", workerRequest.getWorkerName(),
+						workerConnection.getConnectionName(), t);
+				submitShare(pool, workerConnection, workerRequest, false);
+			}
+		});
+	}
+
+	/**
+	 * Send the share to the pool. If the share has already been counted at the
+	 * worker difficulty, only the share list of the pool is updated with the
+	 * pool response.
+	 * 
+	 * @param pool
+	 * @param workerConnection
+	 * @param workerRequest
+	 * @param isCountedForWorker
+	 */
+	private void submitShare(Pool pool, final WorkerConnection workerConnection, final MiningSubmitRequest workerRequest,
+			final boolean isCountedForWorker) {
+		for (int i = 0; i < pool.getNumberOfSubmit(); i++) {
+			pool.submitShare(workerRequest, new ResponseReceivedCallback<MiningSubmitRequest, MiningSubmitResponse>() {
+				public void onResponseReceived(MiningSubmitRequest request, MiningSubmitResponse response) {
+					updateShareLists(workerRequest, response, workerConnection, isCountedForWorker);
+					workerConnection.onPoolSubmitResponse(workerRequest, response);
+				}
+			});
 		}
 	}
 
 	/**
-	 * Update the share lists of all pools, users and worker connections.
+	 * Accept the share locally, without sending it to the pool.
+	 * 
+	 * @param workerConnection
+	 * @param workerRequest
+	 */
+	private void acceptShare(WorkerConnection workerConnection, MiningSubmitRequest workerRequest) {
+		MiningSubmitResponse fakePoolResponse = new MiningSubmitResponse();
+		fakePoolResponse.setId(workerRequest.getId());
+		fakePoolResponse.setIsAccepted(true);
+		workerConnection.onPoolSubmitResponse(workerRequest, fakePoolResponse);
+	}
+
+	/**
+	 * Reject the share locally, without sending it to the pool.
+	 * 
+	 * @param workerConnection
+	 * @param workerRequest
+	 * @param errorCode
+	 * @param message
+	 */
+	private void rejectShare(WorkerConnection workerConnection, MiningSubmitRequest workerRequest, JsonRpcError.ErrorCode errorCode,
+			String message) {
+		MiningSubmitResponse fakePoolResponse = new MiningSubmitResponse();
+		fakePoolResponse.setId(workerRequest.getId());
+		fakePoolResponse.setIsAccepted(false);
+		JsonRpcError error = new JsonRpcError();
+		error.setCode(errorCode.getCode());
+		error.setMessage(message);
+		fakePoolResponse.setErrorRpc(error);
+		workerConnection.onPoolSubmitResponse(workerRequest, fakePoolResponse);
+	}
+
+	/**
+	 * Update the share lists of all pools, users and worker connections. If
+	 * the share has already been counted at the worker difficulty, only the
+	 * pool share list is updated.
 	 * 
 	 * @param request
 	 * @param response
 	 * @param workerConnection
+	 * @param isCountedForWorker
 	 */
-	private void updateShareLists(MiningSubmitRequest request, MiningSubmitResponse response, WorkerConnection workerConnection) {
+	private void updateShareLists(MiningSubmitRequest request, MiningSubmitResponse response, WorkerConnection workerConnection,
+			boolean isCountedForWorker) {
 		if (workerConnection.getPool() != null) {
 			Share share = new Share();
 			share.setDifficulty(workerConnection.getPool().getDifficulty());
@@ -345,15 +775,40 @@ public class ProxyInstance {
 
 			boolean isAccepted = response.getIsAccepted() != null && response.getIsAccepted();
 
-			workerConnection.updateShareLists(share, isAccepted);
+			if (!isCountedForWorker) {
+				workerConnection.updateShareLists(share, isAccepted);
+
+				User user = users.getUser(request.getWorkerName());
+				if (user != null) {
+					user.updateShareLists(share, isAccepted);
+				}
+			}
 
 			workerConnection.getPool().updateShareLists(share, isAccepted);
+		}
+	}
 
-			User user = users.get(request.getWorkerName());
-			if (user != null) {
-				user.updateShareLists(share, isAccepted);
-			}
+	/**
+	 * Count the share at the worker difficulty in the share lists of the
+	 * worker connection and its user, and notify the connection.
+	 * 
+	 * @param workerConnection
+	 * @param request
+	 * @param workerDifficulty
+	 */
+	private void onWorkerShareAccepted(WorkerConnection workerConnection, MiningSubmitRequest request, double workerDifficulty) {
+		Share share = new Share();
+		share.setDifficulty(workerDifficulty);
+		share.setTime(System.currentTimeMillis());
+
+		workerConnection.updateShareLists(share, true);
+
+		User user = users.getUser(request.getWorkerName());
+		if (user != null) {
+			user.updateShareLists(share, true);
 		}
+
+		workerConnection.onWorkerShareAccepted();
 	}
 
 	/**
@@ -367,6 +822,10 @@ public class ProxyInstance {
 
 		MiningSetDifficultyNotification notification = new MiningSetDifficultyNotification();
 		notification.setDifficulty(setDifficulty.getDifficulty());
+		// Encoded once on the first send, then the same bytes are written to
+		// all the connections.
+		EncodedNotification<MiningSetDifficultyNotification> encodedNotification = new EncodedNotification<MiningSetDifficultyNotification>(
+				notification);
 
 		Set<WorkerConnection> connections = getPoolWorkerConnections(pool);
 
@@ -374,7 +833,7 @@ public class ProxyInstance {
 			LOGGER.debug("No worker connections on pool {}. Do not send setDifficulty.", pool.getName());
 		} else {
 			for (WorkerConnection connection : connections) {
-				connection.onPoolDifficultyChanged(notification);
+				connection.onPoolDifficultyChanged(encodedNotification);
 			}
 		}
 		
@@ -431,6 +890,9 @@ public class ProxyInstance {
 		notification.setMerkleBranches(notify.getMerkleBranches());
 		notification.setNetworkDifficultyBits(notify.getNetworkDifficultyBits());
 		notification.setPreviousHash(notify.getPreviousHash());
+		// Encoded once on the first send, then the same bytes are written to
+		// all the connections.
+		EncodedNotification<MiningNotifyNotification> encodedNotification = new EncodedNotification<MiningNotifyNotification>(notification);
 
 		Set<WorkerConnection> connections = getPoolWorkerConnections(pool);
 
@@ -438,7 +900,7 @@ public class ProxyInstance {
 			LOGGER.debug("No worker connections on pool {}. Do not send notify.", pool.getName());
 		} else {
 			for (WorkerConnection connection : connections) {
-				connection.onPoolNotify(notification);
+				connection.onPoolNotify(encodedNotification);
 			}
 		}
 	}
@@ -450,11 +912,15 @@ public class ProxyInstance {
 	 * @param cause
 	 */
 	public void onWorkerDisconnection(final WorkerConnection workerConnection, final Throwable cause) {
-		Set<WorkerConnection> connections = getPoolWorkerConnections(workerConnection.getPool());
+		// Do not create the connection set of the pool if it does not exist
+		// (closed upstream session)
+		Set<WorkerConnection> connections = workerConnection.getPool() != null ? poolWorkerConnections.get(workerConnection.getPool()) : null;
 		if (connections != null) {
 			connections.remove(workerConnection);
 		}
 		ProxyInstance.this.workerConnections.remove(workerConnection);
+		poolSwitchingStrategyManager.onWorkerDisconnected(workerConnection);
+		users.detach(workerConnection);
 		LOGGER.info("Worker connection {} closed. {} connections active on pool {}. Cause: {}", workerConnection.getConnectionName(),
 				connections == null ? 0 : connections.size(), workerConnection.getPool() != null ? workerConnection.getPool().getName() : "None",
 				cause != null ? cause.getMessage() : "Unknown");
@@ -463,16 +929,87 @@ public class ProxyInstance {
 	/**
 	 * Called by pool when its state changes
 	 */
-	public void onPoolStateChange(Pool pool) {
+	public void onPoolStateChange(final Pool pool) {
 		if (pool.isReady()) {
+			Task pendingPoolDownTask = pendingPoolDownTasks.remove(pool);
+			if (pendingPoolDownTask != null) {
+				pendingPoolDownTask.cancel();
+			}
 			LOGGER.warn("PoolConfiguration {} is UP.", pool.getName());
+			preAuthorizeUsersOnSession(pool);
 			poolSwitchingStrategyManager.onPoolUp(pool);
+		} else if (pool.isShareBufferEnabled() && !isOtherPoolReady(pool)) {
+			// No pool to move the connections to, so they would be closed.
+			// The pool may resume its session quickly: keep the connections
+			// on it while the shares are held.
+			LOGGER.warn("PoolConfiguration {} is DOWN. Holding the shares up to {} ms before moving connections to another one.",
+					pool.getName(), pool.getShareBufferDeadline());
+			Task poolDownTask = new Task() {
+				public void run() {
+					if (pendingPoolDownTasks.remove(pool, this) && !pool.isReady()) {
+						LOGGER.warn("PoolConfiguration {} is still DOWN. Moving connections to another one.", pool.getName());
+						poolSwitchingStrategyManager.onPoolDown(pool);
+					}
+				}
+			};
+			poolDownTask.setName("PoolDownTask-" + pool.getName());
+			if (pendingPoolDownTasks.putIfAbsent(pool, poolDownTask) == null) {
+				Timer.getInstance().schedule(poolDownTask, pool.getShareBufferDeadline());
+			}
 		} else {
 			LOGGER.warn("PoolConfiguration {} is DOWN. Moving connections to another one.", pool.getName());
 			poolSwitchingStrategyManager.onPoolDown(pool);
 		}
 	}
 
+	/**
+	 * Return true if a pool other than the given one is ready.
+	 * 
+	 * @param pool
+	 * @return
+	 */
+	private boolean isOtherPoolReady(Pool pool) {
+		boolean result = false;
+		synchronized (pools) {
+			for (Pool otherPool : pools) {
+				if (otherPool != pool && otherPool.isEnabled() && otherPool.isReady()) {
+					result = true;
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Called when an additional upstream session of a pool is ready.
+	 * 
+	 * @param session
+	 */
+	public void onPoolSessionUp(Pool session) {
+		LOGGER.info("Upstream session {} is UP.", session.getName());
+		preAuthorizeUsersOnSession(session);
+	}
+
+	/**
+	 * Called when an additional upstream session of a pool is closed. Its
+	 * worker connections are closed, they will be bound to another session on
+	 * reconnection.
+	 * 
+	 * @param session
+	 */
+	public void onPoolSessionDown(Pool session) {
+		Set<WorkerConnection> connections = poolWorkerConnections.remove(session);
+		LOGGER.warn("Upstream session {} is DOWN. Closing its {} worker connections.", session.getName(), connections == null ? 0
+				: connections.size());
+		if (connections != null) {
+			for (WorkerConnection connection : connections) {
+				connection.close();
+				onWorkerDisconnection(connection, new Exception("The upstream session " + session.getName() + " is down."));
+			}
+		}
+	}
+
 	/**
 	 * Called when a pool is now stable.
 	 * 
@@ -489,10 +1026,14 @@ public class ProxyInstance {
 	 * @param connection
 	 * @param newPool
 	 */
-	public void switchPoolForConnection(WorkerConnection connection, Pool newPool) throws TooManyWorkersException,
+	public void switchPoolForConnection(final WorkerConnection connection, Pool newPool) throws TooManyWorkersException,
 			ChangeExtranonceNotSupportedException {
-		// If the old pool is the same as the new pool, do nothing.
-		if (!newPool.equals(connection.getPool())) {
+		// If the old pool is the same as the new pool (or one of its upstream
+		// sessions), do nothing.
+		if (connection.getPool() == null || !newPool.getRootPool().equals(connection.getPool().getRootPool())) {
+			// Bind the connection on a session of the pool with a free slot.
+			newPool = newPool.getSessionForNewWorker();
+
 			// Remove the connection from the old pool connection list.
 			Set<WorkerConnection> oldPoolConnections = getPoolWorkerConnections(connection.getPool());
 			if (oldPoolConnections != null) {
@@ -515,12 +1056,26 @@ public class ProxyInstance {
 			// has already done it). But it may be the first time this
 			// connection is bound to this pool, so the username on this
 			// connection is not yet authorized on the pool.
-			for (Entry<String, String> entry : connection.getAuthorizedWorkers().entrySet()) {
+			// The authorizations are not waited: the submits of the worker
+			// wait for the authorization in progress on the pool. The user
+			// has already been pre-authorized on the standby pools when the
+			// worker has been authorized the first time.
+			for (final Entry<String, String> entry : connection.getAuthorizedWorkers().entrySet()) {
 				MiningAuthorizeRequest fakeRequest = new MiningAuthorizeRequest();
 				fakeRequest.setUsername(entry.getKey());
 				fakeRequest.setPassword(entry.getValue());
+				final Pool targetPool = newPool;
 				try {
-					onAuthorizeRequest(connection, fakeRequest);
+					Futures.addCallback(authorizeWorker(connection, fakeRequest, false), new FutureCallback<Void>() {
+						public void onSuccess(Void result) {
+						}
+
+						public void onFailure(Throwable t) {
+							LOGGER.error("Authorization of user {} failed on pool {} when rebinding connection {}. Closing the connection. Cause: {}",
+									entry.getKey(), targetPool.getName(), connection.getConnectionName(), t.getMessage());
+							connection.close();
+						}
+					});
 				} catch (AuthorizationException e) {
 					LOGGER.error("Authorization of user {} failed on pool {} when rebinding connection {}. Closing the connection. Cause: {}",
 							entry.getKey(), newPool.getName(), connection.getConnectionName(), e.getMessage());
@@ -612,9 +1167,16 @@ public class ProxyInstance {
 	 * @return
 	 */
 	public int getNumberOfWorkerConnectionsOnPool(String poolName) {
+		int result = 0;
 		Pool pool = getPool(poolName);
-		Set<WorkerConnection> connections = getPoolWorkerConnections(pool);
-		return connections == null ? 0 : connections.size();
+		if (pool != null) {
+			// Count the connections of all the upstream sessions of the pool.
+			for (Pool session : pool.getUpstreamSessions()) {
+				Set<WorkerConnection> connections = poolWorkerConnections.get(session);
+				result += connections == null ? 0 : connections.size();
+			}
+		}
+		return result;
 	}
 
 	/**
@@ -627,16 +1189,23 @@ public class ProxyInstance {
 	}
 
 	/**
-	 * Return all authorized users.
+	 * Return the executor computing the share hashes, or null if the proxy
+	 * does not compute any.
 	 * 
 	 * @return
 	 */
-	public List<User> getUsers() {
-		List<User> result = new ArrayList<>(users.size());
-		synchronized (users) {
-			result.addAll(users.values());
-		}
-		return result;
+	public ShareValidationExecutor getShareValidationExecutor() {
+		return shareValidationExecutor;
+	}
+
+	/**
+	 * Return all authorized users. The returned collection is a read-only view
+	 * of the users, not a copy.
+	 * 
+	 * @return
+	 */
+	public Collection<User> getUsers() {
+		return users.getUsers();
 	}
 
 	/**
@@ -663,6 +1232,25 @@ public class ProxyInstance {
 		poolToAdd.setWorkerSeparator(addPoolDTO.getWorkerNameSeparator() != null ? addPoolDTO.getWorkerNameSeparator()
 				: Constants.DEFAULT_WORKER_NAME_SEPARTOR);
 		poolToAdd.setUseWorkerPassword(addPoolDTO.getUseWorkerPassword() != null ? addPoolDTO.getUseWorkerPassword() : false);
+		if (configuration.getExtranonce1TailSize() != null) {
+			poolToAdd.setExtranonce1TailSize(configuration.getExtranonce1TailSize());
+		}
+		if (configuration.getMaxWorkersPerUpstreamSession() != null) {
+			poolToAdd.setMaxWorkersPerUpstreamSession(configuration.getMaxWorkersPerUpstreamSession());
+		}
+		if (configuration.getMaxUpstreamSessionsPerPool() != null) {
+			poolToAdd.setMaxUpstreamSessionsPerPool(configuration.getMaxUpstreamSessionsPerPool());
+		}
+		if (configuration.getMaxInFlightSubmits() != null) {
+			poolToAdd.setMaxInFlightSubmits(configuration.getMaxInFlightSubmits());
+		}
+		poolToAdd.setSubmitBackpressurePolicy(SubmitPipeline.BackpressurePolicy.fromName(configuration.getSubmitBackpressurePolicy()));
+		if (configuration.getShareBufferSize() != null) {
+			poolToAdd.setShareBufferSize(configuration.getShareBufferSize());
+		}
+		if (configuration.getShareBufferDeadline() != null) {
+			poolToAdd.setShareBufferDeadline(configuration.getShareBufferDeadline());
+		}
 
 		poolToAdd.setPriority(pools.size());
 		
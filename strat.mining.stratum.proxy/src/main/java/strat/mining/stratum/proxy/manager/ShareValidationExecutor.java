@@ -0,0 +1,209 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.manager;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import strat.mining.stratum.proxy.CryptoAlgorithm;
+import strat.mining.stratum.proxy.json.MiningSubmitRequest;
+import strat.mining.stratum.proxy.utils.mining.DifficultyUtils;
+import strat.mining.stratum.proxy.worker.GetworkJobTemplate;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Compute the block header hashes of the shares (validation and real
+ * difficulty) out of the threads of the worker and pool connections. A Scrypt
+ * hash takes far longer than a share read, so it must not stall the sockets.
+ * 
+ * The hashes are computed by a fixed pool of threads dedicated to the
+ * algorithm of the proxy, with a bounded queue. When the queue is full, the
+ * task is not queued: a RejectedExecutionException is thrown and the task is
+ * counted as skipped, so the caller can go on without the hash.
+ * 
+ * @author Strat
+ * 
+ */
+public class ShareValidationExecutor {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ShareValidationExecutor.class);
+
+	// Log the saturation of the queue once every this number of skipped tasks.
+	private static final int SKIPPED_TASKS_LOG_PERIOD = 1000;
+
+	private final CryptoAlgorithm algo;
+
+	private final ThreadPoolExecutor threadPool;
+	private final ListeningExecutorService executor;
+	private final int queueSize;
+
+	private final AtomicLong numberOfExecutedTasks;
+	private final AtomicLong numberOfSkippedTasks;
+	// In nanoseconds, from the submit to the end of the task.
+	private final AtomicLong totalLatency;
+	private final AtomicLong maxLatency;
+
+	/**
+	 * Create an executor computing the hashes of the given algorithm.
+	 * 
+	 * @param algo
+	 * @param numberOfThreads
+	 *            the number of threads computing the hashes.
+	 * @param queueSize
+	 *            the max number of tasks waiting for a thread.
+	 */
+	public ShareValidationExecutor(CryptoAlgorithm algo, int numberOfThreads, int queueSize) {
+		this.algo = algo;
+		this.queueSize = Math.max(1, queueSize);
+		this.numberOfExecutedTasks = new AtomicLong(0);
+		this.numberOfSkippedTasks = new AtomicLong(0);
+		this.totalLatency = new AtomicLong(0);
+		this.maxLatency = new AtomicLong(0);
+
+		this.threadPool = new ThreadPoolExecutor(Math.max(1, numberOfThreads), Math.max(1, numberOfThreads), 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(this.queueSize), new ThreadFactoryBuilder()
+						.setNameFormat("ShareValidationThread-" + algo + "-%s").setDaemon(true).build());
+		threadPool.allowCoreThreadTimeOut(true);
+		this.executor = MoreExecutors.listeningDecorator(threadPool);
+	}
+
+	/**
+	 * Run the given task on the validation threads.
+	 * 
+	 * @param task
+	 * @return
+	 * @throws RejectedExecutionException
+	 *             if the queue is full. The task is skipped.
+	 */
+	public <T> ListenableFuture<T> submit(final Callable<T> task) throws RejectedExecutionException {
+		final long submitTime = System.nanoTime();
+		try {
+			return executor.submit(new Callable<T>() {
+				public T call() throws Exception {
+					try {
+						return task.call();
+					} finally {
+						recordLatency(System.nanoTime() - submitTime);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			long skipped = numberOfSkippedTasks.incrementAndGet();
+			if (skipped % SKIPPED_TASKS_LOG_PERIOD == 1) {
+				LOGGER.warn("Share validation queue full ({} tasks). {} tasks skipped since start.", queueSize, skipped);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Compute the real difficulty of the share submitted on the given job
+	 * template. The template is copied before returning, so it can be updated
+	 * by the caller while the hash is computed.
+	 * 
+	 * @param jobTemplate
+	 * @param extranonce1Tail
+	 * @param request
+	 * @return
+	 * @throws RejectedExecutionException
+	 *             if the queue is full.
+	 */
+	public ListenableFuture<Double> getRealShareDifficulty(GetworkJobTemplate jobTemplate, final String extranonce1Tail,
+			final MiningSubmitRequest request) throws RejectedExecutionException {
+		final GetworkJobTemplate template = new GetworkJobTemplate(jobTemplate);
+		return submit(new Callable<Double>() {
+			public Double call() throws Exception {
+				return DifficultyUtils.getRealShareDifficulty(template, extranonce1Tail, request.getExtranonce2(), request.getNtime(),
+						request.getNonce(), algo);
+			}
+		});
+	}
+
+	private void recordLatency(long latency) {
+		numberOfExecutedTasks.incrementAndGet();
+		totalLatency.addAndGet(latency);
+		long max = maxLatency.get();
+		while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+			max = maxLatency.get();
+		}
+	}
+
+	public CryptoAlgorithm getAlgo() {
+		return algo;
+	}
+
+	/**
+	 * Return the number of tasks waiting for a thread.
+	 * 
+	 * @return
+	 */
+	public int getQueueDepth() {
+		return threadPool.getQueue().size();
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public long getNumberOfExecutedTasks() {
+		return numberOfExecutedTasks.get();
+	}
+
+	/**
+	 * Return the number of tasks not executed because the queue was full.
+	 * 
+	 * @return
+	 */
+	public long getNumberOfSkippedTasks() {
+		return numberOfSkippedTasks.get();
+	}
+
+	/**
+	 * Return the average time in milliseconds between the submit and the end
+	 * of a task.
+	 * 
+	 * @return
+	 */
+	public double getAverageLatency() {
+		long executed = numberOfExecutedTasks.get();
+		return executed > 0 ? totalLatency.get() / (executed * 1000000d) : 0;
+	}
+
+	/**
+	 * Return the max time in milliseconds between the submit and the end of a
+	 * task.
+	 * 
+	 * @return
+	 */
+	public double getMaxLatency() {
+		return maxLatency.get() / 1000000d;
+	}
+
+}
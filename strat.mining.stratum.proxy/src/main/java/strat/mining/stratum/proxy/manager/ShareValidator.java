@@ -0,0 +1,179 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.manager;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import strat.mining.stratum.proxy.CryptoAlgorithm;
+import strat.mining.stratum.proxy.json.MiningSubmitRequest;
+import strat.mining.stratum.proxy.pool.BlockHeaderTemplate;
+import strat.mining.stratum.proxy.pool.Pool;
+import strat.mining.stratum.proxy.utils.mining.DifficultyUtils;
+import strat.mining.stratum.proxy.utils.mining.SHA256Engine;
+import strat.mining.stratum.proxy.utils.mining.UInt256;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Check that the shares submitted by the workers reach the pool difficulty,
+ * or the difficulty of their worker connection.
+ * The block header of the share is rebuilt from the pool job and the
+ * submitted values, then hashed.
+ * 
+ * The hashes are computed by the {@link ShareValidationExecutor}, so the
+ * validation never blocks the threads reading the worker connections.
+ * 
+ * @author Strat
+ * 
+ */
+public class ShareValidator {
+
+	private final CryptoAlgorithm algo;
+
+	private final ShareValidationExecutor executor;
+
+	private static final int MAX_CACHED_TARGETS = 256;
+
+	// The targets of the pool and worker difficulties.
+	private final Map<Double, UInt256> targets;
+
+	// The hash of the share being checked, by validation thread.
+	private static final ThreadLocal<byte[]> HASHES = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[SHA256Engine.DIGEST_LENGTH];
+		}
+	};
+
+	/**
+	 * Create a validator of the shares of the given algorithm.
+	 * 
+	 * @param executor
+	 *            the executor computing the hashes of the algorithm.
+	 */
+	public ShareValidator(ShareValidationExecutor executor) {
+		if (!isSupported(executor.getAlgo())) {
+			throw new IllegalArgumentException("Share validation is not supported for the algorithm " + executor.getAlgo());
+		}
+		this.algo = executor.getAlgo();
+		this.executor = executor;
+		this.targets = new ConcurrentHashMap<Double, UInt256>();
+	}
+
+	/**
+	 * Return true if the shares of the given algorithm can be validated.
+	 * 
+	 * @param algo
+	 * @return
+	 */
+	public static boolean isSupported(CryptoAlgorithm algo) {
+		return algo == CryptoAlgorithm.SHA256 || algo == CryptoAlgorithm.Scrypt;
+	}
+
+	/**
+	 * Validate the share submitted on the given pool. The worker difficulty is
+	 * the difficulty of the worker connection if lower than the pool one, else
+	 * null.
+	 * 
+	 * @param pool
+	 * @param request
+	 * @param workerDifficulty
+	 * @return
+	 * @throws RejectedExecutionException
+	 *             if too many shares are waiting to be validated.
+	 */
+	public ListenableFuture<Result> validate(final Pool pool, final MiningSubmitRequest request, final Double workerDifficulty)
+			throws RejectedExecutionException {
+		return executor.submit(new Callable<Result>() {
+			public Result call() throws Exception {
+				return check(pool, request, workerDifficulty);
+			}
+		});
+	}
+
+	/**
+	 * Check the share against the pool difficulty, then against the worker
+	 * difficulty if any. The pool difficulty is the lowest of the difficulty
+	 * when the job has been received and the current one.
+	 * 
+	 * @param pool
+	 * @param request
+	 * @param workerDifficulty
+	 * @return
+	 */
+	public Result check(Pool pool, MiningSubmitRequest request, Double workerDifficulty) {
+		BlockHeaderTemplate template = pool.getBlockHeaderTemplate(request.getJobId());
+		if (template == null) {
+			return Result.UNCHECKED;
+		}
+
+		double difficulty = template.getDifficulty();
+		Double currentDifficulty = pool.getDifficulty();
+		if (currentDifficulty != null && (difficulty <= 0 || currentDifficulty < difficulty)) {
+			difficulty = currentDifficulty;
+		}
+		if (difficulty <= 0) {
+			return Result.UNCHECKED;
+		}
+
+		byte[] header = template.buildHeader(request.getExtranonce2(), request.getNtime(), request.getNonce());
+		byte[] hash = HASHES.get();
+		DifficultyUtils.hashBlockHeader(header, algo, hash);
+		Result result = Result.LOW_DIFFICULTY;
+		if (getTarget(difficulty).compareToLittleEndian(hash, 0) >= 0) {
+			result = Result.POOL_SHARE;
+		} else if (workerDifficulty != null && workerDifficulty < difficulty && getTarget(workerDifficulty).compareToLittleEndian(hash, 0) >= 0) {
+			result = Result.WORKER_SHARE;
+		}
+		return result;
+	}
+
+	private UInt256 getTarget(double difficulty) {
+		UInt256 target = targets.get(difficulty);
+		if (target == null) {
+			// The worker difficulties change over time. Drop the old ones.
+			if (targets.size() >= MAX_CACHED_TARGETS) {
+				targets.clear();
+			}
+			target = DifficultyUtils.getTarget(difficulty, algo);
+			targets.put(difficulty, target);
+		}
+		return target;
+	}
+
+	/**
+	 * The result of the validation of a share.
+	 * 
+	 * @author Strat
+	 * 
+	 */
+	public enum Result {
+		// The share reaches the pool difficulty.
+		POOL_SHARE,
+		// The share only reaches the worker difficulty.
+		WORKER_SHARE,
+		// The share does not reach the pool or worker difficulty.
+		LOW_DIFFICULTY,
+		// The share cannot be checked (job no more live).
+		UNCHECKED;
+	}
+
+}
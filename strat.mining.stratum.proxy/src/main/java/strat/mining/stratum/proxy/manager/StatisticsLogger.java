@@ -0,0 +1,124 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.manager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import strat.mining.stratum.proxy.pool.Pool;
+import strat.mining.stratum.proxy.utils.Timer;
+import strat.mining.stratum.proxy.utils.Timer.Task;
+
+/**
+ * Log periodically the internal statistics of the proxy (queues, latencies,
+ * skipped tasks).
+ * 
+ * @author Strat
+ * 
+ */
+public class StatisticsLogger {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StatisticsLogger.class);
+
+	private final ProxyInstance proxyManager;
+
+	// In milli seconds.
+	private final int logPeriod;
+
+	private Task logTask;
+
+	public StatisticsLogger(ProxyInstance proxyManager, int logPeriod) {
+		this.proxyManager = proxyManager;
+		this.logPeriod = logPeriod;
+	}
+
+	/**
+	 * Start to log the statistics periodically.
+	 */
+	public synchronized void start() {
+		stop();
+		scheduleTask();
+	}
+
+	/**
+	 * Stop to log the statistics.
+	 */
+	public synchronized void stop() {
+		if (logTask != null) {
+			logTask.cancel();
+			logTask = null;
+		}
+	}
+
+	/**
+	 * Schedule the log task.
+	 */
+	private synchronized void scheduleTask() {
+		logTask = new Task() {
+			public void run() {
+				try {
+					logStatistics();
+				} catch (Exception e) {
+					LOGGER.error("Error while logging the statistics.", e);
+				}
+				scheduleNextTask(this);
+			}
+		};
+		logTask.setName("StatisticsLogTask");
+		Timer.getInstance().schedule(logTask, logPeriod);
+	}
+
+	/**
+	 * Schedule the next log if the logger has not been stopped or restarted
+	 * meanwhile.
+	 * 
+	 * @param currentTask
+	 */
+	private synchronized void scheduleNextTask(Task currentTask) {
+		if (logTask == currentTask) {
+			scheduleTask();
+		}
+	}
+
+	/**
+	 * Log the current statistics.
+	 */
+	private void logStatistics() {
+		Timer timer = Timer.getInstance();
+		LOGGER.info("Timer: {} tasks executed, {} scheduled, {} waiting for a thread. Lateness: average {} ms, max {} ms.",
+				timer.getNumberOfExecutedTasks(), timer.getNumberOfScheduledTasks(), timer.getExecutorQueueDepth(),
+				String.format("%.2f", timer.getAverageLateness()), timer.getMaxLateness());
+
+		for (Pool pool : proxyManager.getPools()) {
+			LOGGER.info("Pool {}: {}/{} submits in flight, {} queued. Share buffer: {} held, {} saved, {} expired.", pool.getName(),
+					pool.getNumberOfInFlightSubmits(), pool.getMaxInFlightSubmits(), pool.getNumberOfQueuedSubmits(),
+					pool.getNumberOfBufferedShares(), pool.getNumberOfSavedShares(), pool.getNumberOfExpiredShares());
+		}
+
+		ShareValidationExecutor shareValidationExecutor = proxyManager.getShareValidationExecutor();
+		if (shareValidationExecutor != null) {
+			LOGGER.info("Share validation {}: {} tasks executed, {} skipped, {}/{} queued. Latency: average {} ms, max {} ms.",
+					shareValidationExecutor.getAlgo(), shareValidationExecutor.getNumberOfExecutedTasks(),
+					shareValidationExecutor.getNumberOfSkippedTasks(), shareValidationExecutor.getQueueDepth(),
+					shareValidationExecutor.getQueueSize(), String.format("%.2f", shareValidationExecutor.getAverageLatency()),
+					String.format("%.2f", shareValidationExecutor.getMaxLatency()));
+		}
+	}
+
+}
@@ -0,0 +1,157 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.manager;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import strat.mining.stratum.proxy.CryptoAlgorithm;
+import strat.mining.stratum.proxy.model.User;
+import strat.mining.stratum.proxy.worker.WorkerConnection;
+
+/**
+ * The users of the proxy, by name. The users and their connections are kept
+ * in concurrent maps, so the share accounting and the iterations over the
+ * users do not take any lock and do not copy the registry.
+ * 
+ * A connection is attached to a user when the user is authorized on it and
+ * detached from all its users when it is closed.
+ * 
+ * @author Strat
+ * 
+ */
+public class UserRegistry {
+
+	// Number of concurrently updatable shards of the maps.
+	private static final int CONCURRENCY_LEVEL = 64;
+
+	private final CryptoAlgorithm algo;
+
+	private final ConcurrentMap<String, User> users;
+
+	// The users attached to each connection.
+	private final ConcurrentMap<WorkerConnection, Set<User>> usersByConnection;
+
+	private final Integer samplingHashesPeriod;
+
+	/**
+	 * Create a registry of users mining with the given algorithm.
+	 * 
+	 * @param algo
+	 * @param samplingHashesPeriod
+	 *            the hashrate sampling period of the users.
+	 */
+	public UserRegistry(CryptoAlgorithm algo, Integer samplingHashesPeriod) {
+		this.algo = algo;
+		this.samplingHashesPeriod = samplingHashesPeriod;
+		this.users = new ConcurrentHashMap<String, User>(16, 0.75f, CONCURRENCY_LEVEL);
+		this.usersByConnection = new ConcurrentHashMap<WorkerConnection, Set<User>>(16, 0.75f, CONCURRENCY_LEVEL);
+	}
+
+	/**
+	 * Return the user with the given name, or null if the user has never been
+	 * authorized.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public User getUser(String name) {
+		return name == null ? null : users.get(name);
+	}
+
+	/**
+	 * Attach the connection to the user with the given name. The user is
+	 * created if it does not exist. A closed connection is not kept attached.
+	 * Return the user.
+	 * 
+	 * @param name
+	 * @param connection
+	 * @return
+	 */
+	public User attach(String name, WorkerConnection connection) {
+		User user = users.get(name);
+		if (user == null) {
+			User newUser = new User(name, algo);
+			if (samplingHashesPeriod != null) {
+				newUser.setSamplingHashesPeriod(samplingHashesPeriod);
+			}
+			user = users.putIfAbsent(name, newUser);
+			if (user == null) {
+				user = newUser;
+			}
+		}
+
+		Set<User> connectionUsers = usersByConnection.get(connection);
+		if (connectionUsers == null) {
+			Set<User> newConnectionUsers = Collections.newSetFromMap(new ConcurrentHashMap<User, Boolean>());
+			connectionUsers = usersByConnection.putIfAbsent(connection, newConnectionUsers);
+			if (connectionUsers == null) {
+				connectionUsers = newConnectionUsers;
+			}
+		}
+		connectionUsers.add(user);
+		user.addConnection(connection);
+
+		// If the connection has been closed (and so detached) in the meantime,
+		// undo the attach to not keep the closed connection.
+		if (!connection.isConnected()) {
+			detach(connection);
+		}
+
+		return user;
+	}
+
+	/**
+	 * Detach the connection from all its users.
+	 * 
+	 * @param connection
+	 */
+	public void detach(WorkerConnection connection) {
+		Set<User> connectionUsers = usersByConnection.remove(connection);
+		if (connectionUsers != null) {
+			for (User user : connectionUsers) {
+				user.removeConnection(connection);
+			}
+		}
+	}
+
+	/**
+	 * Return a read-only view of the users. The view is not a copy: the
+	 * iteration reflects the users added or removed during the iteration (or
+	 * not), and never fails.
+	 * 
+	 * @return
+	 */
+	public Collection<User> getUsers() {
+		return Collections.unmodifiableCollection(users.values());
+	}
+
+	/**
+	 * Return the number of users.
+	 * 
+	 * @return
+	 */
+	public int getNumberOfUsers() {
+		return users.size();
+	}
+
+}
@@ -0,0 +1,349 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.manager.strategy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import strat.mining.stratum.proxy.exception.ChangeExtranonceNotSupportedException;
+import strat.mining.stratum.proxy.exception.TooManyWorkersException;
+import strat.mining.stratum.proxy.manager.ProxyInstance;
+import strat.mining.stratum.proxy.pool.Pool;
+import strat.mining.stratum.proxy.utils.Timer;
+import strat.mining.stratum.proxy.utils.Timer.Task;
+import strat.mining.stratum.proxy.worker.WorkerConnection;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Rebind the worker connections on a new pool. The connections are split in
+ * batches. The batches are started at a fixed interval and the connections of
+ * a batch are rebound in parallel.
+ * 
+ * A migration has a deadline. The batch interval is shortened if needed so
+ * that all batches are started before the deadline, and the connections which
+ * are still not rebound at the deadline are closed (the miners will reconnect
+ * on the new pool).
+ * 
+ * Only one migration runs at a time: a new migration cancels the previous one.
+ * 
+ * @author Strat
+ * 
+ */
+public class ConnectionMigrationScheduler {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionMigrationScheduler.class);
+
+	private final ProxyInstance proxyManager;
+
+	private final int batchSize;
+	private final long batchInterval;
+	private final long deadline;
+
+	private final ExecutorService executor;
+
+	private volatile Migration currentMigration;
+
+	// Totals over all the migrations.
+	private final AtomicLong totalMigratedConnections;
+	private final AtomicLong totalFailedConnections;
+	private final AtomicLong totalClosedConnections;
+	// The connections closed or already bound to the target pool when their
+	// turn came.
+	private final AtomicLong totalSkippedConnections;
+
+	/**
+	 * 
+	 * @param proxyManager
+	 * @param batchSize
+	 *            the number of connections per batch.
+	 * @param concurrency
+	 *            the number of connections rebound in parallel.
+	 * @param batchInterval
+	 *            the delay between the start of two batches (in milli
+	 *            seconds).
+	 * @param deadline
+	 *            the max duration of a migration (in milli seconds).
+	 */
+	public ConnectionMigrationScheduler(ProxyInstance proxyManager, int batchSize, int concurrency, long batchInterval, long deadline) {
+		this.proxyManager = proxyManager;
+		this.batchSize = Math.max(1, batchSize);
+		this.batchInterval = Math.max(0, batchInterval);
+		this.deadline = Math.max(0, deadline);
+		ThreadPoolExecutor threadPool = new ThreadPoolExecutor(Math.max(1, concurrency), Math.max(1, concurrency), 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder().setNameFormat("ConnectionMigrationThread-%s").setDaemon(true)
+						.build());
+		threadPool.allowCoreThreadTimeOut(true);
+		this.executor = threadPool;
+		this.totalMigratedConnections = new AtomicLong(0);
+		this.totalFailedConnections = new AtomicLong(0);
+		this.totalClosedConnections = new AtomicLong(0);
+		this.totalSkippedConnections = new AtomicLong(0);
+	}
+
+	/**
+	 * Rebind the given connections on the given pool. Cancel the running
+	 * migration, if any.
+	 * 
+	 * @param connections
+	 * @param targetPool
+	 */
+	public synchronized void migrate(List<WorkerConnection> connections, Pool targetPool) {
+		cancel();
+
+		List<WorkerConnection> toMigrate = new ArrayList<WorkerConnection>();
+		for (WorkerConnection connection : connections) {
+			if (!isBoundTo(connection, targetPool)) {
+				toMigrate.add(connection);
+			}
+		}
+		if (toMigrate.isEmpty()) {
+			return;
+		}
+
+		int numberOfBatches = (toMigrate.size() + batchSize - 1) / batchSize;
+		// Start all the batches in the first half of the deadline to leave
+		// time to the last ones.
+		long interval = numberOfBatches > 1 ? Math.min(batchInterval, deadline / 2 / (numberOfBatches - 1)) : 0;
+
+		Migration migration = new Migration(targetPool, toMigrate.size(), numberOfBatches);
+		currentMigration = migration;
+		LOGGER.info("Migrating {} worker connections to pool {} in {} batches of {} connections every {} ms.", toMigrate.size(),
+				targetPool.getName(), numberOfBatches, batchSize, interval);
+
+		for (int i = 0; i < numberOfBatches; i++) {
+			List<WorkerConnection> batch = toMigrate.subList(i * batchSize, Math.min(toMigrate.size(), (i + 1) * batchSize));
+			migration.scheduleBatch(new ArrayList<WorkerConnection>(batch), i * interval);
+		}
+		migration.scheduleDeadline(deadline);
+	}
+
+	/**
+	 * Cancel the running migration. The connections already rebound stay on
+	 * the new pool, the others stay on their current pool.
+	 */
+	public synchronized void cancel() {
+		Migration migration = currentMigration;
+		if (migration != null && !migration.isDone()) {
+			LOGGER.info("Cancelling the migration to pool {}. {}", migration.targetPool.getName(), migration.getProgress());
+			migration.cancel();
+		}
+		currentMigration = null;
+	}
+
+	/**
+	 * Cancel the running migration and stop the threads.
+	 */
+	public void stop() {
+		cancel();
+		executor.shutdown();
+	}
+
+	/**
+	 * Return the progress of the running (or last) migration. Null if no
+	 * migration has been run.
+	 * 
+	 * @return
+	 */
+	public String getProgress() {
+		Migration migration = currentMigration;
+		return migration != null ? migration.getProgress() : null;
+	}
+
+	/**
+	 * Return true if a migration is running.
+	 * 
+	 * @return
+	 */
+	public boolean isMigrating() {
+		Migration migration = currentMigration;
+		return migration != null && !migration.isDone();
+	}
+
+	public long getTotalMigratedConnections() {
+		return totalMigratedConnections.get();
+	}
+
+	public long getTotalFailedConnections() {
+		return totalFailedConnections.get();
+	}
+
+	public long getTotalClosedConnections() {
+		return totalClosedConnections.get();
+	}
+
+	public long getTotalSkippedConnections() {
+		return totalSkippedConnections.get();
+	}
+
+	private boolean isBoundTo(WorkerConnection connection, Pool pool) {
+		return connection.getPool() != null && connection.getPool().getRootPool().equals(pool);
+	}
+
+	/**
+	 * A migration in progress.
+	 * 
+	 * @author Strat
+	 * 
+	 */
+	private class Migration {
+
+		private final Pool targetPool;
+		private final int numberOfConnections;
+		private final int numberOfBatches;
+		private final long startTime;
+
+		private final List<Task> tasks;
+		private final AtomicInteger numberOfProcessedConnections;
+		private final AtomicInteger numberOfMigratedConnections;
+		private final AtomicInteger numberOfFailedConnections;
+		private final AtomicInteger numberOfSkippedConnections;
+		private final AtomicInteger numberOfStartedBatches;
+
+		private volatile boolean isCancelled;
+		private volatile boolean isDeadlineReached;
+
+		public Migration(Pool targetPool, int numberOfConnections, int numberOfBatches) {
+			this.targetPool = targetPool;
+			this.numberOfConnections = numberOfConnections;
+			this.numberOfBatches = numberOfBatches;
+			this.startTime = System.currentTimeMillis();
+			this.tasks = new CopyOnWriteArrayList<Task>();
+			this.numberOfProcessedConnections = new AtomicInteger(0);
+			this.numberOfMigratedConnections = new AtomicInteger(0);
+			this.numberOfFailedConnections = new AtomicInteger(0);
+			this.numberOfSkippedConnections = new AtomicInteger(0);
+			this.numberOfStartedBatches = new AtomicInteger(0);
+		}
+
+		public void scheduleBatch(final List<WorkerConnection> batch, long delay) {
+			Task batchTask = new Task() {
+				public void run() {
+					numberOfStartedBatches.incrementAndGet();
+					for (final WorkerConnection connection : batch) {
+						executor.execute(new Runnable() {
+							public void run() {
+								migrateConnection(connection);
+							}
+						});
+					}
+				}
+			};
+			batchTask.setName("MigrationBatchTask-" + targetPool.getName());
+			tasks.add(batchTask);
+			Timer.getInstance().schedule(batchTask, delay);
+		}
+
+		public void scheduleDeadline(long delay) {
+			Task deadlineTask = new Task() {
+				public void run() {
+					if (!isDone()) {
+						isDeadlineReached = true;
+						LOGGER.warn("Deadline of the migration to pool {} reached. Closing the connections not yet migrated. {}",
+								targetPool.getName(), getProgress());
+					}
+				}
+			};
+			deadlineTask.setName("MigrationDeadlineTask-" + targetPool.getName());
+			tasks.add(deadlineTask);
+			Timer.getInstance().scheduleTimeout(deadlineTask, delay);
+		}
+
+		private void migrateConnection(WorkerConnection connection) {
+			if (isCancelled) {
+				return;
+			}
+			try {
+				if (!connection.isConnected() || isBoundTo(connection, targetPool)) {
+					// Closed or already moved (by a reconnection).
+					numberOfSkippedConnections.incrementAndGet();
+					totalSkippedConnections.incrementAndGet();
+				} else if (isDeadlineReached) {
+					LOGGER.info("Close connection {} since the migration deadline is reached.", connection.getConnectionName());
+					totalClosedConnections.incrementAndGet();
+					numberOfFailedConnections.incrementAndGet();
+					connection.close();
+					proxyManager.onWorkerDisconnection(connection, new Exception("Migration deadline reached."));
+				} else {
+					proxyManager.switchPoolForConnection(connection, targetPool);
+					numberOfMigratedConnections.incrementAndGet();
+					totalMigratedConnections.incrementAndGet();
+				}
+			} catch (TooManyWorkersException e) {
+				numberOfFailedConnections.incrementAndGet();
+				totalFailedConnections.incrementAndGet();
+				LOGGER.warn("Failed to rebind worker connection {} on pool {}. Too many workers on this pool.", connection.getConnectionName(),
+						targetPool.getName());
+			} catch (ChangeExtranonceNotSupportedException e) {
+				numberOfFailedConnections.incrementAndGet();
+				totalClosedConnections.incrementAndGet();
+				LOGGER.info("Close connection {} since the on-the-fly extranonce change is not supported.", connection.getConnectionName());
+				connection.close();
+				proxyManager.onWorkerDisconnection(connection, e);
+			} catch (Exception e) {
+				numberOfFailedConnections.incrementAndGet();
+				totalFailedConnections.incrementAndGet();
+				LOGGER.error("Failed to rebind worker connection {} on pool {}.", connection.getConnectionName(), targetPool.getName(), e);
+			} finally {
+				onConnectionProcessed();
+			}
+		}
+
+		private void onConnectionProcessed() {
+			int processed = numberOfProcessedConnections.incrementAndGet();
+			if (processed == numberOfConnections) {
+				LOGGER.info("Migration to pool {} done in {} ms. {}", targetPool.getName(), System.currentTimeMillis() - startTime, getProgress());
+				// The deadline is no more needed.
+				for (Task task : tasks) {
+					task.cancel();
+				}
+			} else if (processed % batchSize == 0) {
+				LOGGER.info("Migration to pool {} in progress. {}", targetPool.getName(), getProgress());
+			}
+		}
+
+		public void cancel() {
+			isCancelled = true;
+			for (Task task : tasks) {
+				task.cancel();
+			}
+		}
+
+		public boolean isDone() {
+			return isCancelled || numberOfProcessedConnections.get() >= numberOfConnections;
+		}
+
+		public String getProgress() {
+			return numberOfProcessedConnections.get() + "/" + numberOfConnections + " connections processed (" + numberOfMigratedConnections.get()
+					+ " migrated, " + numberOfFailedConnections.get() + " failed, " + numberOfSkippedConnections.get() + " skipped), " + numberOfStartedBatches.get() + "/" + numberOfBatches
+					+ " batches started, " + (System.currentTimeMillis() - startTime) + " ms elapsed.";
+		}
+	}
+
+}
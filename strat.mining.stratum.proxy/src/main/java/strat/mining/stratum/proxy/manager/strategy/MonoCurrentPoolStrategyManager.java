@@ -25,9 +25,8 @@ import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import strat.mining.stratum.proxy.exception.ChangeExtranonceNotSupportedException;
+import strat.mining.stratum.proxy.ProxyConfiguration;
 import strat.mining.stratum.proxy.exception.NoPoolAvailableException;
-import strat.mining.stratum.proxy.exception.TooManyWorkersException;
 import strat.mining.stratum.proxy.manager.ProxyInstance;
 import strat.mining.stratum.proxy.pool.Pool;
 import strat.mining.stratum.proxy.worker.WorkerConnection;
@@ -47,8 +46,13 @@ public abstract class MonoCurrentPoolStrategyManager implements PoolSwitchingStr
 
 	private Pool currentPool;
 
+	private final ConnectionMigrationScheduler migrationScheduler;
+
 	public MonoCurrentPoolStrategyManager(ProxyInstance proxyManager) {
 		this.proxyManager = proxyManager;
+		ProxyConfiguration configuration = proxyManager.getConfiguration();
+		this.migrationScheduler = new ConnectionMigrationScheduler(proxyManager, configuration.getMigrationBatchSize(),
+				configuration.getMigrationConcurrency(), configuration.getMigrationBatchInterval(), configuration.getMigrationDeadline());
 	}
 
 	/**
@@ -68,23 +72,10 @@ public abstract class MonoCurrentPoolStrategyManager implements PoolSwitchingStr
 				if (oldCurrentPool != currentPool) {
 					LOGGER.info("Switching worker connections from pool {} to pool {}.", oldCurrentPool != null ? oldCurrentPool.getName() : "none",
 							currentPool != null ? currentPool.getName() : "none");
-					for (WorkerConnection connection : workerConnections) {
-						// If the connection is not bound to the poolToBind,
-						// switch the pool.
-						if (!connection.getPool().equals(currentPool)) {
-							try {
-								proxyManager.switchPoolForConnection(connection, currentPool);
-							} catch (TooManyWorkersException e) {
-								LOGGER.warn("Failed to rebind worker connection {} on pool {}. Too many workers on this pool.",
-										connection.getConnectionName(), currentPool.getName());
-							} catch (ChangeExtranonceNotSupportedException e) {
-								LOGGER.info("Close connection {} since the on-the-fly extranonce change is not supported.",
-										connection.getConnectionName(), currentPool.getName());
-								connection.close();
-								proxyManager.onWorkerDisconnection(connection, e);
-							}
-						}
-					}
+					// The connections not bound to the new pool (or one of its
+					// upstream sessions) are rebound by batches in the
+					// background.
+					migrationScheduler.migrate(workerConnections, currentPool);
 				}
 			}
 
@@ -93,6 +84,7 @@ public abstract class MonoCurrentPoolStrategyManager implements PoolSwitchingStr
 			// course, so obvious...nnnaaaaarrrrhhhh)
 			if (workerConnections.size() > 0) {
 				LOGGER.error("Failed to rebind workers connections. No pool is available. Closing all workers connections.", e);
+				migrationScheduler.cancel();
 				// If no more pool available, close all worker connections
 				proxyManager.closeAllWorkerConnections();
 			}
@@ -131,6 +123,16 @@ public abstract class MonoCurrentPoolStrategyManager implements PoolSwitchingStr
 
 	}
 
+	@Override
+	public void onWorkerAuthorized(WorkerConnection connection, String workerName) {
+		// Nothing to do. All the connections are bound to the current pool.
+	}
+
+	@Override
+	public void onWorkerDisconnected(WorkerConnection connection) {
+		// Nothing to do.
+	}
+
 	/**
 	 * Compute and set the current pool.
 	 * 
@@ -188,12 +190,30 @@ public abstract class MonoCurrentPoolStrategyManager implements PoolSwitchingStr
 	public Map<String, String> getDetails() {
 		Map<String, String> details = new HashMap<String, String>();
 		details.put("Current pool", getCurrentPool() != null ? getCurrentPool().getName() : "None");
+		String migrationProgress = migrationScheduler.getProgress();
+		if (migrationProgress != null) {
+			details.put("Last migration", (migrationScheduler.isMigrating() ? "In progress: " : "Done: ") + migrationProgress);
+		}
+		details.put("Migrated connections", String.valueOf(migrationScheduler.getTotalMigratedConnections()));
+		details.put("Failed migrations", String.valueOf(migrationScheduler.getTotalFailedConnections()));
+		details.put("Connections closed by migrations", String.valueOf(migrationScheduler.getTotalClosedConnections()));
+		details.put("Connections skipped by migrations", String.valueOf(migrationScheduler.getTotalSkippedConnections()));
 		return details;
 	}
 
 	@Override
 	public void stop() {
-		// Nothing to do.
+		migrationScheduler.stop();
+	}
+
+	/**
+	 * Return the scheduler which rebinds the connections when the current pool
+	 * changes.
+	 * 
+	 * @return
+	 */
+	protected ConnectionMigrationScheduler getMigrationScheduler() {
+		return migrationScheduler;
 	}
 
 }
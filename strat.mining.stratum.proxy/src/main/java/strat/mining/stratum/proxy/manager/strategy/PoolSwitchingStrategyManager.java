@@ -81,6 +81,21 @@ public interface PoolSwitchingStrategyManager {
 	 */
 	public void onPoolStable(Pool pool);
 
+	/**
+	 * Called when a worker is authorized on a connection.
+	 * 
+	 * @param connection
+	 * @param workerName
+	 */
+	public void onWorkerAuthorized(WorkerConnection connection, String workerName);
+
+	/**
+	 * Called when a worker connection is closed.
+	 * 
+	 * @param connection
+	 */
+	public void onWorkerDisconnected(WorkerConnection connection);
+
 	/**
 	 * Return the pool to which the connection has to be bound.
 	 * 
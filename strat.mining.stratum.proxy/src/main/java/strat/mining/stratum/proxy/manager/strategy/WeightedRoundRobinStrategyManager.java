@@ -121,6 +121,7 @@ public class WeightedRoundRobinStrategyManager extends MonoCurrentPoolStrategyMa
 		if (checkConnectionBindingsTask != null) {
 			checkConnectionBindingsTask.cancel();
 		}
+		super.stop();
 	}
 
 	/**
@@ -3,9 +3,13 @@
  */
 package strat.mining.stratum.proxy.manager.strategy;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -13,11 +17,20 @@ import org.slf4j.LoggerFactory;
 
 import strat.mining.stratum.proxy.exception.NoPoolAvailableException;
 import strat.mining.stratum.proxy.manager.ProxyInstance;
-import strat.mining.stratum.proxy.model.User;
 import strat.mining.stratum.proxy.pool.Pool;
 import strat.mining.stratum.proxy.worker.WorkerConnection;
 
 /**
+ * Bind the connections to the pools by worker name or local port. The routing
+ * IDs of a connection are its authorized worker names and "port:" followed by
+ * its local port. The ID of a pool is its name up to the first '@'.
+ * 
+ * The routing table is maintained incrementally: the IDs of each connection
+ * (and the connections of each ID) are updated on worker authorization and
+ * disconnection, and the best stable pool of each ID is recomputed on pool
+ * events. Only the connections of the IDs whose best pool has changed are
+ * updated.
+ * 
  * @author balazs.grill
  *
  */
@@ -29,9 +42,20 @@ public class WorkerNameOrPortMatchingPoolStrategy implements
 	public static final String NAME = "WorkerName";
 	
 	private final ProxyInstance proxyManager;
+
+	// The routing IDs of each connection and the connections of each routing
+	// ID. Both guarded by idsByConnection.
+	private final Map<WorkerConnection, Set<String>> idsByConnection;
+	private final Map<String, Set<WorkerConnection>> connectionsById;
+
+	// The best stable pool of each pool ID. Replaced on each pool event.
+	private volatile Map<String, Pool> bestPoolById;
 	
 	public WorkerNameOrPortMatchingPoolStrategy(ProxyInstance proxyManager) {
 		this.proxyManager = proxyManager;
+		this.idsByConnection = new HashMap<>();
+		this.connectionsById = new HashMap<>();
+		this.bestPoolById = computeBestPools();
 	}
 	
 	/* (non-Javadoc)
@@ -97,11 +121,146 @@ public class WorkerNameOrPortMatchingPoolStrategy implements
 		return poolname;
 	}
 	
+	/**
+	 * Recompute the best pool of each pool ID and update the connections of
+	 * the IDs whose best pool has changed.
+	 */
 	private void updateConnections(){
-		for(WorkerConnection wc : proxyManager.getWorkerConnections()){
+		Map<String, Pool> oldBestPools;
+		Map<String, Pool> newBestPools;
+		synchronized (this) {
+			oldBestPools = bestPoolById;
+			newBestPools = computeBestPools();
+			bestPoolById = newBestPools;
+		}
+
+		Set<String> changedIds = new HashSet<>();
+		for (Entry<String, Pool> entry : oldBestPools.entrySet()) {
+			if (newBestPools.get(entry.getKey()) != entry.getValue()) {
+				changedIds.add(entry.getKey());
+			}
+		}
+		for (String id : newBestPools.keySet()) {
+			if (!oldBestPools.containsKey(id)) {
+				changedIds.add(id);
+			}
+		}
+
+		Set<WorkerConnection> affectedConnections = new HashSet<>();
+		for (String id : changedIds) {
+			affectedConnections.addAll(getConnections(id));
+		}
+
+		LOGGER.debug("Routing table updated. {} pool IDs changed, {} connections to update.", changedIds.size(),
+				affectedConnections.size());
+		for(WorkerConnection wc : affectedConnections){
 			proxyManager.updatePoolForConnection(wc);
 		}
 	}
+
+	/**
+	 * Return the best stable pool (the lowest priority) of each pool ID.
+	 * 
+	 * @return
+	 */
+	private Map<String, Pool> computeBestPools() {
+		Map<String, Pool> result = new HashMap<>();
+		for (Pool pool : proxyManager.getPools()) {
+			if (pool.isStable()) {
+				String id = getPoolID(pool.getName());
+				Pool selection = result.get(id);
+				if (selection == null || getPriority(pool) < getPriority(selection)) {
+					result.put(id, pool);
+				}
+			}
+		}
+		return result;
+	}
+
+	private int getPriority(Pool pool) {
+		return pool.getPriority() == null ? Integer.MAX_VALUE - 1 : pool.getPriority().intValue();
+	}
+
+	/**
+	 * Return the routing IDs of the connection. The connection is indexed if it
+	 * is not already (connection subscribed before the selection of this
+	 * strategy).
+	 * 
+	 * @param connection
+	 * @return
+	 */
+	private Set<String> indexConnection(WorkerConnection connection) {
+		Set<String> ids = idsByConnection.get(connection);
+		if (ids == null) {
+			ids = new HashSet<>();
+			Integer port = connection.getLocalPort();
+			if (port != null) {
+				ids.add("port:" + port);
+			}
+			ids.addAll(connection.getAuthorizedWorkers().keySet());
+
+			// Do not index a closed connection, it would never be removed.
+			if (connection.isConnected()) {
+				idsByConnection.put(connection, ids);
+				for (String id : ids) {
+					addConnection(id, connection);
+				}
+			}
+		}
+		return ids;
+	}
+
+	private void addConnection(String id, WorkerConnection connection) {
+		Set<WorkerConnection> connections = connectionsById.get(id);
+		if (connections == null) {
+			connections = new HashSet<>();
+			connectionsById.put(id, connections);
+		}
+		connections.add(connection);
+	}
+
+	private List<WorkerConnection> getConnections(String id) {
+		synchronized (idsByConnection) {
+			Set<WorkerConnection> connections = connectionsById.get(id);
+			return connections == null ? Collections.<WorkerConnection> emptyList() : new ArrayList<>(connections);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see strat.mining.stratum.proxy.manager.strategy.PoolSwitchingStrategyManager#onWorkerAuthorized(strat.mining.stratum.proxy.worker.WorkerConnection, java.lang.String)
+	 */
+	@Override
+	public void onWorkerAuthorized(WorkerConnection connection, String workerName) {
+		synchronized (idsByConnection) {
+			Set<String> ids = indexConnection(connection);
+			// A closed connection is not indexed: do not reference it from the
+			// IDs since it would never be removed.
+			if (idsByConnection.get(connection) == ids && ids.add(workerName)) {
+				addConnection(workerName, connection);
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see strat.mining.stratum.proxy.manager.strategy.PoolSwitchingStrategyManager#onWorkerDisconnected(strat.mining.stratum.proxy.worker.WorkerConnection)
+	 */
+	@Override
+	public void onWorkerDisconnected(WorkerConnection connection) {
+		synchronized (idsByConnection) {
+			Set<String> ids = idsByConnection.remove(connection);
+			if (ids != null) {
+				for (String id : ids) {
+					Set<WorkerConnection> connections = connectionsById.get(id);
+					if (connections != null) {
+						connections.remove(connection);
+						if (connections.isEmpty()) {
+							connectionsById.remove(id);
+						}
+					}
+				}
+			}
+		}
+	}
 	
 	/* (non-Javadoc)
 	 * @see strat.mining.stratum.proxy.manager.strategy.PoolSwitchingStrategyManager#getPoolForConnection(strat.mining.stratum.proxy.worker.WorkerConnection)
@@ -110,30 +269,17 @@ public class WorkerNameOrPortMatchingPoolStrategy implements
 	public Pool getPoolForConnection(WorkerConnection connection)
 			throws NoPoolAvailableException {
 		
-		Set<String> ids = new HashSet<>(connection.getAuthorizedWorkers().keySet());
-		for(User user : proxyManager.getUsers()){
-			if (user.getWorkerConnections().contains(connection)){
-				ids.add(user.getName());
-			}
-		}
-		
-		Integer port = connection.getLocalPort();
-		if (port != null){
-			ids.add("port:"+port);
+		List<String> ids;
+		synchronized (idsByConnection) {
+			ids = new ArrayList<>(indexConnection(connection));
 		}
 		
+		Map<String, Pool> bestPools = bestPoolById;
 		Pool selection = null;
-		int priority = Integer.MAX_VALUE;
-		
-		for(Pool pool : proxyManager.getPools()){
-			if (pool.isStable()){
-				if (ids.contains(getPoolID(pool.getName()))){
-					int p = pool.getPriority() == null ? Integer.MAX_VALUE-1 : pool.getPriority().intValue();
-					if (selection == null || p < priority){
-						selection = pool;
-						priority = p;
-					}
-				}
+		for (String id : ids) {
+			Pool pool = bestPools.get(id);
+			if (pool != null && (selection == null || getPriority(pool) < getPriority(selection))) {
+				selection = pool;
 			}
 		}
 		
@@ -18,21 +18,16 @@
  */
 package strat.mining.stratum.proxy.model;
 
-import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Deque;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentHashMap;
 
 import strat.mining.stratum.proxy.CryptoAlgorithm;
 import strat.mining.stratum.proxy.constant.Constants;
-import strat.mining.stratum.proxy.utils.EquatableWeakReference;
-import strat.mining.stratum.proxy.utils.mining.HashrateUtils;
+import strat.mining.stratum.proxy.utils.mining.HashrateWindow;
 import strat.mining.stratum.proxy.worker.WorkerConnection;
 
 /**
@@ -45,25 +40,27 @@ public class User {
 
 	private String name;
 
-	private volatile Set<WeakReference<WorkerConnection>> seenOnConnections;
+	// The connections where this user is authorized. Attached and detached by
+	// the user registry.
+	private final Set<WorkerConnection> connections;
 
-	private Deque<Share> lastAcceptedShares;
-	private Deque<Share> lastRejectedShares;
+	private final HashrateWindow acceptedHashrate;
+	private final HashrateWindow rejectedHashrate;
 
 	private Date creationTime;
-	private Date lastShareSubmitted;
+	// In milli seconds. 0 if no share has been submitted.
+	private volatile long lastShareSubmitted;
 
-	private Integer samplingHashesPeriod = Constants.DEFAULT_USER_HASHRATE_SAMPLING_PERIOD * 1000;
+	// The password of the last authorization. Used to authorize the user on
+	// the standby pools.
+	private volatile String lastPassword;
 
-	private final CryptoAlgorithm algo;
-	
 	public User(String name, CryptoAlgorithm algo) {
 		this.name = name;
-		this.algo = algo;
 		creationTime = new Date();
-		lastAcceptedShares = new ConcurrentLinkedDeque<Share>();
-		lastRejectedShares = new ConcurrentLinkedDeque<Share>();
-		seenOnConnections = Collections.synchronizedSet(new HashSet<WeakReference<WorkerConnection>>());
+		acceptedHashrate = new HashrateWindow(Constants.DEFAULT_USER_HASHRATE_SAMPLING_PERIOD, algo);
+		rejectedHashrate = new HashrateWindow(Constants.DEFAULT_USER_HASHRATE_SAMPLING_PERIOD, algo);
+		connections = Collections.newSetFromMap(new ConcurrentHashMap<WorkerConnection, Boolean>());
 	}
 
 	/**
@@ -73,8 +70,16 @@ public class User {
 	 * @param workerConnection
 	 */
 	public void addConnection(WorkerConnection workerConnection) {
-		seenOnConnections.add(new EquatableWeakReference<WorkerConnection>(workerConnection));
-		purgeAndGetConnectionList();
+		connections.add(workerConnection);
+	}
+
+	/**
+	 * Remove a connection of this user. Called when the connection is closed.
+	 * 
+	 * @param workerConnection
+	 */
+	public void removeConnection(WorkerConnection workerConnection) {
+		connections.remove(workerConnection);
 	}
 
 	/**
@@ -83,7 +88,16 @@ public class User {
 	 * @return
 	 */
 	public List<WorkerConnection> getWorkerConnections() {
-		return purgeAndGetConnectionList();
+		return new ArrayList<WorkerConnection>(connections);
+	}
+
+	/**
+	 * Return the number of connections were this user has been authorized.
+	 * 
+	 * @return
+	 */
+	public int getNumberOfWorkerConnections() {
+		return connections.size();
 	}
 
 	/**
@@ -92,8 +106,7 @@ public class User {
 	 * @return
 	 */
 	public double getAcceptedHashrate() {
-		HashrateUtils.purgeShareList(lastAcceptedShares, samplingHashesPeriod);
-		return HashrateUtils.getHashrateFromShareList(lastAcceptedShares, samplingHashesPeriod, algo);
+		return acceptedHashrate.getHashrate();
 	}
 
 	/**
@@ -102,8 +115,7 @@ public class User {
 	 * @return
 	 */
 	public double getRejectedHashrate() {
-		HashrateUtils.purgeShareList(lastRejectedShares, samplingHashesPeriod);
-		return HashrateUtils.getHashrateFromShareList(lastRejectedShares, samplingHashesPeriod, algo);
+		return rejectedHashrate.getHashrate();
 	}
 
 	/**
@@ -114,13 +126,11 @@ public class User {
 	 */
 	public void updateShareLists(Share share, boolean isAccepted) {
 		if (isAccepted) {
-			lastAcceptedShares.addLast(share);
-			HashrateUtils.purgeShareList(lastAcceptedShares, samplingHashesPeriod);
+			acceptedHashrate.addShare(share.getTime(), share.getDifficulty());
 		} else {
-			lastRejectedShares.addLast(share);
-			HashrateUtils.purgeShareList(lastRejectedShares, samplingHashesPeriod);
+			rejectedHashrate.addShare(share.getTime(), share.getDifficulty());
 		}
-		lastShareSubmitted = new Date();
+		lastShareSubmitted = System.currentTimeMillis();
 	}
 
 	/**
@@ -134,7 +144,8 @@ public class User {
 	}
 
 	public void setSamplingHashesPeriod(Integer samplingHashesPeriod) {
-		this.samplingHashesPeriod = samplingHashesPeriod * 1000;
+		acceptedHashrate.setSamplingPeriod(samplingHashesPeriod);
+		rejectedHashrate.setSamplingPeriod(samplingHashesPeriod);
 	}
 
 	public String getName() {
@@ -142,30 +153,16 @@ public class User {
 	}
 
 	public Date getLastShareSubmitted() {
-		return lastShareSubmitted;
+		long time = lastShareSubmitted;
+		return time > 0 ? new Date(time) : null;
 	}
 
-	/**
-	 * Return a list of active connections and remove no more existing ones.
-	 * 
-	 * @return
-	 */
-	private List<WorkerConnection> purgeAndGetConnectionList() {
-		List<WorkerConnection> newConnectionList = new ArrayList<WorkerConnection>();
-		synchronized (seenOnConnections) {
-			Iterator<WeakReference<WorkerConnection>> iterator = seenOnConnections.iterator();
-			WeakReference<WorkerConnection> weakReference = null;
-			while (iterator.hasNext()) {
-				weakReference = iterator.next();
-				if (weakReference.get() != null && weakReference.get().isConnected()) {
-					newConnectionList.add(weakReference.get());
-				} else {
-					iterator.remove();
-				}
-			}
-		}
+	public String getLastPassword() {
+		return lastPassword;
+	}
 
-		return newConnectionList;
+	public void setLastPassword(String lastPassword) {
+		this.lastPassword = lastPassword;
 	}
 
 }
@@ -0,0 +1,71 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.network;
+
+import java.io.IOException;
+
+import strat.mining.stratum.proxy.json.JsonRpcNotification;
+
+/**
+ * A notification broadcast to many connections. It is encoded at most once,
+ * on the first send, and the same bytes are then written to every
+ * connection. The notification must not be modified once wrapped.
+ *
+ * @author Strat
+ *
+ * @param <T>
+ */
+public class EncodedNotification<T extends JsonRpcNotification> {
+
+	private final T notification;
+
+	private volatile byte[] bytes;
+
+	public EncodedNotification(T notification) {
+		this.notification = notification;
+	}
+
+	/**
+	 * Return the wrapped notification.
+	 *
+	 * @return
+	 */
+	public T getNotification() {
+		return notification;
+	}
+
+	/**
+	 * Return the encoded line (with its trailing end of line) of the
+	 * notification. The returned array must not be modified.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] getBytes() throws IOException {
+		byte[] result = bytes;
+		if (result == null) {
+			// Two threads may encode concurrently on the first call. Both
+			// results are identical, so it is harmless.
+			result = StratumJsonCodec.encodeNotification(notification);
+			bytes = result;
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,166 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.network;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single selector thread. Channels registered on this loop have all their
+ * IO (and thus all their callbacks) processed by this thread.
+ *
+ * @author Strat
+ *
+ */
+public class NioEventLoop {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(NioEventLoop.class);
+
+	private final Selector selector;
+
+	private final Thread thread;
+
+	private final Queue<Runnable> pendingTasks;
+
+	private volatile boolean isRunning;
+
+	public NioEventLoop(String name) throws IOException {
+		this.selector = Selector.open();
+		this.pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+		this.isRunning = true;
+		this.thread = new Thread(name) {
+			public void run() {
+				runLoop();
+			}
+		};
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Run the given task on the event loop thread. If called from the event
+	 * loop thread, the task is run once the current selected keys have been
+	 * processed.
+	 *
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		pendingTasks.add(task);
+		if (!inEventLoop()) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Return true if the current thread is the event loop thread.
+	 *
+	 * @return
+	 */
+	public boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Register the channel on the selector of this loop. Has to be called from
+	 * the event loop thread.
+	 *
+	 * @param channel
+	 * @param interestOps
+	 * @param handler
+	 * @return
+	 * @throws ClosedChannelException
+	 */
+	public SelectionKey register(SelectableChannel channel, int interestOps, NioEventHandler handler) throws ClosedChannelException {
+		return channel.register(selector, interestOps, handler);
+	}
+
+	/**
+	 * Stop the event loop. Registered channels are not closed.
+	 */
+	public void shutdown() {
+		isRunning = false;
+		selector.wakeup();
+	}
+
+	private void runLoop() {
+		LOGGER.debug("Event loop {} started.", thread.getName());
+		while (isRunning) {
+			try {
+				if (pendingTasks.isEmpty()) {
+					selector.select();
+				} else {
+					selector.selectNow();
+				}
+				processSelectedKeys();
+				runPendingTasks();
+			} catch (Exception e) {
+				LOGGER.error("Unexpected error in event loop {}.", thread.getName(), e);
+			}
+		}
+
+		try {
+			selector.close();
+		} catch (IOException e) {
+			LOGGER.error("Failed to close the selector of event loop {}.", thread.getName(), e);
+		}
+		LOGGER.debug("Event loop {} stopped.", thread.getName());
+	}
+
+	private void processSelectedKeys() {
+		Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+		while (iterator.hasNext()) {
+			SelectionKey key = iterator.next();
+			iterator.remove();
+			if (key.isValid()) {
+				try {
+					((NioEventHandler) key.attachment()).onSelected(key);
+				} catch (Exception e) {
+					LOGGER.error("Unexpected error while processing channel {} in event loop {}.", key.channel(), thread.getName(), e);
+				}
+			}
+		}
+	}
+
+	private void runPendingTasks() {
+		// Only run the tasks present at the beginning to let the selector
+		// breathe if tasks keep being added from the loop itself.
+		int numberOfTasks = pendingTasks.size();
+		for (int i = 0; i < numberOfTasks; i++) {
+			Runnable task = pendingTasks.poll();
+			if (task == null) {
+				break;
+			}
+			try {
+				task.run();
+			} catch (Exception e) {
+				LOGGER.error("Unexpected error while running task in event loop {}.", thread.getName(), e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.network;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import strat.mining.stratum.proxy.constant.Constants;
+
+/**
+ * A fixed set of event loops. Channels are spread over the loops in a round
+ * robin way.
+ *
+ * @author Strat
+ *
+ */
+public class NioEventLoopGroup {
+
+	private final NioEventLoop[] eventLoops;
+
+	private final AtomicInteger nextIndex;
+
+	private volatile long maxPendingWriteBytes = Constants.DEFAULT_NIO_MAX_PENDING_WRITE_BYTES;
+
+	public NioEventLoopGroup(String name, int numberOfThreads) throws IOException {
+		this.eventLoops = new NioEventLoop[Math.max(1, numberOfThreads)];
+		this.nextIndex = new AtomicInteger();
+		for (int i = 0; i < eventLoops.length; i++) {
+			eventLoops[i] = new NioEventLoop(name + "-" + i);
+		}
+	}
+
+	/**
+	 * Return the event loop on which the next channel should be registered.
+	 *
+	 * @return
+	 */
+	public NioEventLoop next() {
+		return eventLoops[Math.abs(nextIndex.getAndIncrement() % eventLoops.length)];
+	}
+
+	/**
+	 * Return the max number of bytes waiting to be written on a channel of this
+	 * group before the channel is closed.
+	 *
+	 * @return
+	 */
+	public long getMaxPendingWriteBytes() {
+		return maxPendingWriteBytes;
+	}
+
+	public void setMaxPendingWriteBytes(long maxPendingWriteBytes) {
+		this.maxPendingWriteBytes = maxPendingWriteBytes;
+	}
+
+	/**
+	 * Stop all the event loops of the group.
+	 */
+	public void shutdown() {
+		for (NioEventLoop eventLoop : eventLoops) {
+			eventLoop.shutdown();
+		}
+	}
+
+}
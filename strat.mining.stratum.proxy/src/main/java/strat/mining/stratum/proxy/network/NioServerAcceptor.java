@@ -0,0 +1,95 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.network;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Accept incoming connections of a non-blocking server socket on an event
+ * loop.
+ *
+ * @author Strat
+ *
+ */
+public abstract class NioServerAcceptor implements NioEventHandler {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(NioServerAcceptor.class);
+
+	private final ServerSocketChannel serverChannel;
+
+	private final NioEventLoop eventLoop;
+
+	public NioServerAcceptor(ServerSocketChannel serverChannel, NioEventLoop eventLoop) {
+		this.serverChannel = serverChannel;
+		this.eventLoop = eventLoop;
+	}
+
+	/**
+	 * Start to accept connections.
+	 */
+	public void start() {
+		eventLoop.execute(new Runnable() {
+			public void run() {
+				try {
+					eventLoop.register(serverChannel, SelectionKey.OP_ACCEPT, NioServerAcceptor.this);
+				} catch (IOException e) {
+					LOGGER.error("Failed to register the server socket {} on the event loop.", serverChannel.socket().getLocalSocketAddress(), e);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void onSelected(SelectionKey key) {
+		if (key.isAcceptable()) {
+			SocketChannel channel = null;
+			try {
+				channel = serverChannel.accept();
+				while (channel != null) {
+					onConnectionAccepted(channel);
+					channel = serverChannel.accept();
+				}
+			} catch (IOException e) {
+				onAcceptError(e);
+			}
+		}
+	}
+
+	/**
+	 * Called for each accepted connection. The channel is still in blocking
+	 * mode.
+	 *
+	 * @param channel
+	 */
+	protected abstract void onConnectionAccepted(SocketChannel channel);
+
+	/**
+	 * Called when the accept fails.
+	 *
+	 * @param cause
+	 */
+	protected abstract void onAcceptError(Throwable cause);
+
+}
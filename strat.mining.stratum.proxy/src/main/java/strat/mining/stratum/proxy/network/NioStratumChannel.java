@@ -0,0 +1,326 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking transport of a {@link StratumConnection}. Reads are framed on
+ * '\n' and each line is passed to the connection from the event loop thread.
+ * Writes are queued and flushed by the event loop.
+ *
+ * The messages queued during one event loop iteration are coalesced and
+ * written with a single gathering write. If the remote host does not read fast
+ * enough and the queued bytes exceed the high-water mark, the connection is
+ * closed instead of buffering without limit.
+ *
+ * @author Strat
+ *
+ */
+class NioStratumChannel implements NioEventHandler {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(NioStratumChannel.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	// A line longer than this is not a stratum message. Avoid to buffer
+	// garbage forever.
+	private static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+	// Max number of buffers passed to one gathering write.
+	private static final int MAX_GATHERED_BUFFERS = 64;
+
+	private final StratumConnection connection;
+	private final SocketChannel channel;
+	private final NioEventLoop eventLoop;
+
+	private final ByteBuffer readBuffer;
+	private byte[] lineBuffer;
+	private int lineLength;
+
+	// Filled by the sender threads.
+	private final Queue<ByteBuffer> writeQueue;
+	// Only used by the event loop thread. Contains the buffers moved from the
+	// write queue which are not fully written yet.
+	private final ArrayDeque<ByteBuffer> pendingBuffers;
+	private final ByteBuffer[] gatheredBuffers;
+	private final Runnable flushTask;
+	private final AtomicBoolean isFlushScheduled;
+
+	// The number of bytes queued and not written yet.
+	private final AtomicLong pendingBytes;
+	private final long maxPendingBytes;
+	private final AtomicBoolean isSlowConsumer;
+
+	private SelectionKey key;
+	private volatile boolean isClosed;
+
+	/**
+	 * 
+	 * @param connection
+	 * @param channel
+	 * @param eventLoop
+	 * @param maxPendingBytes
+	 *            the high-water mark of the bytes waiting to be written.
+	 */
+	public NioStratumChannel(StratumConnection connection, SocketChannel channel, NioEventLoop eventLoop, long maxPendingBytes) {
+		this.connection = connection;
+		this.channel = channel;
+		this.eventLoop = eventLoop;
+		this.maxPendingBytes = maxPendingBytes;
+		this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		this.lineBuffer = new byte[512];
+		this.writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.pendingBuffers = new ArrayDeque<ByteBuffer>();
+		this.gatheredBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
+		this.isFlushScheduled = new AtomicBoolean(false);
+		this.pendingBytes = new AtomicLong(0);
+		this.isSlowConsumer = new AtomicBoolean(false);
+		this.flushTask = new Runnable() {
+			public void run() {
+				isFlushScheduled.set(false);
+				flush();
+			}
+		};
+	}
+
+	/**
+	 * Register the channel on its event loop and start reading.
+	 */
+	public void start() {
+		eventLoop.execute(new Runnable() {
+			public void run() {
+				try {
+					key = eventLoop.register(channel, SelectionKey.OP_READ, NioStratumChannel.this);
+					flush();
+				} catch (IOException e) {
+					onTransportError(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Queue the given bytes to be written by the event loop. Only one flush is
+	 * scheduled for all the writes done before the event loop runs it.
+	 *
+	 * @param bytes
+	 * @throws IOException
+	 *             if the channel is closed.
+	 */
+	public void write(byte[] bytes) throws IOException {
+		if (isSlowConsumer.get()) {
+			// The connection is being closed. Drop the data.
+			return;
+		}
+		if (isClosed || !channel.isOpen()) {
+			throw new IOException("Socket not connected.");
+		}
+
+		long queuedBytes = pendingBytes.addAndGet(bytes.length);
+		if (queuedBytes > maxPendingBytes) {
+			onSlowConsumer(queuedBytes);
+			return;
+		}
+
+		writeQueue.add(ByteBuffer.wrap(bytes));
+		if (isFlushScheduled.compareAndSet(false, true)) {
+			eventLoop.execute(flushTask);
+		}
+	}
+
+	/**
+	 * Return the number of bytes queued and not yet written on the socket.
+	 *
+	 * @return
+	 */
+	public long getPendingBytes() {
+		return pendingBytes.get();
+	}
+
+	/**
+	 * Close the channel. Pending writes are discarded.
+	 */
+	public void close() {
+		isClosed = true;
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOGGER.error("Failed to close channel {}.", connection.getConnectionName(), e);
+		}
+		writeQueue.clear();
+		// The pending buffers are owned by the event loop.
+		eventLoop.execute(new Runnable() {
+			public void run() {
+				pendingBuffers.clear();
+			}
+		});
+	}
+
+	@Override
+	public void onSelected(SelectionKey key) {
+		if (key.isReadable()) {
+			read();
+		}
+		if (key.isValid() && key.isWritable()) {
+			flush();
+		}
+	}
+
+	private void read() {
+		try {
+			int read = channel.read(readBuffer);
+			if (read < 0) {
+				throw new EOFException("Connection closed.");
+			}
+			readBuffer.flip();
+			frameLines();
+			readBuffer.clear();
+		} catch (IOException e) {
+			onTransportError(e);
+		}
+	}
+
+	/**
+	 * Split the read bytes on '\n' and pass each complete line to the
+	 * connection. An incomplete line is kept until the next read.
+	 *
+	 * @throws IOException
+	 */
+	private void frameLines() throws IOException {
+		byte[] data = readBuffer.array();
+		int limit = readBuffer.limit();
+		int start = 0;
+		for (int i = 0; i < limit && !isClosed; i++) {
+			if (data[i] == '\n') {
+				appendToLine(data, start, i - start);
+				start = i + 1;
+
+				int length = lineLength;
+				if (length > 0 && lineBuffer[length - 1] == '\r') {
+					length--;
+				}
+				lineLength = 0;
+				connection.onLineRead(new String(lineBuffer, 0, length, UTF8));
+			}
+		}
+		if (start < limit && !isClosed) {
+			appendToLine(data, start, limit - start);
+		}
+	}
+
+	private void appendToLine(byte[] data, int offset, int length) throws IOException {
+		int newLength = lineLength + length;
+		if (newLength > MAX_LINE_LENGTH) {
+			throw new IOException("Line too long (more than " + MAX_LINE_LENGTH + " bytes) without end of line.");
+		}
+		if (newLength > lineBuffer.length) {
+			lineBuffer = Arrays.copyOf(lineBuffer, Math.max(newLength, lineBuffer.length * 2));
+		}
+		System.arraycopy(data, offset, lineBuffer, lineLength, length);
+		lineLength = newLength;
+	}
+
+	/**
+	 * Write as much queued data as possible with gathering writes. If the
+	 * socket buffer is full, wait for the channel to be writable again.
+	 */
+	private void flush() {
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		try {
+			ByteBuffer buffer = writeQueue.poll();
+			while (buffer != null) {
+				pendingBuffers.add(buffer);
+				buffer = writeQueue.poll();
+			}
+
+			while (!pendingBuffers.isEmpty()) {
+				int numberOfBuffers = 0;
+				Iterator<ByteBuffer> iterator = pendingBuffers.iterator();
+				while (iterator.hasNext() && numberOfBuffers < MAX_GATHERED_BUFFERS) {
+					gatheredBuffers[numberOfBuffers++] = iterator.next();
+				}
+
+				long written = channel.write(gatheredBuffers, 0, numberOfBuffers);
+				pendingBytes.addAndGet(-written);
+				Arrays.fill(gatheredBuffers, 0, numberOfBuffers, null);
+
+				while (!pendingBuffers.isEmpty() && !pendingBuffers.peek().hasRemaining()) {
+					pendingBuffers.poll();
+				}
+
+				if (!pendingBuffers.isEmpty() && written == 0) {
+					// Socket buffer full.
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			onTransportError(e);
+		}
+	}
+
+	/**
+	 * Close the connection since the remote host does not read the data fast
+	 * enough.
+	 *
+	 * @param queuedBytes
+	 */
+	private void onSlowConsumer(final long queuedBytes) {
+		if (isSlowConsumer.compareAndSet(false, true)) {
+			LOGGER.warn("Closing connection {}: {} bytes waiting to be written (high-water mark: {} bytes).", connection.getConnectionName(),
+					queuedBytes, maxPendingBytes);
+			eventLoop.execute(new Runnable() {
+				public void run() {
+					onTransportError(new IOException("Slow consumer. " + queuedBytes + " bytes waiting to be written."));
+				}
+			});
+		}
+	}
+
+	private void onTransportError(IOException e) {
+		if (!isClosed) {
+			connection.onTransportClosed(e);
+		}
+	}
+
+}
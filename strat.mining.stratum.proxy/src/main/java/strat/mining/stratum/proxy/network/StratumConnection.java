@@ -18,15 +18,19 @@
  */
 package strat.mining.stratum.proxy.network;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
@@ -51,19 +55,24 @@ import strat.mining.stratum.proxy.json.MiningSubscribeRequest;
 import strat.mining.stratum.proxy.json.MiningSubscribeResponse;
 
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 public abstract class StratumConnection implements Connection {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(StratumConnection.class);
 
+	private static final int OUTPUT_BUFFER_SIZE = 8192;
+
 	private Socket socket;
 	private Thread readThread;
-	private ObjectMapper objectMapper;
+	// Only set when the connection runs on the non-blocking transport.
+	private NioStratumChannel nioChannel;
+	private StratumJsonCodec.MessageHandler messageHandler;
 
 	private Map<Object, JsonRpcRequest> sentRequestIds;
 
-	private DataOutputStream outputStream;
+	private OutputStream outputStream;
+	// Serialize the writes of the blocking transport.
+	private final Object writeLock = new Object();
 
 	// Indicate if an error should be thrown on socket disconnection. (False if
 	// the disconnect is a user request)
@@ -79,17 +88,55 @@ public abstract class StratumConnection implements Connection {
 
 	public StratumConnection(Socket socket) {
 		this.socket = socket;
-		this.objectMapper = new ObjectMapper();
+		this.messageHandler = new StratumJsonCodec.MessageHandler() {
+			public void onRequest(Object id, String method, List<Object> params) {
+				isFirstLine = false;
+				onRequestReceived(id, method, params);
+			}
+
+			public void onResponse(Object id, Object result, Object error) {
+				isFirstLine = false;
+				onResponseReceived(id, result, error);
+			}
+
+			public void onNotification(String method, List<Object> params) {
+				isFirstLine = false;
+				onNotificationReceived(method, params);
+			}
+		};
 		this.sentRequestIds = Collections.synchronizedMap(new HashMap<Object, JsonRpcRequest>());
 		this.throwDisconnectError = true;
 		this.disconnectOnParsingError = false;
 		this.isFirstLine = true;
 	}
 
+	/**
+	 * Build a connection using the non-blocking transport. The channel has to
+	 * be connected and in non-blocking mode. It will be served by one event
+	 * loop of the given group.
+	 * 
+	 * @param channel
+	 * @param eventLoopGroup
+	 */
+	public StratumConnection(SocketChannel channel, NioEventLoopGroup eventLoopGroup) {
+		this(channel.socket());
+		this.nioChannel = new NioStratumChannel(this, channel, eventLoopGroup.next(), eventLoopGroup.getMaxPendingWriteBytes());
+	}
+
 	@Override
 	public Integer getLocalPort() {
 		return socket.getLocalPort();
 	}
+
+	/**
+	 * Forget the sent request with the given id (request timed out). A
+	 * response received later for this request is dropped.
+	 * 
+	 * @param id
+	 */
+	public void forgetRequest(Object id) {
+		sentRequestIds.remove(id);
+	}
 	
 	/**
 	 * Send a request to the remote host.
@@ -99,18 +146,43 @@ public abstract class StratumConnection implements Connection {
 	public void sendRequest(JsonRpcRequest request) {
 		try {
 			sentRequestIds.put(request.getId(), request);
-			String json = objectMapper.writeValueAsString(request);
-			json = json.replaceAll("\":", "\": ").replaceAll(",\"", ", \"");
-
-			LOGGER.debug("{}. Send request: {}", getConnectionName(), json);
-			byte[] stringBytes = (json + "\n").getBytes("UTF-8");
-			ensureStream().write(stringBytes, 0, stringBytes.length);
-			ensureStream().flush();
+			byte[] stringBytes = StratumJsonCodec.encodeRequest(request);
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("{}. Send request: {}", getConnectionName(), new String(stringBytes, "UTF-8").trim());
+			}
+			write(stringBytes);
 		} catch (IOException e) {
 			onDisconnectWithError(e);
 		}
 	}
 
+	/**
+	 * Send the given requests to the remote host in a single write (and so a
+	 * single flush).
+	 * 
+	 * @param requests
+	 */
+	public void sendRequests(List<? extends JsonRpcRequest> requests) {
+		if (requests.size() == 1) {
+			sendRequest(requests.get(0));
+		} else if (!requests.isEmpty()) {
+			try {
+				ByteArrayOutputStream batch = new ByteArrayOutputStream(256 * requests.size());
+				for (JsonRpcRequest request : requests) {
+					sentRequestIds.put(request.getId(), request);
+					byte[] stringBytes = StratumJsonCodec.encodeRequest(request);
+					if (LOGGER.isDebugEnabled()) {
+						LOGGER.debug("{}. Send request: {}", getConnectionName(), new String(stringBytes, "UTF-8").trim());
+					}
+					batch.write(stringBytes);
+				}
+				write(batch.toByteArray());
+			} catch (IOException e) {
+				onDisconnectWithError(e);
+			}
+		}
+	}
+
 	/**
 	 * Send a response to the remote host.
 	 * 
@@ -118,13 +190,11 @@ public abstract class StratumConnection implements Connection {
 	 */
 	public void sendResponse(JsonRpcResponse response) {
 		try {
-			String json = objectMapper.writeValueAsString(response);
-			json = json.replaceAll("\":", "\": ").replaceAll(",\"", ", \"");
-
-			LOGGER.debug("{}. Send response: {}", getConnectionName(), json);
-			byte[] stringBytes = (json + "\n").getBytes("UTF-8");
-			ensureStream().write(stringBytes, 0, stringBytes.length);
-			ensureStream().flush();
+			byte[] stringBytes = StratumJsonCodec.encodeResponse(response);
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("{}. Send response: {}", getConnectionName(), new String(stringBytes, "UTF-8").trim());
+			}
+			write(stringBytes);
 		} catch (IOException e) {
 			onDisconnectWithError(e);
 		}
@@ -137,13 +207,30 @@ public abstract class StratumConnection implements Connection {
 	 */
 	public void sendNotification(JsonRpcNotification notification) {
 		try {
-			String json = objectMapper.writeValueAsString(notification);
-			json = json.replaceAll("\":", "\": ").replaceAll(",\"", ", \"");
+			byte[] stringBytes = StratumJsonCodec.encodeNotification(notification);
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("{}. Send notification: {}", getConnectionName(), new String(stringBytes, "UTF-8").trim());
+			}
+			write(stringBytes);
+		} catch (IOException e) {
+			onDisconnectWithError(e);
+		}
+	}
 
-			LOGGER.debug("{}. Send notification: {}", getConnectionName(), json);
-			byte[] stringBytes = (json + "\n").getBytes("UTF-8");
-			ensureStream().write(stringBytes, 0, stringBytes.length);
-			ensureStream().flush();
+	/**
+	 * Send an already encoded notification to the remote host. Used to
+	 * broadcast the same notification to many connections without encoding it
+	 * for each one.
+	 * 
+	 * @param notification
+	 */
+	public void sendNotification(EncodedNotification<?> notification) {
+		try {
+			byte[] stringBytes = notification.getBytes();
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("{}. Send notification: {}", getConnectionName(), new String(stringBytes, "UTF-8").trim());
+			}
+			write(stringBytes);
 		} catch (IOException e) {
 			onDisconnectWithError(e);
 		}
@@ -153,6 +240,12 @@ public abstract class StratumConnection implements Connection {
 	 * Start reading lines from the connection.
 	 */
 	public void startReading() {
+		if (nioChannel != null) {
+			LOGGER.debug("Start reading on connection {}.", getConnectionName());
+			nioChannel.start();
+			return;
+		}
+
 		readThread = new Thread() {
 			public void run() {
 				if (socket != null && socket.isConnected() && !socket.isClosed()) {
@@ -189,7 +282,11 @@ public abstract class StratumConnection implements Connection {
 	public void close() {
 		LOGGER.debug("Closing connection {}...", getConnectionName());
 		throwDisconnectError = false;
-		readThread.interrupt();
+		if (nioChannel != null) {
+			nioChannel.close();
+		} else if (readThread != null) {
+			readThread.interrupt();
+		}
 		try {
 			socket.close();
 		} catch (IOException e) {
@@ -197,6 +294,40 @@ public abstract class StratumConnection implements Connection {
 		}
 	}
 
+	/**
+	 * Write the given bytes on the connection with the transport in use.
+	 * 
+	 * @param bytes
+	 * @throws IOException
+	 */
+	private void write(byte[] bytes) throws IOException {
+		if (nioChannel != null) {
+			nioChannel.write(bytes);
+		} else {
+			synchronized (writeLock) {
+				OutputStream stream = ensureStream();
+				stream.write(bytes, 0, bytes.length);
+				stream.flush();
+			}
+		}
+	}
+
+	/**
+	 * Called by the non-blocking transport when the connection is lost.
+	 * Behaves as the end of the blocking read thread.
+	 * 
+	 * @param cause
+	 */
+	void onTransportClosed(Exception cause) {
+		try {
+			if (throwDisconnectError) {
+				onDisconnectWithError(cause);
+			}
+		} finally {
+			close();
+		}
+	}
+
 	/**
 	 * Return the output stream of the connection. If it is not available, then
 	 * throw an exception.
@@ -204,10 +335,10 @@ public abstract class StratumConnection implements Connection {
 	 * @return
 	 * @throws Exception
 	 */
-	private DataOutputStream ensureStream() throws IOException {
+	private OutputStream ensureStream() throws IOException {
 		if (outputStream == null) {
 			if (socket.isConnected() && !socket.isClosed()) {
-				outputStream = new DataOutputStream(socket.getOutputStream());
+				outputStream = new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
 			} else {
 				throw new IOException("Socket not connected.");
 			}
@@ -220,34 +351,11 @@ public abstract class StratumConnection implements Connection {
 	 * 
 	 * @param line
 	 */
-	private void onLineRead(String line) {
+	void onLineRead(String line) {
 		try {
 			LOGGER.debug("{}. Line read: {}", getConnectionName(), line);
 			try {
-				JsonRpcRequest request = objectMapper.readValue(line, JsonRpcRequest.class);
-				if (isFirstLine) {
-					isFirstLine = false;
-				}
-
-				// If there is an id, it may be a request or a response
-				if (request.getId() != null) {
-					// If there is a method name, it is a request.
-					if (request.getMethod() != null) {
-						onRequestReceived(request);
-					} else {
-						// Else it is a response
-						JsonRpcResponse response = objectMapper.readValue(line, JsonRpcResponse.class);
-						request = sentRequestIds.remove(response.getId());
-						if (request != null) {
-							onResponseReceived(request, response);
-						} else {
-							LOGGER.debug("Drop response since no request has been sent with the id {}.", response.getId());
-						}
-					}
-				} else {
-					// Else it is a notification
-					onNotificationReceived(new JsonRpcNotification(request));
-				}
+				StratumJsonCodec.decode(line, messageHandler);
 			} catch (JsonMappingException e) {
 				if (isFirstLine || disconnectOnParsingError) {
 					throw e;
@@ -264,28 +372,36 @@ public abstract class StratumConnection implements Connection {
 	/**
 	 * Called when a notification is received from the remote host.
 	 */
-	protected void onNotificationReceived(JsonRpcNotification notification) {
-		switch (notification.getMethod()) {
+	private void onNotificationReceived(String method, List<Object> params) {
+		if (method == null) {
+			LOGGER.warn("Drop message without id nor method on connection {}.", getConnectionName());
+			return;
+		}
+
+		switch (method) {
 		case MiningNotifyNotification.METHOD_NAME:
-			MiningNotifyNotification notify = new MiningNotifyNotification(notification);
+			MiningNotifyNotification notify = new MiningNotifyNotification();
+			notify.setParams(params);
 			onNotify(notify);
 			break;
 		case MiningSetDifficultyNotification.METHOD_NAME:
-			MiningSetDifficultyNotification setDiff = new MiningSetDifficultyNotification(notification);
+			MiningSetDifficultyNotification setDiff = new MiningSetDifficultyNotification();
+			setDiff.setParams(params);
 			onSetDifficulty(setDiff);
 			break;
 		case MiningSetExtranonceNotification.METHOD_NAME:
-			MiningSetExtranonceNotification setExtranonce = new MiningSetExtranonceNotification(notification);
+			MiningSetExtranonceNotification setExtranonce = new MiningSetExtranonceNotification();
+			setExtranonce.setParams(params);
 			onSetExtranonce(setExtranonce);
 			break;
 		case ClientReconnectNotification.METHOD_NAME:
-			ClientReconnectNotification clientReconnect = new ClientReconnectNotification(notification);
+			ClientReconnectNotification clientReconnect = new ClientReconnectNotification();
+			clientReconnect.setParams(params);
 			onClientReconnect(clientReconnect);
 			break;
 
 		default:
-			LOGGER.warn("Unknown notification type on connection {}. methodName: {}, params: {}", getConnectionName(), notification.getMethod(),
-					notification.getParams());
+			LOGGER.warn("Unknown notification type on connection {}. methodName: {}, params: {}", getConnectionName(), method, params);
 			break;
 		}
 	}
@@ -293,102 +409,117 @@ public abstract class StratumConnection implements Connection {
 	/**
 	 * Called when a response message is received from a previous request
 	 */
-	protected void onResponseReceived(JsonRpcRequest request, JsonRpcResponse response) {
+	private void onResponseReceived(Object id, Object result, Object error) {
+		JsonRpcRequest request = sentRequestIds.remove(id);
+		if (request == null) {
+			LOGGER.debug("Drop response since no request has been sent with the id {}.", id);
+			return;
+		}
+
 		switch (request.getMethod()) {
 		case MiningAuthorizeRequest.METHOD_NAME:
-			MiningAuthorizeRequest auhtorizeRequest = new MiningAuthorizeRequest(request);
-			MiningAuthorizeResponse authorizeResponse = new MiningAuthorizeResponse(response);
+			MiningAuthorizeRequest auhtorizeRequest = request instanceof MiningAuthorizeRequest ? (MiningAuthorizeRequest) request
+					: new MiningAuthorizeRequest(request);
+			MiningAuthorizeResponse authorizeResponse = new MiningAuthorizeResponse();
+			fillResponse(authorizeResponse, id, result, error);
 			onAuthorizeResponse(auhtorizeRequest, authorizeResponse);
 			break;
 
 		case MiningSubscribeRequest.METHOD_NAME:
-			MiningSubscribeRequest subscribeRequest = new MiningSubscribeRequest(request);
-			MiningSubscribeResponse subscribeResponse = new MiningSubscribeResponse(response);
+			MiningSubscribeRequest subscribeRequest = request instanceof MiningSubscribeRequest ? (MiningSubscribeRequest) request
+					: new MiningSubscribeRequest(request);
+			MiningSubscribeResponse subscribeResponse = new MiningSubscribeResponse();
+			fillResponse(subscribeResponse, id, result, error);
 			onSubscribeResponse(subscribeRequest, subscribeResponse);
 			break;
 
 		case MiningSubmitRequest.METHOD_NAME:
-			MiningSubmitRequest submitRequest = new MiningSubmitRequest(request);
-			MiningSubmitResponse submitResponse = new MiningSubmitResponse(response);
+			MiningSubmitRequest submitRequest = request instanceof MiningSubmitRequest ? (MiningSubmitRequest) request
+					: new MiningSubmitRequest(request);
+			MiningSubmitResponse submitResponse = new MiningSubmitResponse();
+			fillResponse(submitResponse, id, result, error);
 			onSubmitResponse(submitRequest, submitResponse);
 			break;
 
 		case MiningExtranonceSubscribeRequest.METHOD_NAME:
-			MiningExtranonceSubscribeRequest subscribeExtranonceRequest = new MiningExtranonceSubscribeRequest(request);
-			MiningExtranonceSubscribeResponse subscribeExtranonceResponse = new MiningExtranonceSubscribeResponse(response);
+			MiningExtranonceSubscribeRequest subscribeExtranonceRequest = request instanceof MiningExtranonceSubscribeRequest ? (MiningExtranonceSubscribeRequest) request
+					: new MiningExtranonceSubscribeRequest(request);
+			MiningExtranonceSubscribeResponse subscribeExtranonceResponse = new MiningExtranonceSubscribeResponse();
+			fillResponse(subscribeExtranonceResponse, id, result, error);
 			onExtranonceSubscribeResponse(subscribeExtranonceRequest, subscribeExtranonceResponse);
 			break;
 
 		case ClientGetVersionRequest.METHOD_NAME:
-			ClientGetVersionRequest getVersionRequest = new ClientGetVersionRequest(request);
-			ClientGetVersionResponse getVersionResponse = new ClientGetVersionResponse(response);
+			ClientGetVersionRequest getVersionRequest = request instanceof ClientGetVersionRequest ? (ClientGetVersionRequest) request
+					: new ClientGetVersionRequest(request);
+			ClientGetVersionResponse getVersionResponse = new ClientGetVersionResponse();
+			fillResponse(getVersionResponse, id, result, error);
 			onGetVersionResponse(getVersionRequest, getVersionResponse);
 			break;
 
 		default:
-			LOGGER.warn("Unknown response type on connection {}. methodName: {}, result: {}", getConnectionName(), request.getMethod(),
-					response.getResult());
+			LOGGER.warn("Unknown response type on connection {}. methodName: {}, result: {}", getConnectionName(), request.getMethod(), result);
 			break;
 		}
 	}
 
+	private void fillResponse(JsonRpcResponse response, Object id, Object result, Object error) {
+		response.setId(id);
+		response.setError(error);
+		response.setResult(result);
+	}
+
 	/**
 	 * Called when a request is received from the remote host
 	 */
-	protected void onRequestReceived(JsonRpcRequest request) {
-		switch (request.getMethod()) {
+	private void onRequestReceived(Object id, String method, List<Object> params) {
+		switch (method) {
 		case MiningAuthorizeRequest.METHOD_NAME:
-			MiningAuthorizeRequest auhtorizeRequest = new MiningAuthorizeRequest(request);
+			MiningAuthorizeRequest auhtorizeRequest = new MiningAuthorizeRequest();
+			auhtorizeRequest.setId(id);
+			auhtorizeRequest.setParams(params);
 			onAuthorizeRequest(auhtorizeRequest);
 			break;
 
 		case MiningSubscribeRequest.METHOD_NAME:
-			MiningSubscribeRequest subscribeRequest = new MiningSubscribeRequest(request);
+			MiningSubscribeRequest subscribeRequest = new MiningSubscribeRequest();
+			subscribeRequest.setId(id);
+			subscribeRequest.setParams(params);
 			onSubscribeRequest(subscribeRequest);
 			break;
 
 		case MiningSubmitRequest.METHOD_NAME:
-			MiningSubmitRequest submitRequest = new MiningSubmitRequest(request);
+			MiningSubmitRequest submitRequest = new MiningSubmitRequest();
+			submitRequest.setId(id);
+			submitRequest.setParams(params);
 			onSubmitRequest(submitRequest);
 			break;
 
 		case MiningExtranonceSubscribeRequest.METHOD_NAME:
-			MiningExtranonceSubscribeRequest extranonceSubscribeRequest = new MiningExtranonceSubscribeRequest(request);
+			MiningExtranonceSubscribeRequest extranonceSubscribeRequest = new MiningExtranonceSubscribeRequest();
+			extranonceSubscribeRequest.setId(id);
+			extranonceSubscribeRequest.setParams(params);
 			onExtranonceSubscribeRequest(extranonceSubscribeRequest);
 			break;
 
 		case ClientGetVersionRequest.METHOD_NAME:
-			ClientGetVersionRequest getVersionRequest = new ClientGetVersionRequest(request);
+			ClientGetVersionRequest getVersionRequest = new ClientGetVersionRequest();
+			getVersionRequest.setId(id);
+			getVersionRequest.setParams(params);
 			onGetVersionRequest(getVersionRequest);
 			break;
 
 		// Following requests are notifications, but some pools does not respect
 		// the stratum protocol and send notifications as requests.
 		case ClientReconnectNotification.METHOD_NAME:
-			ClientReconnectNotification clientReconnect = new ClientReconnectNotification();
-			clientReconnect.setParams(request.getParams());
-			onClientReconnect(clientReconnect);
-			break;
-
 		case MiningNotifyNotification.METHOD_NAME:
-			MiningNotifyNotification notify = new MiningNotifyNotification();
-			notify.setParams(request.getParams());
-			onNotify(notify);
-			break;
 		case MiningSetDifficultyNotification.METHOD_NAME:
-			MiningSetDifficultyNotification setDiff = new MiningSetDifficultyNotification();
-			setDiff.setParams(request.getParams());
-			onSetDifficulty(setDiff);
-			break;
 		case MiningSetExtranonceNotification.METHOD_NAME:
-			MiningSetExtranonceNotification setExtranonce = new MiningSetExtranonceNotification();
-			setExtranonce.setParams(request.getParams());
-			onSetExtranonce(setExtranonce);
+			onNotificationReceived(method, params);
 			break;
 
 		default:
-			LOGGER.warn("Unknown request type on connection {}. methodName: {}, id: {}, params: {}", getConnectionName(), request.getMethod(),
-					request.getId(), request.getParams());
+			LOGGER.warn("Unknown request type on connection {}. methodName: {}, id: {}, params: {}", getConnectionName(), method, id, params);
 			break;
 		}
 	}
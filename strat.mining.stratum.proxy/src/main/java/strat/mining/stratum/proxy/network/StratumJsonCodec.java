@@ -0,0 +1,362 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import strat.mining.stratum.proxy.json.JsonRpcNotification;
+import strat.mining.stratum.proxy.json.JsonRpcRequest;
+import strat.mining.stratum.proxy.json.JsonRpcResponse;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.PrettyPrinter;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Streaming encoder/decoder of the Stratum JSON-RPC lines.
+ *
+ * The encoder directly writes the spaced format expected by some miners
+ * ({"id": 1, "method": "mining.notify", "params": ["a", "b"]}).
+ *
+ * The decoder parses each line exactly once and gives the raw members to a
+ * {@link MessageHandler} which dispatches on the method name.
+ *
+ * @author Strat
+ *
+ */
+public final class StratumJsonCodec {
+
+	// Only used as codec for the values which are not plain JSON types (such
+	// as JsonRpcError). Thread safe.
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private static final JsonFactory JSON_FACTORY = OBJECT_MAPPER.getFactory();
+
+	private static final PrettyPrinter SPACED_PRINTER = new SpacedPrettyPrinter();
+
+	private StratumJsonCodec() {
+	}
+
+	/**
+	 * Receive the members of a decoded line.
+	 *
+	 * @author Strat
+	 *
+	 */
+	public interface MessageHandler {
+
+		/**
+		 * Called when the line is a request (id and method are present)
+		 *
+		 * @param id
+		 * @param method
+		 * @param params
+		 */
+		public void onRequest(Object id, String method, List<Object> params);
+
+		/**
+		 * Called when the line is a response (id is present, but no method)
+		 *
+		 * @param id
+		 * @param result
+		 * @param error
+		 */
+		public void onResponse(Object id, Object result, Object error);
+
+		/**
+		 * Called when the line is a notification (no id)
+		 *
+		 * @param method
+		 * @param params
+		 */
+		public void onNotification(String method, List<Object> params);
+
+	}
+
+	/**
+	 * Encode the request as a line.
+	 *
+	 * @param request
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] encodeRequest(JsonRpcRequest request) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream(256);
+		JsonGenerator generator = createGenerator(output);
+		generator.writeStartObject();
+		generator.writeFieldName("id");
+		writeValue(generator, request.getId());
+		generator.writeStringField("method", request.getMethod());
+		generator.writeFieldName("params");
+		writeValue(generator, request.getParams());
+		if (request.getJsonrpc() != null) {
+			generator.writeStringField("jsonrpc", request.getJsonrpc());
+		}
+		generator.writeEndObject();
+		return endLine(generator, output);
+	}
+
+	/**
+	 * Encode the notification as a line.
+	 *
+	 * @param notification
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] encodeNotification(JsonRpcNotification notification) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream(512);
+		JsonGenerator generator = createGenerator(output);
+		generator.writeStartObject();
+		generator.writeNullField("id");
+		generator.writeStringField("method", notification.getMethod());
+		generator.writeFieldName("params");
+		writeValue(generator, notification.getParams());
+		if (notification.getJsonrpc() != null) {
+			generator.writeStringField("jsonrpc", notification.getJsonrpc());
+		}
+		generator.writeEndObject();
+		return endLine(generator, output);
+	}
+
+	/**
+	 * Encode the response as a line.
+	 *
+	 * @param response
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] encodeResponse(JsonRpcResponse response) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream(128);
+		JsonGenerator generator = createGenerator(output);
+		generator.writeStartObject();
+		generator.writeFieldName("id");
+		writeValue(generator, response.getId());
+		generator.writeFieldName("result");
+		writeValue(generator, response.getResult());
+		generator.writeFieldName("error");
+		writeValue(generator, response.getError());
+		if (response.getJsonrpc() != null) {
+			generator.writeStringField("jsonrpc", response.getJsonrpc());
+		}
+		generator.writeEndObject();
+		return endLine(generator, output);
+	}
+
+	/**
+	 * Parse the line and call the handler method matching the message type.
+	 *
+	 * @param line
+	 * @param handler
+	 * @throws IOException
+	 *             if the line is not a valid JSON-RPC message. A
+	 *             {@link JsonMappingException} is thrown if the line is valid
+	 *             JSON but not a JSON-RPC message.
+	 */
+	@SuppressWarnings("unchecked")
+	public static void decode(String line, MessageHandler handler) throws IOException {
+		Object id = null;
+		String method = null;
+		List<Object> params = null;
+		Object result = null;
+		Object error = null;
+
+		JsonParser parser = JSON_FACTORY.createParser(line);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonMappingException("A JSON-RPC message has to be a JSON object.", parser.getCurrentLocation());
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String fieldName = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				switch (fieldName) {
+				case "id":
+					id = readValue(parser, token);
+					break;
+				case "method":
+					method = token == JsonToken.VALUE_NULL ? null : parser.getValueAsString();
+					break;
+				case "params":
+					Object paramsValue = readValue(parser, token);
+					if (paramsValue != null && !(paramsValue instanceof List)) {
+						throw new JsonMappingException("The params member has to be an array.", parser.getCurrentLocation());
+					}
+					params = (List<Object>) paramsValue;
+					break;
+				case "result":
+					result = readValue(parser, token);
+					break;
+				case "error":
+					error = readValue(parser, token);
+					break;
+				default:
+					parser.skipChildren();
+					break;
+				}
+			}
+		} finally {
+			parser.close();
+		}
+
+		if (id != null) {
+			if (method != null) {
+				handler.onRequest(id, method, params);
+			} else {
+				handler.onResponse(id, result, error);
+			}
+		} else {
+			handler.onNotification(method, params);
+		}
+	}
+
+	private static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+		Object value = null;
+		switch (token) {
+		case VALUE_NULL:
+			break;
+		case VALUE_STRING:
+			value = parser.getText();
+			break;
+		case VALUE_NUMBER_INT:
+			value = parser.getNumberValue();
+			break;
+		case VALUE_TRUE:
+			value = Boolean.TRUE;
+			break;
+		case VALUE_FALSE:
+			value = Boolean.FALSE;
+			break;
+		default:
+			// Arrays, objects and floats are built as Jackson does when
+			// binding to Object (List, Map, Double)
+			value = parser.readValueAs(Object.class);
+			break;
+		}
+		return value;
+	}
+
+	private static JsonGenerator createGenerator(ByteArrayOutputStream output) throws IOException {
+		JsonGenerator generator = JSON_FACTORY.createGenerator(output, JsonEncoding.UTF8);
+		generator.setPrettyPrinter(SPACED_PRINTER);
+		return generator;
+	}
+
+	private static byte[] endLine(JsonGenerator generator, ByteArrayOutputStream output) throws IOException {
+		generator.close();
+		output.write('\n');
+		return output.toByteArray();
+	}
+
+	/**
+	 * Write the value with a fast path for the types found in stratum
+	 * messages. Other objects are serialized by Jackson.
+	 *
+	 * @param generator
+	 * @param value
+	 * @throws IOException
+	 */
+	private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+		if (value == null) {
+			generator.writeNull();
+		} else if (value instanceof String) {
+			generator.writeString((String) value);
+		} else if (value instanceof Integer) {
+			generator.writeNumber((Integer) value);
+		} else if (value instanceof Long) {
+			generator.writeNumber((Long) value);
+		} else if (value instanceof Double) {
+			generator.writeNumber((Double) value);
+		} else if (value instanceof Boolean) {
+			generator.writeBoolean((Boolean) value);
+		} else if (value instanceof List) {
+			generator.writeStartArray();
+			for (Object item : (List<?>) value) {
+				writeValue(generator, item);
+			}
+			generator.writeEndArray();
+		} else {
+			generator.writeObject(value);
+		}
+	}
+
+	/**
+	 * Write ": " between names and values and ", " between members/items, on a
+	 * single line.
+	 *
+	 * @author Strat
+	 *
+	 */
+	private static class SpacedPrettyPrinter implements PrettyPrinter {
+
+		@Override
+		public void writeRootValueSeparator(JsonGenerator jg) throws IOException {
+		}
+
+		@Override
+		public void writeStartObject(JsonGenerator jg) throws IOException {
+			jg.writeRaw('{');
+		}
+
+		@Override
+		public void writeEndObject(JsonGenerator jg, int nrOfEntries) throws IOException {
+			jg.writeRaw('}');
+		}
+
+		@Override
+		public void writeObjectEntrySeparator(JsonGenerator jg) throws IOException {
+			jg.writeRaw(", ");
+		}
+
+		@Override
+		public void writeObjectFieldValueSeparator(JsonGenerator jg) throws IOException {
+			jg.writeRaw(": ");
+		}
+
+		@Override
+		public void writeStartArray(JsonGenerator jg) throws IOException {
+			jg.writeRaw('[');
+		}
+
+		@Override
+		public void writeEndArray(JsonGenerator jg, int nrOfValues) throws IOException {
+			jg.writeRaw(']');
+		}
+
+		@Override
+		public void writeArrayValueSeparator(JsonGenerator jg) throws IOException {
+			jg.writeRaw(", ");
+		}
+
+		@Override
+		public void beforeArrayValues(JsonGenerator jg) throws IOException {
+		}
+
+		@Override
+		public void beforeObjectEntries(JsonGenerator jg) throws IOException {
+		}
+
+	}
+
+}
@@ -0,0 +1,210 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.pool;
+
+import java.util.List;
+
+import strat.mining.stratum.proxy.json.MiningNotifyNotification;
+import strat.mining.stratum.proxy.utils.HexUtils;
+import strat.mining.stratum.proxy.utils.mining.SHA256Engine;
+
+/**
+ * The block header of a pool job, built with the extranonce1 of the pool.
+ * The fields of the job are decoded once, so only the coinbase and the merkle
+ * root are computed for each share.
+ * 
+ * The built header is the 80 bytes serialized header, as hashed by the pool.
+ * 
+ * @author Strat
+ * 
+ */
+public class BlockHeaderTemplate {
+
+	public static final int BLOCK_HEADER_LENGTH = 80;
+
+	private static final int PREVIOUS_HASH_POSITION = 4;
+	private static final int MERKLE_ROOT_POSITION = 36;
+	private static final int NTIME_POSITION = 68;
+	private static final int BITS_POSITION = 72;
+	private static final int NONCE_POSITION = 76;
+
+	// The buffers used to build the headers, by thread.
+	private static final ThreadLocal<HeaderBuffers> HEADER_BUFFERS = new ThreadLocal<HeaderBuffers>() {
+		protected HeaderBuffers initialValue() {
+			return new HeaderBuffers();
+		}
+	};
+
+	private final String jobId;
+	private final String extranonce1;
+	private final double difficulty;
+
+	// The coinbase up to the extranonce2 (coinbase1 + extranonce1) and after
+	// it (coinbase2).
+	private final byte[] coinbasePrefix;
+	private final byte[] coinbaseSuffix;
+	private final byte[][] merkleBranches;
+
+	// The header with the version, previous hash and bits. The merkle root,
+	// ntime and nonce are set for each share.
+	private final byte[] headerTemplate;
+
+	/**
+	 * Build the template of the given job for the given extranonce1. The
+	 * difficulty is the pool difficulty when the job has been received.
+	 * 
+	 * @param notify
+	 * @param extranonce1
+	 * @param difficulty
+	 */
+	public BlockHeaderTemplate(MiningNotifyNotification notify, String extranonce1, double difficulty) {
+		this.jobId = notify.getJobId();
+		this.extranonce1 = extranonce1;
+		this.difficulty = difficulty;
+
+		String coinbase1 = notify.getCoinbase1();
+		this.coinbasePrefix = new byte[(coinbase1.length() + extranonce1.length()) / 2];
+		int coinbase1Length = HexUtils.decodeHexInto(coinbase1, coinbasePrefix, 0);
+		HexUtils.decodeHexInto(extranonce1, coinbasePrefix, coinbase1Length);
+		this.coinbaseSuffix = new byte[notify.getCoinbase2().length() / 2];
+		HexUtils.decodeHexInto(notify.getCoinbase2(), coinbaseSuffix, 0);
+
+		List<String> branches = notify.getMerkleBranches();
+		this.merkleBranches = new byte[branches == null ? 0 : branches.size()][];
+		for (int i = 0; i < merkleBranches.length; i++) {
+			merkleBranches[i] = new byte[SHA256Engine.DIGEST_LENGTH];
+			decodeInto(branches.get(i), merkleBranches[i], 0, SHA256Engine.DIGEST_LENGTH);
+		}
+
+		this.headerTemplate = new byte[BLOCK_HEADER_LENGTH];
+		decodeSwappedInto(notify.getBitcoinVersion(), headerTemplate, 0, 4);
+		decodeSwappedInto(notify.getPreviousHash(), headerTemplate, PREVIOUS_HASH_POSITION, 32);
+		decodeSwappedInto(notify.getNetworkDifficultyBits(), headerTemplate, BITS_POSITION, 4);
+	}
+
+	/**
+	 * Build the block header of the share with the given values. The
+	 * extranonce2 is the full extranonce2 sent to the pool.
+	 * 
+	 * The returned array is a buffer of the current thread, reused on the next
+	 * call. Nothing is allocated.
+	 * 
+	 * @param extranonce2
+	 * @param ntime
+	 * @param nonce
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if a value is not a valid hexadecimal string of the
+	 *             expected size.
+	 */
+	public byte[] buildHeader(String extranonce2, String ntime, String nonce) {
+		HeaderBuffers buffers = HEADER_BUFFERS.get();
+		byte[] header = buffers.header;
+		System.arraycopy(headerTemplate, 0, header, 0, BLOCK_HEADER_LENGTH);
+		System.arraycopy(buildMerkleRoot(buffers, extranonce2), 0, header, MERKLE_ROOT_POSITION, SHA256Engine.DIGEST_LENGTH);
+		decodeSwappedInto(ntime, header, NTIME_POSITION, 4);
+		decodeSwappedInto(nonce, header, NONCE_POSITION, 4);
+		return header;
+	}
+
+	/**
+	 * Return the merkle buffer of the given buffers, with the merkle root in
+	 * its first 32 bytes.
+	 */
+	private byte[] buildMerkleRoot(HeaderBuffers buffers, String extranonce2) {
+		SHA256Engine sha256 = SHA256Engine.get();
+
+		// coinbase = coinbase1 + extranonce1 + extranonce2 + coinbase2
+		int coinbaseLength = coinbasePrefix.length + extranonce2.length() / 2 + coinbaseSuffix.length;
+		byte[] coinbase = buffers.getCoinbase(coinbaseLength);
+		System.arraycopy(coinbasePrefix, 0, coinbase, 0, coinbasePrefix.length);
+		int extranonce2Length = HexUtils.decodeHexInto(extranonce2, coinbase, coinbasePrefix.length);
+		System.arraycopy(coinbaseSuffix, 0, coinbase, coinbasePrefix.length + extranonce2Length, coinbaseSuffix.length);
+
+		// The current hash is in the first half of the buffer, the branch is
+		// appended in the second half.
+		byte[] merkleRoot = buffers.merkleRoot;
+		sha256.doubleHash(coinbase, 0, coinbaseLength, merkleRoot, 0);
+		for (byte[] merkleBranch : merkleBranches) {
+			System.arraycopy(merkleBranch, 0, merkleRoot, SHA256Engine.DIGEST_LENGTH, SHA256Engine.DIGEST_LENGTH);
+			sha256.doubleHash(merkleRoot, 0, 2 * SHA256Engine.DIGEST_LENGTH, merkleRoot, 0);
+		}
+		return merkleRoot;
+	}
+
+	/**
+	 * Decode the hexadecimal string into the destination at the given
+	 * position. The string has to encode length bytes.
+	 */
+	private static void decodeInto(String hex, byte[] destination, int position, int length) {
+		if (hex.length() != 2 * length) {
+			throw new IllegalArgumentException("Expected " + length + " bytes, got " + hex.length() / 2 + " bytes.");
+		}
+		HexUtils.decodeHexInto(hex, destination, position);
+	}
+
+	/**
+	 * Decode the hexadecimal string into the destination at the given
+	 * position, with the bytes of each 32 bits word swapped. The string has
+	 * to encode length bytes.
+	 */
+	private static void decodeSwappedInto(String hex, byte[] destination, int position, int length) {
+		decodeInto(hex, destination, position, length);
+		for (int i = position; i < position + length; i += 4) {
+			byte swap = destination[i];
+			destination[i] = destination[i + 3];
+			destination[i + 3] = swap;
+			swap = destination[i + 1];
+			destination[i + 1] = destination[i + 2];
+			destination[i + 2] = swap;
+		}
+	}
+
+	public String getJobId() {
+		return jobId;
+	}
+
+	public String getExtranonce1() {
+		return extranonce1;
+	}
+
+	/**
+	 * Return the pool difficulty when the job has been received.
+	 * 
+	 * @return
+	 */
+	public double getDifficulty() {
+		return difficulty;
+	}
+
+	private static class HeaderBuffers {
+		private final byte[] header = new byte[BLOCK_HEADER_LENGTH];
+		// The current hash followed by the merkle branch.
+		private final byte[] merkleRoot = new byte[2 * SHA256Engine.DIGEST_LENGTH];
+		private byte[] coinbase = new byte[256];
+
+		public byte[] getCoinbase(int length) {
+			if (coinbase.length < length) {
+				coinbase = new byte[length];
+			}
+			return coinbase;
+		}
+	}
+
+}
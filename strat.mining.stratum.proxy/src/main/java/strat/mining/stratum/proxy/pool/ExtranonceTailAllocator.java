@@ -0,0 +1,148 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.pool;
+
+import java.util.BitSet;
+
+import strat.mining.stratum.proxy.exception.TooManyWorkersException;
+
+/**
+ * Allocate the extranonce1 tails of the worker connections of a pool. A tail
+ * is the first tailSize bytes of the pool extranonce2, so each worker
+ * connection works on its own part of the pool extranonce2 space.
+ *
+ * The used tails are tracked in a bitset. The search of a free tail starts
+ * after the last allocated one, so a released tail is not reused before all
+ * others.
+ *
+ * @author Strat
+ *
+ */
+public class ExtranonceTailAllocator {
+
+	// Above 3 bytes, the bitset would be too big (and no pool will give an
+	// extranonce2 large enough).
+	public static final int MAX_TAIL_SIZE = 3;
+
+	private final int tailSize;
+	private final int numberOfTails;
+
+	private final BitSet usedTails;
+	private int numberOfUsedTails;
+	private int nextTail;
+
+	/**
+	 * Create an allocator of tails of the given size (in bytes).
+	 *
+	 * @param tailSize
+	 */
+	public ExtranonceTailAllocator(int tailSize) {
+		if (tailSize < 1 || tailSize > MAX_TAIL_SIZE) {
+			throw new IllegalArgumentException("The extranonce1 tail size has to be between 1 and " + MAX_TAIL_SIZE + " bytes. Size: " + tailSize);
+		}
+		this.tailSize = tailSize;
+		this.numberOfTails = 1 << (8 * tailSize);
+		this.usedTails = new BitSet();
+	}
+
+	/**
+	 * Return a free tail as an hexadecimal string.
+	 *
+	 * @return
+	 * @throws TooManyWorkersException
+	 *             if all tails are used.
+	 */
+	public synchronized String allocate() throws TooManyWorkersException {
+		if (numberOfUsedTails >= numberOfTails) {
+			throw new TooManyWorkersException("All the " + numberOfTails + " extranonce1 tails are used.");
+		}
+
+		int tail = usedTails.nextClearBit(nextTail);
+		if (tail >= numberOfTails) {
+			// Wrap around
+			tail = usedTails.nextClearBit(0);
+		}
+		usedTails.set(tail);
+		numberOfUsedTails++;
+		nextTail = tail + 1 < numberOfTails ? tail + 1 : 0;
+
+		return toHex(tail);
+	}
+
+	/**
+	 * Release the given tail. Return false if the tail was not allocated by
+	 * this allocator (already released or unknown).
+	 *
+	 * @param tail
+	 * @return
+	 */
+	public synchronized boolean release(String tail) {
+		boolean isReleased = false;
+		if (tail != null && tail.length() == tailSize * 2) {
+			try {
+				int index = Integer.parseInt(tail, 16);
+				if (usedTails.get(index)) {
+					usedTails.clear(index);
+					numberOfUsedTails--;
+					isReleased = true;
+				}
+			} catch (NumberFormatException e) {
+				// Not a tail of this allocator.
+			}
+		}
+		return isReleased;
+	}
+
+	/**
+	 * Return the size of the tails in bytes.
+	 *
+	 * @return
+	 */
+	public int getTailSize() {
+		return tailSize;
+	}
+
+	/**
+	 * Return the number of allocated tails.
+	 *
+	 * @return
+	 */
+	public synchronized int getNumberOfUsedTails() {
+		return numberOfUsedTails;
+	}
+
+	/**
+	 * Return the number of tails which can still be allocated.
+	 *
+	 * @return
+	 */
+	public synchronized int getNumberOfFreeTails() {
+		return numberOfTails - numberOfUsedTails;
+	}
+
+	private String toHex(int tail) {
+		char[] result = new char[tailSize * 2];
+		for (int i = result.length - 1; i >= 0; i--) {
+			result[i] = Character.forDigit(tail & 0xF, 16);
+			tail >>>= 4;
+		}
+		return new String(result);
+	}
+
+}
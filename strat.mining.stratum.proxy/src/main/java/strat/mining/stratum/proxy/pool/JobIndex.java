@@ -0,0 +1,181 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.pool;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import strat.mining.stratum.proxy.json.MiningNotifyNotification;
+
+/**
+ * The jobs of a pool on which shares can still be submitted. A notify with the
+ * clean jobs flag invalidates all the previous jobs. The number of jobs is
+ * bounded: the oldest job is removed when the bound is reached.
+ * 
+ * The fingerprints of the shares submitted on a job are kept with the job to
+ * detect the duplicate shares. They are dropped with the job.
+ * 
+ * The jobs are added by the pool thread and read by the worker threads
+ * without lock.
+ * 
+ * @author Strat
+ * 
+ */
+public class JobIndex {
+
+	private final int maxNumberOfJobs;
+
+	private final Map<String, Job> liveJobs;
+
+	// The job IDs from the oldest to the newest. Guarded by this.
+	private final Deque<String> jobIds;
+
+	/**
+	 * Create an index keeping at most maxNumberOfJobs jobs.
+	 * 
+	 * @param maxNumberOfJobs
+	 */
+	public JobIndex(int maxNumberOfJobs) {
+		if (maxNumberOfJobs < 1) {
+			throw new IllegalArgumentException("The max number of jobs has to be greater than 0. Value: " + maxNumberOfJobs);
+		}
+		this.maxNumberOfJobs = maxNumberOfJobs;
+		this.liveJobs = new ConcurrentHashMap<String, Job>();
+		this.jobIds = new ArrayDeque<String>(maxNumberOfJobs);
+	}
+
+	/**
+	 * Add the job of the given notify, received when the pool difficulty was
+	 * the given one. If the clean jobs flag of the notify is set, all the
+	 * previous jobs are removed.
+	 * 
+	 * @param notify
+	 * @param difficulty
+	 */
+	public synchronized void addJob(MiningNotifyNotification notify, double difficulty) {
+		if (Boolean.TRUE.equals(notify.getCleanJobs())) {
+			clear();
+		}
+
+		if (liveJobs.put(notify.getJobId(), new Job(notify, difficulty)) == null) {
+			jobIds.addLast(notify.getJobId());
+			if (jobIds.size() > maxNumberOfJobs) {
+				liveJobs.remove(jobIds.removeFirst());
+			}
+		}
+	}
+
+	/**
+	 * Return true if shares can be submitted on the job with the given ID.
+	 * 
+	 * @param jobId
+	 * @return
+	 */
+	public boolean isLive(String jobId) {
+		return jobId != null && liveJobs.containsKey(jobId);
+	}
+
+	/**
+	 * Return the notify of the live job with the given ID, or null if the job
+	 * is unknown or no more live.
+	 * 
+	 * @param jobId
+	 * @return
+	 */
+	public MiningNotifyNotification getJob(String jobId) {
+		Job job = jobId == null ? null : liveJobs.get(jobId);
+		return job == null ? null : job.notify;
+	}
+
+	/**
+	 * Return the block header template of the live job with the given ID for
+	 * the given extranonce1, or null if the job is unknown or no more live.
+	 * The template is built on the first call.
+	 * 
+	 * @param jobId
+	 * @param extranonce1
+	 * @return
+	 */
+	public BlockHeaderTemplate getBlockHeaderTemplate(String jobId, String extranonce1) {
+		Job job = jobId == null ? null : liveJobs.get(jobId);
+		return job == null ? null : job.getBlockHeaderTemplate(extranonce1);
+	}
+
+	/**
+	 * Register the share on its job. Return false if the same share (same
+	 * extranonce2, ntime and nonce) has already been registered on the job.
+	 * Return true if the share is new or if its job is not live.
+	 * 
+	 * @param jobId
+	 * @param extranonce2
+	 * @param ntime
+	 * @param nonce
+	 * @return
+	 */
+	public boolean registerShare(String jobId, String extranonce2, String ntime, String nonce) {
+		Job job = jobId == null ? null : liveJobs.get(jobId);
+		return job == null || job.shareFingerprints.add(extranonce2, ntime, nonce);
+	}
+
+	/**
+	 * Remove all the jobs.
+	 */
+	public synchronized void clear() {
+		liveJobs.clear();
+		jobIds.clear();
+	}
+
+	/**
+	 * Return the number of live jobs.
+	 * 
+	 * @return
+	 */
+	public int getNumberOfLiveJobs() {
+		return liveJobs.size();
+	}
+
+	private static class Job {
+
+		private final MiningNotifyNotification notify;
+		private final double difficulty;
+		private final ShareFingerprintSet shareFingerprints;
+
+		// Built on demand. Rebuilt if the extranonce1 of the pool changes.
+		private volatile BlockHeaderTemplate blockHeaderTemplate;
+
+		public Job(MiningNotifyNotification notify, double difficulty) {
+			this.notify = notify;
+			this.difficulty = difficulty;
+			this.shareFingerprints = new ShareFingerprintSet();
+		}
+
+		public BlockHeaderTemplate getBlockHeaderTemplate(String extranonce1) {
+			BlockHeaderTemplate template = blockHeaderTemplate;
+			if (template == null || !template.getExtranonce1().equals(extranonce1)) {
+				// Concurrent builds give the same template, keep the last one.
+				template = new BlockHeaderTemplate(notify, extranonce1, difficulty);
+				blockHeaderTemplate = template;
+			}
+			return template;
+		}
+	}
+
+}
@@ -25,16 +25,19 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,11 +63,17 @@ import strat.mining.stratum.proxy.json.MiningSubscribeResponse;
 import strat.mining.stratum.proxy.json.MiningSuggestDifficultyRequest;
 import strat.mining.stratum.proxy.manager.ProxyInstance;
 import strat.mining.stratum.proxy.model.Share;
+import strat.mining.stratum.proxy.network.NioEventLoopGroup;
 import strat.mining.stratum.proxy.utils.Timer;
 import strat.mining.stratum.proxy.utils.Timer.Task;
-import strat.mining.stratum.proxy.utils.mining.HashrateUtils;
+import strat.mining.stratum.proxy.utils.mining.HashrateWindow;
+import strat.mining.stratum.proxy.worker.WorkerConnection;
 
 import com.google.common.util.concurrent.AtomicDouble;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
 public class Pool {
 
@@ -78,8 +87,8 @@ public class Pool {
 	private String username;
 	private String password;
 
-	private Double difficulty;
-	private String extranonce1;
+	private volatile Double difficulty;
+	private volatile String extranonce1;
 	private Integer extranonce2Size;
 
 	private Date readySince;
@@ -94,9 +103,11 @@ public class Pool {
 
 	private String workerSeparator;
 
-	private PoolConnection connection;
+	private volatile PoolConnection connection;
 
 	private MiningNotifyNotification currentJob;
+	// The jobs on which shares can still be submitted.
+	private final JobIndex jobIndex;
 
 	private Task reconnectTask;
 	private Task notifyTimeoutTask;
@@ -113,10 +124,10 @@ public class Pool {
 	private AtomicDouble acceptedDifficulty;
 	private AtomicDouble rejectedDifficulty;
 
-	private Deque<Share> lastAcceptedShares;
-	private Deque<Share> lastRejectedShares;
-	// Time of sampling shares to calculate hash rate
-	private Integer samplingHashratePeriod = Constants.DEFAULT_POOL_HASHRATE_SAMPLING_PERIOD * 1000;
+	// Difficulty of the shares submitted during the sampling period, to
+	// calculate hash rate
+	private HashrateWindow acceptedHashrate;
+	private HashrateWindow rejectedHashrate;
 
 	private Integer connectionRetryDelay = Constants.DEFAULT_POOL_CONNECTION_RETRY_DELAY;
 	private Integer reconnectStabilityPeriod = Constants.DEFAULT_POOL_RECONNECTION_STABILITY_PERIOD;
@@ -124,15 +135,40 @@ public class Pool {
 
 	private Boolean isRejectReconnect = false;
 
-	// Store the callbacks to call when the pool responds to a submit request.
-	private Map<Object, ResponseReceivedCallback<MiningSubmitRequest, MiningSubmitResponse>> submitCallbacks;
+	// Allocate the extranonce1 tails of the worker connections. Kept across
+	// restarts since the workers release their tail on the pool they got it
+	// from.
+	private volatile ExtranonceTailAllocator tailAllocator;
+
+	// The configured pool for which this upstream session has been opened.
+	// Null if this pool is the configured pool.
+	private final Pool parent;
+	// The additional upstream sessions opened when the worker connections do
+	// not fit in this one. Only used on the configured pool.
+	private final List<Pool> childSessions;
+	private final AtomicInteger sessionCounter;
+	private Integer maxWorkersPerUpstreamSession = Constants.DEFAULT_MAX_WORKERS_PER_UPSTREAM_SESSION;
+	private Integer maxUpstreamSessionsPerPool = Constants.DEFAULT_MAX_UPSTREAM_SESSIONS_PER_POOL;
+
+	// Send the submit requests and call the callbacks when the pool responds.
+	private final SubmitPipeline submitPipeline;
+
+	// The shares submitted while the pool is reconnecting.
+	private final ShareBuffer shareBuffer;
+	private Task shareBufferExpirationTask;
+
+	// The ID of the current session, sent on reconnection to resume it.
+	private volatile String sessionId;
+	// True once a job has been received on the current connection.
+	private volatile boolean isJobReceived;
 
 	// Store the callbacks to call when the pool responds to worker authorize
 	// request.
 	private Map<Object, ResponseReceivedCallback<MiningAuthorizeRequest, MiningAuthorizeResponse>> authorizeCallbacks;
 
 	private Set<String> authorizedWorkers;
-	private Map<String, CountDownLatch> pendingAuthorizeRequests;
+	// The authorizations in progress by username.
+	private ConcurrentMap<String, SettableFuture<Void>> pendingAuthorizeRequests;
 
 	private String lastStopCause;
 	private Date lastStopDate;
@@ -140,8 +176,44 @@ public class Pool {
 	private final CryptoAlgorithm algo;
 	
 	public Pool(String name, String host, String username, String password, CryptoAlgorithm algo) {
+		this(name, host, username, password, algo, null);
+	}
+
+	/**
+	 * Create an additional upstream session of the given pool. The session
+	 * uses the same settings as the pool.
+	 * 
+	 * @param parent
+	 * @param sessionIndex
+	 */
+	private Pool(Pool parent, int sessionIndex) {
+		this(parent.getName() + "#" + sessionIndex, parent.host, parent.username, parent.password, parent.algo, parent);
+		this.isAppendWorkerNames = parent.isAppendWorkerNames;
+		this.isUseWorkerPassword = parent.isUseWorkerPassword;
+		this.workerSeparator = parent.workerSeparator;
+		this.isExtranonceSubscribeEnabled = parent.isExtranonceSubscribeEnabled;
+		this.numberOfSubmit = parent.numberOfSubmit;
+		this.priority = parent.priority;
+		this.weight = parent.weight;
+		this.reconnectStabilityPeriod = parent.reconnectStabilityPeriod;
+		this.noNotifyTimeout = parent.noNotifyTimeout;
+		this.isRejectReconnect = parent.isRejectReconnect;
+		this.maxWorkersPerUpstreamSession = parent.maxWorkersPerUpstreamSession;
+		this.submitPipeline.setMaxInFlightSubmits(parent.submitPipeline.getMaxInFlightSubmits());
+		this.submitPipeline.setBackpressurePolicy(parent.submitPipeline.getBackpressurePolicy());
+		this.shareBuffer.setMaxSize(parent.shareBuffer.getMaxSize());
+		this.shareBuffer.setDeadline(parent.shareBuffer.getDeadline());
+		this.tailAllocator = new ExtranonceTailAllocator(parent.tailAllocator.getTailSize());
+		this.acceptedHashrate.setSamplingPeriod(parent.acceptedHashrate.getSamplingPeriod());
+		this.rejectedHashrate.setSamplingPeriod(parent.rejectedHashrate.getSamplingPeriod());
+	}
+
+	private Pool(String name, String host, String username, String password, CryptoAlgorithm algo, Pool parent) {
 		super();
 		this.algo = algo;
+		this.parent = parent;
+		this.childSessions = new CopyOnWriteArrayList<Pool>();
+		this.sessionCounter = new AtomicInteger(0);
 		this.name = name == null || name.isEmpty() ? host : name;
 		this.host = host;
 		this.username = username;
@@ -154,14 +226,17 @@ public class Pool {
 		acceptedDifficulty = new AtomicDouble(0);
 		rejectedDifficulty = new AtomicDouble(0);
 
-		this.submitCallbacks = Collections
-				.synchronizedMap(new HashMap<Object, ResponseReceivedCallback<MiningSubmitRequest, MiningSubmitResponse>>());
+		this.tailAllocator = new ExtranonceTailAllocator(Constants.DEFAULT_EXTRANONCE1_TAIL_SIZE);
+
+		this.submitPipeline = new SubmitPipeline(this);
+		this.shareBuffer = new ShareBuffer(Constants.DEFAULT_SHARE_BUFFER_SIZE, Constants.DEFAULT_SHARE_BUFFER_DEADLINE);
+		this.jobIndex = new JobIndex(Constants.DEFAULT_POOL_MAX_LIVE_JOBS);
 		this.authorizeCallbacks = Collections
 				.synchronizedMap(new HashMap<Object, ResponseReceivedCallback<MiningAuthorizeRequest, MiningAuthorizeResponse>>());
-		this.lastAcceptedShares = new ConcurrentLinkedDeque<Share>();
-		this.lastRejectedShares = new ConcurrentLinkedDeque<Share>();
+		this.acceptedHashrate = new HashrateWindow(Constants.DEFAULT_POOL_HASHRATE_SAMPLING_PERIOD, algo);
+		this.rejectedHashrate = new HashrateWindow(Constants.DEFAULT_POOL_HASHRATE_SAMPLING_PERIOD, algo);
 		this.authorizedWorkers = Collections.synchronizedSet(new HashSet<String>());
-		this.pendingAuthorizeRequests = Collections.synchronizedMap(new HashMap<String, CountDownLatch>());
+		this.pendingAuthorizeRequests = new ConcurrentHashMap<String, SettableFuture<Void>>();
 	}
 
 	public synchronized void startPool(ProxyInstance manager) throws PoolStartException, URISyntaxException, SocketException {
@@ -169,21 +244,25 @@ public class Pool {
 			if (!isEnabled) {
 				throw new PoolStartException("Do not start the pool " + getName() + " since it is disabled.");
 			}
+			if (parent != null && !parent.childSessions.contains(this)) {
+				throw new PoolStartException("Do not start the upstream session " + getName() + " since it has been closed.");
+			}
 
 			this.manager = manager;
 			if (connection == null) {
 				LOGGER.debug("Starting pool {}...", getName());
 				uri = new URI("stratum+tcp://" + host);
-				Socket socket = new Socket();
-				socket.setKeepAlive(true);
-				socket.setTcpNoDelay(true);
+				// The submits sent on a previous connection will not be
+				// answered.
+				submitPipeline.rejectAll("The connection to pool " + getName() + " has been reset.");
 
 				try {
-					socket.connect(new InetSocketAddress(uri.getHost(), uri.getPort() > -1 ? uri.getPort() : Constants.DEFAULT_POOL_PORT));
-					connection = new PoolConnection(this, socket);
+					connection = openConnection(new InetSocketAddress(uri.getHost(), uri.getPort() > -1 ? uri.getPort()
+							: Constants.DEFAULT_POOL_PORT));
 					connection.startReading();
 
 					MiningSubscribeRequest request = new MiningSubscribeRequest();
+					request.setSessionId(sessionId);
 					startSubscribeTimeoutTimer();
 					connection.sendRequest(request);
 				} catch (IOException e) {
@@ -197,6 +276,38 @@ public class Pool {
 		}
 	}
 
+	/**
+	 * Connect to the pool with the transport selected by the manager.
+	 * 
+	 * @param address
+	 * @return
+	 * @throws IOException
+	 */
+	private PoolConnection openConnection(InetSocketAddress address) throws IOException {
+		PoolConnection poolConnection = null;
+		NioEventLoopGroup eventLoopGroup = manager.getPoolEventLoopGroup();
+		if (eventLoopGroup != null) {
+			SocketChannel channel = SocketChannel.open();
+			try {
+				channel.socket().setKeepAlive(true);
+				channel.socket().setTcpNoDelay(true);
+				channel.connect(address);
+				channel.configureBlocking(false);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			poolConnection = new PoolConnection(this, channel, eventLoopGroup);
+		} else {
+			Socket socket = new Socket();
+			socket.setKeepAlive(true);
+			socket.setTcpNoDelay(true);
+			socket.connect(address);
+			poolConnection = new PoolConnection(this, socket);
+		}
+		return poolConnection;
+	}
+
 	/**
 	 * Start the timer which check the subscribe response timeout
 	 */
@@ -209,7 +320,7 @@ public class Pool {
 			}
 		};
 		subscribeResponseTimeoutTask.setName("SubscribeTimeoutTask-" + getName());
-		Timer.getInstance().schedule(subscribeResponseTimeoutTask, 5000);
+		Timer.getInstance().scheduleTimeout(subscribeResponseTimeoutTask, 5000);
 	}
 
 	/**
@@ -228,19 +339,38 @@ public class Pool {
 			lastStopDate = new Date();
 		}
 
+		// The additional sessions cannot live without the configured pool.
+		for (Pool session : childSessions) {
+			session.stopPool(cause);
+		}
+
 		if (connection != null) {
 			cancelTimers();
 			authorizedWorkers.clear();
 
 			isReady = false;
 			isStable = false;
-			manager.onPoolStateChange(this);
+			if (parent == null) {
+				manager.onPoolStateChange(this);
+			} else {
+				// An additional session is not reconnected. Its workers are
+				// disconnected and will be bound to another session when they
+				// reconnect.
+				parent.childSessions.remove(this);
+				manager.onPoolSessionDown(this);
+			}
 			LOGGER.debug("Stopping pool {}...", getName());
 			if (connection != null) {
 				connection.close();
 				connection = null;
 			}
+			submitPipeline.rejectAll("The pool " + getName() + " has been stopped.");
+			// The jobs are kept until the reconnection. They are still live if
+			// the pool resumes the session.
+			failPendingAuthorizations();
 			LOGGER.info("PoolConfiguration {} stopped.", getName());
+		} else if (parent != null) {
+			parent.childSessions.remove(this);
 		}
 	}
 
@@ -296,6 +426,7 @@ public class Pool {
 				startPool(manager);
 			} else {
 				stopPool("PoolConfiguration disabled by user.");
+				expireBufferedShares("The pool " + getName() + " has been disabled.");
 			}
 		}
 	}
@@ -323,8 +454,18 @@ public class Pool {
 	public void processNotify(MiningNotifyNotification notify) {
 		resetNotifyTimeoutTimer();
 		currentJob = notify;
+		// Index the job before the workers are notified, they may submit a
+		// share on it immediately.
+		jobIndex.addJob(notify, difficulty != null ? difficulty : 0);
 		manager.onPoolNotify(this, notify);
 
+		// The job set is known, replay the shares held during the
+		// reconnection.
+		isJobReceived = true;
+		if (isReady && shareBuffer.size() > 0) {
+			replayBufferedShares();
+		}
+
 		// Set the clean job flag on the current job. Is needed for new workers
 		// coming between 2 notify. They will be notifyed with the current job
 		// and the flag has to be true for them.
@@ -377,13 +518,13 @@ public class Pool {
 	public void processSetExtranonce(MiningSetExtranonceNotification setExtranonce) {
 		extranonce1 = setExtranonce.getExtranonce1();
 
-		if (setExtranonce.getExtranonce2Size() < 3) {
+		if (setExtranonce.getExtranonce2Size() < getMinimumExtranonce2Size()) {
 			// If the extranonce2size is not big enough, we cannot generate
 			// unique extranonce for workers, so deactivate the pool.
-			LOGGER.error("The extranonce2Size for the pool {} is to low. Size: {}, mininum needed {}.", getName(), extranonce2Size,
-					3);
-			stopPool("PoolConfiguration asked extranonce change with too small extranonce2 size (" + extranonce2Size + ". Minimum needed is "
-					+ (3));
+			LOGGER.error("The extranonce2Size for the pool {} is to low. Size: {}, mininum needed {}.", getName(),
+					setExtranonce.getExtranonce2Size(), getMinimumExtranonce2Size());
+			stopPool("PoolConfiguration asked extranonce change with too small extranonce2 size (" + setExtranonce.getExtranonce2Size()
+					+ ". Minimum needed is " + getMinimumExtranonce2Size());
 			retryConnect(true);
 		} else {
 			extranonce2Size = setExtranonce.getExtranonce2Size();
@@ -395,15 +536,28 @@ public class Pool {
 
 	public void processSubscribeResponse(MiningSubscribeRequest request, MiningSubscribeResponse response) {
 		stopSubscribeTimeoutTimer();
+		// The session is resumed if the pool gives back the same extranonce.
+		// The shares computed before the disconnection are then still valid.
+		boolean isSessionResumed = extranonce1 != null && extranonce1.equals(response.getExtranonce1()) && extranonce2Size != null
+				&& extranonce2Size.equals(response.getExtranonce2Size());
+		sessionId = response.getSessionId();
+		isJobReceived = false;
 		extranonce1 = response.getExtranonce1();
 		extranonce2Size = response.getExtranonce2Size();
 
-		if (extranonce2Size < 3) {
+		if (isSessionResumed) {
+			LOGGER.info("Session resumed on pool {}.", getName());
+		} else {
+			jobIndex.clear();
+			expireBufferedShares("The session of pool " + getName() + " has not been resumed.");
+		}
+
+		if (extranonce2Size < getMinimumExtranonce2Size()) {
 			// If the extranonce2size is not big enough, we cannot generate
 			// unique extranonce for workers, so deactivate the pool.
 			LOGGER.error("The extranonce2Size for the pool {} is too low. Size: {}, mininum needed {}.", getName(), extranonce2Size,
-					3);
-			stopPool("The pool extranonce2 size is too low (" + extranonce2Size + "). Minimum is " + 3);
+					getMinimumExtranonce2Size());
+			stopPool("The pool extranonce2 size is too low (" + extranonce2Size + "). Minimum is " + getMinimumExtranonce2Size());
 			retryConnect(true);
 		} else {
 			sendSubscribeExtranonceRequest();
@@ -450,7 +604,7 @@ public class Pool {
 		// authorization with the configuraed pool username but will request
 		// authorization for each newly connected workers.
 		if (isAppendWorkerNames) {
-			ResponseReceivedCallback<MiningAuthorizeRequest, MiningAuthorizeResponse> callback = authorizeCallbacks.get(response.getId());
+			ResponseReceivedCallback<MiningAuthorizeRequest, MiningAuthorizeResponse> callback = authorizeCallbacks.remove(response.getId());
 			if (isAuthorized(request, response)) {
 				// If authorized, add it in the authorized user list.
 				authorizedWorkers.add(request.getUsername());
@@ -503,14 +657,27 @@ public class Pool {
 		LOGGER.info("PoolConfiguration {} started", getName());
 		this.isReady = true;
 		readySince = new Date();
-		testStability();
-		isFirstRun = false;
-		manager.onPoolStateChange(this);
+		if (parent == null) {
+			testStability();
+			isFirstRun = false;
+			manager.onPoolStateChange(this);
+
+			// If the job set is already known, replay the shares held during
+			// the reconnection. Else, they are replayed on the first job.
+			if (isJobReceived && shareBuffer.size() > 0) {
+				replayBufferedShares();
+			}
+		} else {
+			// The switching strategies only know the configured pools, so an
+			// additional session is only used for new worker connections.
+			isStable = true;
+			isFirstRun = false;
+			manager.onPoolSessionUp(this);
+		}
 	}
 
 	public void processSubmitResponse(MiningSubmitRequest request, MiningSubmitResponse response) {
-		ResponseReceivedCallback<MiningSubmitRequest, MiningSubmitResponse> callback = submitCallbacks.remove(response.getId());
-		callback.onResponseReceived(request, response);
+		submitPipeline.onResponse(request, response);
 	}
 
 	/**
@@ -523,24 +690,16 @@ public class Pool {
 	public void updateShareLists(Share share, boolean isAccepted) {
 		if (isAccepted) {
 			acceptedDifficulty.addAndGet(getDifficulty());
-			lastAcceptedShares.add(share);
+			acceptedHashrate.addShare(share.getTime(), share.getDifficulty());
 		} else {
 			rejectedDifficulty.addAndGet(getDifficulty());
-			lastRejectedShares.add(share);
+			rejectedHashrate.addShare(share.getTime(), share.getDifficulty());
 		}
 
-		purgeShareLists();
-	}
-
-	/**
-	 * Purge all share lists from the old shares.
-	 * 
-	 * @param shareList
-	 * @param share
-	 */
-	private void purgeShareLists() {
-		HashrateUtils.purgeShareList(lastAcceptedShares, samplingHashratePeriod);
-		HashrateUtils.purgeShareList(lastRejectedShares, samplingHashratePeriod);
+		// The configured pool accounts the shares of all its sessions.
+		if (parent != null) {
+			parent.updateShareLists(share, isAccepted);
+		}
 	}
 
 	/**
@@ -549,7 +708,7 @@ public class Pool {
 	 * @param workerRequest
 	 * @return
 	 */
-	public void submitShare(MiningSubmitRequest workerRequest, ResponseReceivedCallback<MiningSubmitRequest, MiningSubmitResponse> callback) {
+	public void submitShare(MiningSubmitRequest workerRequest, final ResponseReceivedCallback<MiningSubmitRequest, MiningSubmitResponse> callback) {
 		MiningSubmitRequest poolRequest = new MiningSubmitRequest();
 		poolRequest.setExtranonce2(workerRequest.getExtranonce2());
 		poolRequest.setJobId(workerRequest.getJobId());
@@ -563,8 +722,19 @@ public class Pool {
 			poolRequest.setWorkerName(username);
 		}
 
-		submitCallbacks.put(poolRequest.getId(), callback);
-		connection.sendRequest(poolRequest);
+		// If the worker authorization is in progress on this pool (just after a
+		// rebind), wait for the end of the authorization before submitting.
+		ListenableFuture<Void> pendingAuthorization = getPendingAuthorization(workerRequest.getWorkerName());
+		if (pendingAuthorization == null) {
+			submitPipeline.submit(poolRequest, callback);
+		} else {
+			final MiningSubmitRequest delayedRequest = poolRequest;
+			pendingAuthorization.addListener(new Runnable() {
+				public void run() {
+					submitPipeline.submit(delayedRequest, callback);
+				}
+			}, MoreExecutors.sameThreadExecutor());
+		}
 	}
 
 	public void onDisconnectWithError(Throwable cause) {
@@ -592,6 +762,99 @@ public class Pool {
 		retryConnect(true);
 	}
 
+	/**
+	 * Hold the share until the pool is reconnected. Return false if the share
+	 * cannot be held (the pool is not reconnecting or the buffer is full).
+	 * 
+	 * @param workerConnection
+	 * @param request
+	 * @return
+	 */
+	public boolean bufferShare(WorkerConnection workerConnection, MiningSubmitRequest request) {
+		boolean isBuffered = false;
+		// Only the configured pool is reconnected, and only a session already
+		// opened can be resumed.
+		if (isShareBufferEnabled() && !isReady && extranonce1 != null) {
+			isBuffered = shareBuffer.add(workerConnection, request, System.currentTimeMillis());
+			if (isBuffered) {
+				scheduleShareBufferExpiration();
+			}
+		}
+		return isBuffered;
+	}
+
+	/**
+	 * Return true if the shares are held while the pool is reconnecting.
+	 * 
+	 * @return
+	 */
+	public boolean isShareBufferEnabled() {
+		return parent == null && isEnabled && connectionRetryDelay > 0 && shareBuffer.getMaxSize() > 0;
+	}
+
+	/**
+	 * Schedule the expiration of the oldest held share, if not already
+	 * scheduled.
+	 */
+	private void scheduleShareBufferExpiration() {
+		synchronized (shareBuffer) {
+			Long nextDeadline = shareBuffer.getNextDeadline();
+			if (shareBufferExpirationTask == null && nextDeadline != null) {
+				shareBufferExpirationTask = new Task() {
+					public void run() {
+						synchronized (shareBuffer) {
+							shareBufferExpirationTask = null;
+						}
+						List<ShareBuffer.BufferedShare> expiredShares = shareBuffer.removeExpired(System.currentTimeMillis());
+						rejectBufferedShares(expiredShares, "The pool " + getName() + " has not been reconnected in time.");
+						scheduleShareBufferExpiration();
+					}
+				};
+				shareBufferExpirationTask.setName("ShareBufferExpirationTask-" + getName());
+				Timer.getInstance().schedule(shareBufferExpirationTask, Math.max(1, nextDeadline - System.currentTimeMillis()));
+			}
+		}
+	}
+
+	/**
+	 * Send the held shares whose job is still live to the pool. The others
+	 * are rejected.
+	 */
+	private void replayBufferedShares() {
+		List<ShareBuffer.BufferedShare> staleShares = new ArrayList<ShareBuffer.BufferedShare>();
+		int numberOfReplayedShares = 0;
+		for (ShareBuffer.BufferedShare share : shareBuffer.removeAll()) {
+			if (jobIndex.isLive(share.getRequest().getJobId())) {
+				manager.onBufferedShareReplay(this, share.getWorkerConnection(), share.getRequest());
+				numberOfReplayedShares++;
+			} else {
+				staleShares.add(share);
+			}
+		}
+		shareBuffer.countSaved(numberOfReplayedShares);
+		LOGGER.info("{} shares replayed on pool {}. {} stale shares dropped.", numberOfReplayedShares, getName(), staleShares.size());
+		rejectBufferedShares(staleShares, "Stale share.");
+	}
+
+	/**
+	 * Reject all the held shares.
+	 * 
+	 * @param cause
+	 */
+	private void expireBufferedShares(String cause) {
+		rejectBufferedShares(shareBuffer.removeAll(), cause);
+	}
+
+	private void rejectBufferedShares(List<ShareBuffer.BufferedShare> shares, String cause) {
+		if (!shares.isEmpty()) {
+			shareBuffer.countExpired(shares.size());
+			LOGGER.info("{} held shares expired on pool {}. Cause: {}", shares.size(), getName(), cause);
+			for (ShareBuffer.BufferedShare share : shares) {
+				manager.onBufferedShareExpired(share.getWorkerConnection(), share.getRequest(), cause);
+			}
+		}
+	}
+
 	/**
 	 * Return a free tail for this pool.
 	 * 
@@ -599,7 +862,15 @@ public class Pool {
 	 * @throws TooManyWorkersException
 	 */
 	public String getFreeTail() throws TooManyWorkersException {
-		return "";
+		if (tailAllocator.getNumberOfUsedTails() >= maxWorkersPerUpstreamSession) {
+			throw new TooManyWorkersException("Too many workers on pool " + getName() + ". The maximum is " + maxWorkersPerUpstreamSession
+					+ " workers per upstream session.");
+		}
+		try {
+			return tailAllocator.allocate();
+		} catch (TooManyWorkersException e) {
+			throw new TooManyWorkersException("Too many workers on pool " + getName() + ". " + e.getMessage(), e);
+		}
 	}
 
 	/**
@@ -608,15 +879,256 @@ public class Pool {
 	 * @param tail
 	 */
 	public void releaseTail(String tail) {
+		if (!tailAllocator.release(tail)) {
+			LOGGER.warn("Extranonce1 tail {} released on pool {} but not in use.", tail, getName());
+		}
 	}
 
 	/**
-	 * Return the extranonce2 size
+	 * Return the extranonce2 size available for the workers (the pool
+	 * extranonce2 size minus the tail size)
 	 * 
 	 * @return
 	 */
 	public Integer getWorkerExtranonce2Size() {
-		return extranonce2Size;
+		return extranonce2Size != null ? extranonce2Size - tailAllocator.getTailSize() : null;
+	}
+
+	/**
+	 * Return the minimum extranonce2 size the pool has to give: the tail and
+	 * at least 2 bytes for the workers.
+	 * 
+	 * @return
+	 */
+	private int getMinimumExtranonce2Size() {
+		return tailAllocator.getTailSize() + Constants.MINIMUM_WORKER_EXTRANONCE2_SIZE;
+	}
+
+	/**
+	 * Set the size (in bytes) of the extranonce1 tail of each worker
+	 * connection. The pool can accept up to 256^size worker connections.
+	 * 
+	 * @param extranonce1TailSize
+	 */
+	public void setExtranonce1TailSize(Integer extranonce1TailSize) {
+		if (isReady) {
+			throw new IllegalStateException("The pool is ready. Stop the pool before updating the extranonce1TailSize.");
+		}
+		if (tailAllocator.getNumberOfUsedTails() > 0) {
+			throw new IllegalStateException("Workers are still bound to the pool. Unbind them before updating the extranonce1TailSize.");
+		}
+		this.tailAllocator = new ExtranonceTailAllocator(extranonce1TailSize);
+	}
+
+	public Integer getExtranonce1TailSize() {
+		return tailAllocator.getTailSize();
+	}
+
+	/**
+	 * Return the configured pool of this session (this pool if it is not an
+	 * additional upstream session).
+	 * 
+	 * @return
+	 */
+	public Pool getRootPool() {
+		return parent == null ? this : parent;
+	}
+
+	/**
+	 * Return the upstream sessions of the configured pool (the configured pool
+	 * itself first, then the additional sessions).
+	 * 
+	 * @return
+	 */
+	public List<Pool> getUpstreamSessions() {
+		Pool root = getRootPool();
+		List<Pool> sessions = new ArrayList<Pool>(root.childSessions.size() + 1);
+		sessions.add(root);
+		sessions.addAll(root.childSessions);
+		return sessions;
+	}
+
+	/**
+	 * Return the upstream session on which a new worker connection has to be
+	 * bound: the first ready session with a free slot. If no session has a
+	 * free slot, return the configured pool (which will refuse the worker).
+	 * 
+	 * An additional session is opened in the background when the free slots
+	 * are running low.
+	 * 
+	 * @return
+	 */
+	public Pool getSessionForNewWorker() {
+		Pool root = getRootPool();
+		Pool result = root;
+		for (Pool session : getUpstreamSessions()) {
+			if (session.isReady() && session.getNumberOfFreeWorkerSlots() > 0) {
+				result = session;
+				break;
+			}
+		}
+		root.openSessionIfNeeded();
+		return result;
+	}
+
+	/**
+	 * Return the number of worker connections which can still be bound to this
+	 * session.
+	 * 
+	 * @return
+	 */
+	private int getNumberOfFreeWorkerSlots() {
+		return Math.max(0, Math.min(tailAllocator.getNumberOfFreeTails(), maxWorkersPerUpstreamSession - tailAllocator.getNumberOfUsedTails()));
+	}
+
+	/**
+	 * Open an additional upstream session if the free slots of the ready
+	 * sessions are below 10% of the capacity of a session and no session is
+	 * already starting.
+	 */
+	private void openSessionIfNeeded() {
+		if (manager == null || !isReady || maxUpstreamSessionsPerPool <= 1) {
+			return;
+		}
+		synchronized (childSessions) {
+			if (childSessions.size() + 1 >= maxUpstreamSessionsPerPool) {
+				return;
+			}
+			int freeSlots = 0;
+			for (Pool session : getUpstreamSessions()) {
+				if (!session.isReady()) {
+					// A session is already starting.
+					return;
+				}
+				freeSlots += session.getNumberOfFreeWorkerSlots();
+			}
+			int sessionCapacity = Math.min(maxWorkersPerUpstreamSession, tailAllocator.getNumberOfUsedTails() + tailAllocator.getNumberOfFreeTails());
+			if (freeSlots > Math.max(1, sessionCapacity / 10)) {
+				return;
+			}
+
+			final Pool session = new Pool(this, sessionCounter.incrementAndGet());
+			childSessions.add(session);
+			LOGGER.info("Opening the upstream session {} since pool {} has only {} free worker slots left.", session.getName(), getName(),
+					freeSlots);
+			// Connect on the timer since the caller may be an event loop.
+			Task startSessionTask = new Task() {
+				public void run() {
+					try {
+						session.startPool(manager);
+					} catch (Exception e) {
+						LOGGER.error("Failed to start the upstream session {}.", session.getName(), e);
+						childSessions.remove(session);
+					}
+				}
+			};
+			startSessionTask.setName("StartSessionTask-" + session.getName());
+			Timer.getInstance().schedule(startSessionTask, 0);
+		}
+	}
+
+	public void setMaxWorkersPerUpstreamSession(Integer maxWorkersPerUpstreamSession) {
+		this.maxWorkersPerUpstreamSession = maxWorkersPerUpstreamSession;
+	}
+
+	public Integer getMaxWorkersPerUpstreamSession() {
+		return maxWorkersPerUpstreamSession;
+	}
+
+	public void setMaxUpstreamSessionsPerPool(Integer maxUpstreamSessionsPerPool) {
+		this.maxUpstreamSessionsPerPool = maxUpstreamSessionsPerPool;
+	}
+
+	public Integer getMaxUpstreamSessionsPerPool() {
+		return maxUpstreamSessionsPerPool;
+	}
+
+	public void setMaxInFlightSubmits(Integer maxInFlightSubmits) {
+		submitPipeline.setMaxInFlightSubmits(maxInFlightSubmits);
+	}
+
+	public Integer getMaxInFlightSubmits() {
+		return submitPipeline.getMaxInFlightSubmits();
+	}
+
+	public void setSubmitBackpressurePolicy(SubmitPipeline.BackpressurePolicy backpressurePolicy) {
+		submitPipeline.setBackpressurePolicy(backpressurePolicy);
+	}
+
+	public SubmitPipeline.BackpressurePolicy getSubmitBackpressurePolicy() {
+		return submitPipeline.getBackpressurePolicy();
+	}
+
+	/**
+	 * Return the number of submits waiting to be sent to the pool.
+	 * 
+	 * @return
+	 */
+	public int getNumberOfQueuedSubmits() {
+		return submitPipeline.getNumberOfQueuedSubmits();
+	}
+
+	/**
+	 * Return the number of submits sent to the pool and waiting for the
+	 * response.
+	 * 
+	 * @return
+	 */
+	public int getNumberOfInFlightSubmits() {
+		return submitPipeline.getNumberOfInFlightSubmits();
+	}
+
+	public void setShareBufferSize(Integer shareBufferSize) {
+		shareBuffer.setMaxSize(shareBufferSize);
+	}
+
+	public Integer getShareBufferSize() {
+		return shareBuffer.getMaxSize();
+	}
+
+	public void setShareBufferDeadline(Integer shareBufferDeadline) {
+		shareBuffer.setDeadline(shareBufferDeadline);
+	}
+
+	public Integer getShareBufferDeadline() {
+		return (int) shareBuffer.getDeadline();
+	}
+
+	/**
+	 * Return the number of shares held until the pool is reconnected.
+	 * 
+	 * @return
+	 */
+	public int getNumberOfBufferedShares() {
+		return shareBuffer.size();
+	}
+
+	/**
+	 * Return the number of held shares replayed after a reconnection.
+	 * 
+	 * @return
+	 */
+	public long getNumberOfSavedShares() {
+		return shareBuffer.getNumberOfSavedShares();
+	}
+
+	/**
+	 * Return the number of held shares rejected since the session has not
+	 * been resumed in time.
+	 * 
+	 * @return
+	 */
+	public long getNumberOfExpiredShares() {
+		return shareBuffer.getNumberOfExpiredShares();
+	}
+
+	/**
+	 * Return the current connection to the pool (null if not connected).
+	 * 
+	 * @return
+	 */
+	PoolConnection getConnection() {
+		return connection;
 	}
 
 	public MiningNotifyNotification getCurrentStratumJob() {
@@ -629,7 +1141,9 @@ public class Pool {
 	 * @param delayFirstRetry
 	 */
 	private synchronized void retryConnect(boolean delayFirstRetry) {
-		if (connectionRetryDelay > 0) {
+		if (parent != null) {
+			LOGGER.debug("Do not reconnect the upstream session {}. A new one will be opened if needed.", getName());
+		} else if (connectionRetryDelay > 0) {
 			if (reconnectTask != null) {
 				reconnectTask.cancel();
 				reconnectTask = null;
@@ -660,6 +1174,40 @@ public class Pool {
 		this.isExtranonceSubscribeEnabled = isExtranonceSubscribeEnabled;
 	}
 
+	/**
+	 * Return true if shares can still be submitted on the job with the given
+	 * ID (the job has not been invalidated by a clean jobs notify).
+	 * 
+	 * @param jobId
+	 * @return
+	 */
+	public boolean isJobLive(String jobId) {
+		return jobIndex.isLive(jobId);
+	}
+
+	/**
+	 * Return the block header template of the live job with the given ID, or
+	 * null if the job is no more live.
+	 * 
+	 * @param jobId
+	 * @return
+	 */
+	public BlockHeaderTemplate getBlockHeaderTemplate(String jobId) {
+		String currentExtranonce1 = extranonce1;
+		return currentExtranonce1 == null ? null : jobIndex.getBlockHeaderTemplate(jobId, currentExtranonce1);
+	}
+
+	/**
+	 * Register the share on its job. Return false if the share has already
+	 * been submitted on the job.
+	 * 
+	 * @param request
+	 * @return
+	 */
+	public boolean registerShare(MiningSubmitRequest request) {
+		return jobIndex.registerShare(request.getJobId(), request.getExtranonce2(), request.getNtime(), request.getNonce());
+	}
+
 	public Integer getNumberOfSubmit() {
 		return numberOfSubmit;
 	}
@@ -748,8 +1296,8 @@ public class Pool {
 	}
 
 	public void setSamplingHashratePeriod(Integer samplingHashratePeriod) {
-		this.samplingHashratePeriod = samplingHashratePeriod * 1000;
-		purgeShareLists();
+		acceptedHashrate.setSamplingPeriod(samplingHashratePeriod);
+		rejectedHashrate.setSamplingPeriod(samplingHashratePeriod);
 	}
 
 	/**
@@ -772,7 +1320,7 @@ public class Pool {
 				}
 			};
 			notifyTimeoutTask.setName("NotifyTimeoutTask-" + getName());
-			Timer.getInstance().schedule(notifyTimeoutTask, noNotifyTimeout * 1000);
+			Timer.getInstance().scheduleTimeout(notifyTimeoutTask, noNotifyTimeout * 1000);
 		}
 	}
 
@@ -848,131 +1396,153 @@ public class Pool {
 	}
 
 	public double getAcceptedHashesPerSeconds() {
-		return HashrateUtils.getHashrateFromShareList(lastAcceptedShares, samplingHashratePeriod, algo);
+		return acceptedHashrate.getHashrate();
 	}
 
 	public double getRejectedHashesPerSeconds() {
-		return HashrateUtils.getHashrateFromShareList(lastRejectedShares, samplingHashratePeriod, algo);
+		return rejectedHashrate.getHashrate();
 	}
 
 	/**
-	 * Authorize the given worker on the pool. Throws an exception if the worker
-	 * is not authorized on the pool. This method blocs until the response is
-	 * received from the pool.
+	 * Authorize the given worker on the pool. The returned future is completed
+	 * when the pool response is received, or fails with an
+	 * {@link AuthorizationException} if the worker is not authorized (or if the
+	 * pool does not respond in time).
+	 * 
+	 * Concurrent requests for the same username share the same pool request.
 	 * 
 	 * @param workerRequest
-	 * @param callback
+	 * @return
 	 */
-	public void authorizeWorker(MiningAuthorizeRequest workerRequest) throws AuthorizationException {
+	public ListenableFuture<Void> authorizeWorkerAsync(MiningAuthorizeRequest workerRequest) {
 		// Authorize the worker only if isAppendWorkerNames is true. If true, it
 		// means that each worker has to be authorized. If false, the
 		// authorization has already been done with the configured username.
-		if (isAppendWorkerNames) {
-			String finalUserName = (username == null ? "" : username) + (workerSeparator == null ? "" : workerSeparator)
-					+ workerRequest.getUsername();
+		if (!isAppendWorkerNames) {
+			return Futures.immediateFuture(null);
+		}
 
-			// If the worker is already authorized, do nothing
-			if (authorizedWorkers.contains(finalUserName)) {
-				LOGGER.debug("Worker {} already authorized on the pool {}.", finalUserName, getName());
-			} else {
-				LOGGER.debug("Authorize worker {} on pool {}.", finalUserName, getName());
-
-				// Create a latch to wait the authorization response.
-				CountDownLatch responseLatch = null;
-				boolean sendRequest = false;
-
-				// Synchronized to be sure that if too requests are processed at
-				// the same time, only one will be performed.
-				synchronized (pendingAuthorizeRequests) {
-					if (!pendingAuthorizeRequests.containsKey(finalUserName)) {
-						responseLatch = new CountDownLatch(1);
-						pendingAuthorizeRequests.put(finalUserName, responseLatch);
-						sendRequest = true;
-					} else {
-						responseLatch = pendingAuthorizeRequests.get(finalUserName);
-					}
-				}
+		final String finalUserName = getFinalUserName(workerRequest.getUsername());
 
-				if (sendRequest) {
-					try {
-						// Response wrapper used to store the pool response
-						// values
-						final MiningAuthorizeResponse poolResponseWrapper = new MiningAuthorizeResponse();
-
-						MiningAuthorizeRequest poolRequest = new MiningAuthorizeRequest();
-						poolRequest.setUsername(finalUserName);
-						poolRequest.setPassword(isUseWorkerPassword ? workerRequest.getPassword() : this.password);
-						// Prepare the callback to call when response is
-						// received.
-						final CountDownLatch closureLatch = responseLatch;
-						authorizeCallbacks.put(poolRequest.getId(), new ResponseReceivedCallback<MiningAuthorizeRequest, MiningAuthorizeResponse>() {
-							public void onResponseReceived(MiningAuthorizeRequest request, MiningAuthorizeResponse response) {
-								// Recopy values to allow blocked thread
-								// to access the
-								// response values.
-								poolResponseWrapper.setId(response.getId());
-								poolResponseWrapper.setResult(response.getResult());
-
-								// Unblock the blocked thread.
-								closureLatch.countDown();
-							}
-						});
-
-						// Send the request.
-						connection.sendRequest(poolRequest);
-
-						// Wait for the response
-						waitForAuthorizeResponse(finalUserName, responseLatch);
-
-						// Check the response values
-						if (poolResponseWrapper.getIsAuthorized() == null || !poolResponseWrapper.getIsAuthorized()) {
-							// If the worker is not authorized, throw an
-							// exception.
-							throw new AuthorizationException("Worker " + finalUserName + " is not authorized on pool " + getName() + ". Cause: "
-									+ (poolResponseWrapper.getJsonError() != null ? poolResponseWrapper.getJsonError() : "none."));
-						}
-					} finally {
-						// Once the request is over, remove the latch for this
-						// username.
-						synchronized (pendingAuthorizeRequests) {
-							pendingAuthorizeRequests.remove(finalUserName);
-						}
-					}
-				} else {
-					// Wait for the response
-					waitForAuthorizeResponse(finalUserName, responseLatch);
+		// If the worker is already authorized, do nothing
+		if (authorizedWorkers.contains(finalUserName)) {
+			LOGGER.debug("Worker {} already authorized on the pool {}.", finalUserName, getName());
+			return Futures.immediateFuture(null);
+		}
 
-					if (!authorizedWorkers.contains(finalUserName)) {
-						throw new AuthorizationException("Worker " + finalUserName + " not authorized on pool " + getName()
-								+ " after a delegated request. See the delegated request response in the logs for more details.");
-					}
+		SettableFuture<Void> authorization = SettableFuture.create();
+		SettableFuture<Void> pendingAuthorization = pendingAuthorizeRequests.putIfAbsent(finalUserName, authorization);
+		if (pendingAuthorization != null) {
+			// A request is already in progress for this username. Wait for its
+			// response.
+			LOGGER.debug("Authorization of worker {} on pool {} already in progress.", finalUserName, getName());
+			return pendingAuthorization;
+		}
+
+		PoolConnection currentConnection = connection;
+		if (currentConnection == null) {
+			completeAuthorization(finalUserName, authorization, new AuthorizationException("Worker " + finalUserName
+					+ " cannot be authorized. The pool " + getName() + " is not connected."));
+		} else {
+			LOGGER.debug("Authorize worker {} on pool {}.", finalUserName, getName());
+			sendAuthorizeRequest(currentConnection, finalUserName, workerRequest.getPassword(), authorization);
+		}
+
+		return authorization;
+	}
+
+	/**
+	 * Send the authorize request of the given username to the pool and complete
+	 * the given future with the response.
+	 * 
+	 * @param currentConnection
+	 * @param finalUserName
+	 * @param workerPassword
+	 * @param authorization
+	 */
+	private void sendAuthorizeRequest(PoolConnection currentConnection, final String finalUserName, String workerPassword,
+			final SettableFuture<Void> authorization) {
+		final MiningAuthorizeRequest poolRequest = new MiningAuthorizeRequest();
+		poolRequest.setUsername(finalUserName);
+		poolRequest.setPassword(isUseWorkerPassword ? workerPassword : this.password);
+
+		final Task timeoutTask = new Task() {
+			public void run() {
+				authorizeCallbacks.remove(poolRequest.getId());
+				LOGGER.warn("Timeout of worker {} authorization on pool {}.", finalUserName, getName());
+				completeAuthorization(finalUserName, authorization, new AuthorizationException("Timeout of worker " + finalUserName
+						+ " authorization on pool " + getName()));
+			}
+		};
+		timeoutTask.setName("AuthorizeTimeoutTask-" + getName() + "-" + finalUserName);
+
+		authorizeCallbacks.put(poolRequest.getId(), new ResponseReceivedCallback<MiningAuthorizeRequest, MiningAuthorizeResponse>() {
+			public void onResponseReceived(MiningAuthorizeRequest request, MiningAuthorizeResponse response) {
+				timeoutTask.cancel();
+				AuthorizationException failure = null;
+				if (response.getIsAuthorized() == null || !response.getIsAuthorized()) {
+					failure = new AuthorizationException("Worker " + finalUserName + " is not authorized on pool " + getName() + ". Cause: "
+							+ (response.getJsonError() != null ? response.getJsonError() : "none."));
 				}
+				completeAuthorization(finalUserName, authorization, failure);
 			}
-		}
+		});
+
+		Timer.getInstance().scheduleTimeout(timeoutTask, Constants.DEFAULT_POOL_AUTHORIZE_RESPONSE_TIMEOUT);
+		currentConnection.sendRequest(poolRequest);
 	}
 
 	/**
+	 * Complete the pending authorization of the given username. The
+	 * authorization is successful if failure is null.
 	 * 
-	 * @param userName
-	 * @param latch
-	 * @throws AuthorizationException
+	 * @param finalUserName
+	 * @param authorization
+	 * @param failure
 	 */
-	private void waitForAuthorizeResponse(String userName, CountDownLatch latch) throws AuthorizationException {
-		// Wait for the response for 5 seconds max.
-		boolean isTimeout = false;
-		try {
-			isTimeout = !latch.await(5, TimeUnit.SECONDS);
-		} catch (InterruptedException e) {
-			LOGGER.info("Interruption on pool {} during authorization for user {}.", getName(), userName);
-			throw new AuthorizationException("Interruption of authorization of user " + userName + " on pool " + getName(), e);
+	private void completeAuthorization(String finalUserName, SettableFuture<Void> authorization, AuthorizationException failure) {
+		// Remove the pending request before completing it, so that a new
+		// request can be sent if this one has failed.
+		pendingAuthorizeRequests.remove(finalUserName, authorization);
+		if (failure == null) {
+			authorization.set(null);
+		} else {
+			authorization.setException(failure);
 		}
+	}
 
-		if (isTimeout) {
-			LOGGER.warn("Timeout of worker {} authorization on pool {}.", userName, getName());
-			throw new AuthorizationException("Timeout of worker " + userName + " authorization on pool " + getName());
+	/**
+	 * Fail all the authorizations in progress. Used when the pool is stopped.
+	 */
+	private void failPendingAuthorizations() {
+		authorizeCallbacks.clear();
+		for (Map.Entry<String, SettableFuture<Void>> entry : pendingAuthorizeRequests.entrySet()) {
+			completeAuthorization(entry.getKey(), entry.getValue(), new AuthorizationException("Worker " + entry.getKey()
+					+ " cannot be authorized. The pool " + getName() + " has been stopped."));
 		}
 	}
 
+	/**
+	 * Return the authorization in progress of the given worker, or null if no
+	 * authorization is in progress.
+	 * 
+	 * @param workerName
+	 * @return
+	 */
+	private ListenableFuture<Void> getPendingAuthorization(String workerName) {
+		return isAppendWorkerNames ? pendingAuthorizeRequests.get(getFinalUserName(workerName)) : null;
+	}
+
+	/**
+	 * Return the username used on the pool for the given worker name.
+	 * 
+	 * @param workerName
+	 * @return
+	 */
+	private String getFinalUserName(String workerName) {
+		return (username == null ? "" : username) + (workerSeparator == null ? "" : workerSeparator) + workerName;
+	}
+
 	public void setAppendWorkerNames(boolean isAppendWorkerNames) {
 		if (isReady) {
 			throw new IllegalStateException("The pool is ready. Stop the pool before updating the extranonceSubscribeEnabled.");
@@ -19,6 +19,7 @@
 package strat.mining.stratum.proxy.pool;
 
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,6 +39,7 @@ import strat.mining.stratum.proxy.json.MiningSubmitRequest;
 import strat.mining.stratum.proxy.json.MiningSubmitResponse;
 import strat.mining.stratum.proxy.json.MiningSubscribeRequest;
 import strat.mining.stratum.proxy.json.MiningSubscribeResponse;
+import strat.mining.stratum.proxy.network.NioEventLoopGroup;
 import strat.mining.stratum.proxy.network.StratumConnection;
 
 public class PoolConnection extends StratumConnection {
@@ -51,6 +53,11 @@ public class PoolConnection extends StratumConnection {
 		this.pool = pool;
 	}
 
+	public PoolConnection(Pool pool, SocketChannel channel, NioEventLoopGroup eventLoopGroup) {
+		super(channel, eventLoopGroup);
+		this.pool = pool;
+	}
+
 	@Override
 	protected void onParsingError(String line, Throwable throwable) {
 		LOGGER.error("{}. JSON-RPC parsing error with line: {}.", getConnectionName(), line, throwable);
@@ -0,0 +1,191 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.pool;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import strat.mining.stratum.proxy.json.MiningSubmitRequest;
+import strat.mining.stratum.proxy.worker.WorkerConnection;
+
+/**
+ * Hold the shares submitted while the pool is reconnecting. The shares are
+ * replayed if the pool resumes the session, else they expire. A share also
+ * expires if it has been held longer than the deadline.
+ * 
+ * The shares are kept in submission order, so the oldest share is always the
+ * first to expire.
+ * 
+ * @author Strat
+ * 
+ */
+public class ShareBuffer {
+
+	private final Deque<BufferedShare> shares;
+
+	private volatile int maxSize;
+	// In milli seconds.
+	private volatile long deadline;
+
+	private final AtomicLong numberOfSavedShares;
+	private final AtomicLong numberOfExpiredShares;
+
+	/**
+	 * 
+	 * @param maxSize
+	 *            the max number of held shares. 0 disables the buffer.
+	 * @param deadline
+	 *            the max time a share is held, in milli seconds.
+	 */
+	public ShareBuffer(int maxSize, long deadline) {
+		this.shares = new ArrayDeque<BufferedShare>();
+		this.maxSize = maxSize;
+		this.deadline = deadline;
+		this.numberOfSavedShares = new AtomicLong(0);
+		this.numberOfExpiredShares = new AtomicLong(0);
+	}
+
+	/**
+	 * Hold the given share. Return false if the buffer is full.
+	 * 
+	 * @param workerConnection
+	 * @param request
+	 * @param now
+	 * @return
+	 */
+	public synchronized boolean add(WorkerConnection workerConnection, MiningSubmitRequest request, long now) {
+		boolean isAdded = false;
+		if (shares.size() < maxSize) {
+			shares.addLast(new BufferedShare(workerConnection, request, now + deadline));
+			isAdded = true;
+		}
+		return isAdded;
+	}
+
+	/**
+	 * Remove and return the shares whose deadline is passed.
+	 * 
+	 * @param now
+	 * @return
+	 */
+	public synchronized List<BufferedShare> removeExpired(long now) {
+		List<BufferedShare> result = new ArrayList<BufferedShare>();
+		while (!shares.isEmpty() && shares.peekFirst().deadline <= now) {
+			result.add(shares.removeFirst());
+		}
+		return result;
+	}
+
+	/**
+	 * Remove and return all the shares.
+	 * 
+	 * @return
+	 */
+	public synchronized List<BufferedShare> removeAll() {
+		List<BufferedShare> result = new ArrayList<BufferedShare>(shares);
+		shares.clear();
+		return result;
+	}
+
+	/**
+	 * Return the deadline of the oldest share, or null if the buffer is empty.
+	 * 
+	 * @return
+	 */
+	public synchronized Long getNextDeadline() {
+		return shares.isEmpty() ? null : shares.peekFirst().deadline;
+	}
+
+	public synchronized int size() {
+		return shares.size();
+	}
+
+	/**
+	 * Count the given number of shares as replayed to the pool.
+	 * 
+	 * @param numberOfShares
+	 */
+	public void countSaved(int numberOfShares) {
+		numberOfSavedShares.addAndGet(numberOfShares);
+	}
+
+	/**
+	 * Count the given number of shares as expired.
+	 * 
+	 * @param numberOfShares
+	 */
+	public void countExpired(int numberOfShares) {
+		numberOfExpiredShares.addAndGet(numberOfShares);
+	}
+
+	public long getNumberOfSavedShares() {
+		return numberOfSavedShares.get();
+	}
+
+	public long getNumberOfExpiredShares() {
+		return numberOfExpiredShares.get();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * A share held by the buffer.
+	 * 
+	 * @author Strat
+	 * 
+	 */
+	public static class BufferedShare {
+
+		private final WorkerConnection workerConnection;
+		private final MiningSubmitRequest request;
+		private final long deadline;
+
+		public BufferedShare(WorkerConnection workerConnection, MiningSubmitRequest request, long deadline) {
+			this.workerConnection = workerConnection;
+			this.request = request;
+			this.deadline = deadline;
+		}
+
+		public WorkerConnection getWorkerConnection() {
+			return workerConnection;
+		}
+
+		public MiningSubmitRequest getRequest() {
+			return request;
+		}
+	}
+
+}
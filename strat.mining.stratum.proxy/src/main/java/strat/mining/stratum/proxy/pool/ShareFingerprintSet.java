@@ -0,0 +1,164 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.pool;
+
+/**
+ * A set of 64 bits share fingerprints, used to detect the shares submitted
+ * twice on a job. The fingerprints are stored in an open addressing table
+ * (linear probing) of longs, so there is no allocation per share.
+ * 
+ * The fingerprint is a 64 bits FNV-1a hash of the extranonce2, ntime and
+ * nonce of the share (hexadecimal strings, case insensitive). A false
+ * positive needs a 64 bits collision between two shares of the same job.
+ * 
+ * @author Strat
+ * 
+ */
+public class ShareFingerprintSet {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	// The marker of an empty slot. A fingerprint equal to it is replaced by
+	// another value.
+	private static final long EMPTY = 0;
+
+	private static final int INITIAL_CAPACITY = 64;
+	// 8 MB. Above this capacity, the new fingerprints are no more recorded.
+	private static final int MAX_CAPACITY = 1 << 20;
+
+	private long[] table;
+	private int size;
+
+	public ShareFingerprintSet() {
+		this.table = new long[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Add the fingerprint of the given share. Return false if the share was
+	 * already present.
+	 * 
+	 * @param extranonce2
+	 * @param ntime
+	 * @param nonce
+	 * @return
+	 */
+	public boolean add(String extranonce2, String ntime, String nonce) {
+		return add(fingerprint(extranonce2, ntime, nonce));
+	}
+
+	/**
+	 * Add the given fingerprint. Return false if it was already present.
+	 * 
+	 * @param fingerprint
+	 * @return
+	 */
+	public synchronized boolean add(long fingerprint) {
+		if (fingerprint == EMPTY) {
+			fingerprint = FNV_OFFSET_BASIS;
+		}
+
+		int mask = table.length - 1;
+		int index = mix(fingerprint) & mask;
+		while (table[index] != EMPTY) {
+			if (table[index] == fingerprint) {
+				return false;
+			}
+			index = (index + 1) & mask;
+		}
+
+		// Keep the load factor under 0.5 to keep the probe sequences short.
+		if ((size + 1) * 2 > table.length) {
+			if (table.length >= MAX_CAPACITY) {
+				return true;
+			}
+			resize(table.length * 2);
+			mask = table.length - 1;
+			index = mix(fingerprint) & mask;
+			while (table[index] != EMPTY) {
+				index = (index + 1) & mask;
+			}
+		}
+
+		table[index] = fingerprint;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Return the number of fingerprints in the set.
+	 * 
+	 * @return
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	private void resize(int newCapacity) {
+		long[] oldTable = table;
+		long[] newTable = new long[newCapacity];
+		int mask = newCapacity - 1;
+		for (long fingerprint : oldTable) {
+			if (fingerprint != EMPTY) {
+				int index = mix(fingerprint) & mask;
+				while (newTable[index] != EMPTY) {
+					index = (index + 1) & mask;
+				}
+				newTable[index] = fingerprint;
+			}
+		}
+		table = newTable;
+	}
+
+	/**
+	 * Return the FNV-1a hash of the given share fields.
+	 * 
+	 * @param extranonce2
+	 * @param ntime
+	 * @param nonce
+	 * @return
+	 */
+	public static long fingerprint(String extranonce2, String ntime, String nonce) {
+		long hash = FNV_OFFSET_BASIS;
+		hash = hash(hash, extranonce2);
+		hash = (hash ^ ':') * FNV_PRIME;
+		hash = hash(hash, ntime);
+		hash = (hash ^ ':') * FNV_PRIME;
+		hash = hash(hash, nonce);
+		return hash;
+	}
+
+	private static long hash(long hash, String value) {
+		if (value != null) {
+			for (int i = 0; i < value.length(); i++) {
+				// Lower case of an hexadecimal digit. Digits are unchanged.
+				hash = (hash ^ (value.charAt(i) | 0x20)) * FNV_PRIME;
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Spread the high bits of the fingerprint on the low bits used as index.
+	 */
+	private static int mix(long fingerprint) {
+		return (int) (fingerprint ^ (fingerprint >>> 32));
+	}
+
+}
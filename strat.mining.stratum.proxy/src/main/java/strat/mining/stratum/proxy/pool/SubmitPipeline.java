@@ -0,0 +1,383 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.pool;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import strat.mining.stratum.proxy.callback.ResponseReceivedCallback;
+import strat.mining.stratum.proxy.constant.Constants;
+import strat.mining.stratum.proxy.json.JsonRpcError;
+import strat.mining.stratum.proxy.json.MiningSubmitRequest;
+import strat.mining.stratum.proxy.json.MiningSubmitResponse;
+import strat.mining.stratum.proxy.utils.Timer;
+import strat.mining.stratum.proxy.utils.Timer.Task;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Send the submit requests of a pool. The worker threads only enqueue the
+ * submits. A writer task drains the queue and sends the submits by batches
+ * (one write and one flush per batch), so a slow pool socket does not block
+ * the worker connections.
+ *
+ * The number of submits waiting for a pool response is bounded. When the
+ * bound is reached, the new submits are either queued until responses are
+ * received (QUEUE) or rejected locally (REJECT). The queue is bounded too,
+ * so a pool which stops answering cannot make it grow without limit.
+ *
+ * A submit without pool response after
+ * {@link Constants#DEFAULT_SUBMIT_RESPONSE_TIMEOUT} ms is rejected locally and
+ * its slot is freed.
+ *
+ * @author Strat
+ *
+ */
+public class SubmitPipeline {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SubmitPipeline.class);
+
+	// Max number of submits sent in one write.
+	private static final int MAX_BATCH_SIZE = 64;
+
+	// Shared by all pools. A thread is only busy while a pool queue is being
+	// drained. A pipeline has at most one drain scheduled, so the queue of
+	// the executor is bounded by the number of pools and sessions.
+	private static final ExecutorService WRITER_EXECUTOR = Executors.newFixedThreadPool(Constants.DEFAULT_SUBMIT_PIPELINE_THREADS,
+			new ThreadFactoryBuilder().setNameFormat("SubmitPipelineThread-%s").setDaemon(true).build());
+
+	/**
+	 * The behaviour when the max number of in-flight submits is reached.
+	 *
+	 * @author Strat
+	 *
+	 */
+	public enum BackpressurePolicy {
+		// Keep the submits in queue until responses are received.
+		QUEUE,
+		// Reject the submits locally.
+		REJECT;
+
+		public static BackpressurePolicy fromName(String name) {
+			BackpressurePolicy result = QUEUE;
+			for (BackpressurePolicy policy : values()) {
+				if (policy.name().equalsIgnoreCase(name)) {
+					result = policy;
+				}
+			}
+			return result;
+		}
+	}
+
+	private final Pool pool;
+
+	private final Queue<PendingSubmit> queuedSubmits;
+	private final AtomicInteger numberOfQueuedSubmits;
+
+	// The submits sent to the pool, by request id.
+	private final ConcurrentMap<Object, PendingSubmit> inFlightSubmits;
+	private final AtomicInteger numberOfInFlightSubmits;
+
+	private final AtomicBoolean isDrainScheduled;
+	private final Runnable drainTask;
+
+	private volatile int maxInFlightSubmits = Constants.DEFAULT_MAX_IN_FLIGHT_SUBMITS;
+	private volatile BackpressurePolicy backpressurePolicy = BackpressurePolicy.QUEUE;
+
+	public SubmitPipeline(Pool pool) {
+		this.pool = pool;
+		this.queuedSubmits = new ConcurrentLinkedQueue<PendingSubmit>();
+		this.numberOfQueuedSubmits = new AtomicInteger(0);
+		this.inFlightSubmits = new ConcurrentHashMap<Object, PendingSubmit>();
+		this.numberOfInFlightSubmits = new AtomicInteger(0);
+		this.isDrainScheduled = new AtomicBoolean(false);
+		this.drainTask = new Runnable() {
+			public void run() {
+				drain();
+			}
+		};
+	}
+
+	/**
+	 * Enqueue the submit request. The callback is called with the pool
+	 * response, or with a local rejection if the submit cannot be sent.
+	 *
+	 * @param request
+	 * @param callback
+	 */
+	public void submit(MiningSubmitRequest request, ResponseReceivedCallback<MiningSubmitRequest, MiningSubmitResponse> callback) {
+		if (backpressurePolicy == BackpressurePolicy.REJECT && numberOfInFlightSubmits.get() + numberOfQueuedSubmits.get() >= maxInFlightSubmits) {
+			LOGGER.warn("Submit rejected on pool {}. {} submits are already waiting for the pool response.", pool.getName(), maxInFlightSubmits);
+			reject(new PendingSubmit(request, callback), "Too many shares waiting for the pool response.");
+		} else if (numberOfQueuedSubmits.get() >= Constants.DEFAULT_MAX_QUEUED_SUBMITS) {
+			LOGGER.warn("Submit rejected on pool {}. {} submits are already waiting to be sent.", pool.getName(),
+					Constants.DEFAULT_MAX_QUEUED_SUBMITS);
+			reject(new PendingSubmit(request, callback), "Too many shares waiting to be sent to the pool.");
+		} else {
+			numberOfQueuedSubmits.incrementAndGet();
+			queuedSubmits.add(new PendingSubmit(request, callback));
+			scheduleDrain();
+		}
+	}
+
+	/**
+	 * Complete the submit with the pool response.
+	 *
+	 * @param request
+	 * @param response
+	 */
+	public void onResponse(MiningSubmitRequest request, MiningSubmitResponse response) {
+		PendingSubmit submit = inFlightSubmits.get(response.getId());
+		if (submit != null && removeInFlight(submit)) {
+			submit.callback.onResponseReceived(submit.request, response);
+		} else {
+			LOGGER.warn("Received an unexpected submit response on pool {}: {}", pool.getName(), response);
+		}
+
+		// A slot is free, send the queued submits.
+		if (!queuedSubmits.isEmpty()) {
+			scheduleDrain();
+		}
+	}
+
+	/**
+	 * Reject locally all the queued and in-flight submits. Used when the pool
+	 * connection is lost or replaced.
+	 *
+	 * @param cause
+	 */
+	public void rejectAll(String cause) {
+		int numberOfRejects = 0;
+		PendingSubmit submit = queuedSubmits.poll();
+		while (submit != null) {
+			numberOfQueuedSubmits.decrementAndGet();
+			reject(submit, cause);
+			numberOfRejects++;
+			submit = queuedSubmits.poll();
+		}
+
+		numberOfRejects += rejectInFlight(null, cause);
+
+		if (numberOfRejects > 0) {
+			LOGGER.info("{} submits rejected on pool {}. Cause: {}", numberOfRejects, pool.getName(), cause);
+		}
+	}
+
+	/**
+	 * Reject locally the in-flight submits sent on the given connection (all
+	 * of them if the connection is null). Return the number of rejected
+	 * submits.
+	 *
+	 * @param connection
+	 * @param cause
+	 * @return
+	 */
+	private int rejectInFlight(PoolConnection connection, String cause) {
+		int numberOfRejects = 0;
+		Iterator<PendingSubmit> iterator = inFlightSubmits.values().iterator();
+		while (iterator.hasNext()) {
+			PendingSubmit submit = iterator.next();
+			if ((connection == null || submit.connection == connection) && removeInFlight(submit)) {
+				reject(submit, cause);
+				numberOfRejects++;
+			}
+		}
+		return numberOfRejects;
+	}
+
+	/**
+	 * Remove the submit from the in-flight ones and free its slot. Return false
+	 * if the submit has already been completed (response, timeout or
+	 * rejection).
+	 *
+	 * @param submit
+	 * @return
+	 */
+	private boolean removeInFlight(PendingSubmit submit) {
+		boolean isRemoved = inFlightSubmits.remove(submit.request.getId(), submit);
+		if (isRemoved) {
+			numberOfInFlightSubmits.decrementAndGet();
+			submit.responseTimeoutTask.cancel();
+		}
+		return isRemoved;
+	}
+
+	/**
+	 * Reject the submit if the pool has not responded when the timeout
+	 * expires.
+	 *
+	 * @param submit
+	 * @return
+	 */
+	private Task createResponseTimeoutTask(final PendingSubmit submit) {
+		Task task = new Task() {
+			public void run() {
+				if (removeInFlight(submit)) {
+					// A late response is dropped by the connection.
+					submit.connection.forgetRequest(submit.request.getId());
+					LOGGER.warn("No response from pool {} for submit {} after {} ms.", pool.getName(), submit.request.getId(),
+							Constants.DEFAULT_SUBMIT_RESPONSE_TIMEOUT);
+					reject(submit, "No response from the pool.");
+					if (!queuedSubmits.isEmpty()) {
+						scheduleDrain();
+					}
+				}
+			}
+		};
+		task.setName("SubmitResponseTimeoutTask-" + pool.getName());
+		return task;
+	}
+
+	private void scheduleDrain() {
+		if (isDrainScheduled.compareAndSet(false, true)) {
+			WRITER_EXECUTOR.execute(drainTask);
+		}
+	}
+
+	/**
+	 * Send the queued submits while the max number of in-flight submits is not
+	 * reached.
+	 */
+	private void drain() {
+		try {
+			List<MiningSubmitRequest> batch = new ArrayList<MiningSubmitRequest>(MAX_BATCH_SIZE);
+			PoolConnection connection = pool.getConnection();
+			while (numberOfInFlightSubmits.get() < maxInFlightSubmits) {
+				PendingSubmit submit = queuedSubmits.poll();
+				if (submit == null) {
+					break;
+				}
+				numberOfQueuedSubmits.decrementAndGet();
+
+				if (connection == null) {
+					reject(submit, "The target pool is no more ready.");
+				} else {
+					// Register the submit before sending it, the response may
+					// be received before the end of the write.
+					submit.connection = connection;
+					submit.responseTimeoutTask = createResponseTimeoutTask(submit);
+					numberOfInFlightSubmits.incrementAndGet();
+					inFlightSubmits.put(submit.request.getId(), submit);
+					Timer.getInstance().scheduleTimeout(submit.responseTimeoutTask, Constants.DEFAULT_SUBMIT_RESPONSE_TIMEOUT);
+					batch.add(submit.request);
+					if (batch.size() >= MAX_BATCH_SIZE) {
+						connection.sendRequests(batch);
+						batch.clear();
+					}
+				}
+			}
+			if (connection != null && !batch.isEmpty()) {
+				connection.sendRequests(batch);
+			}
+
+			// The connection may have been closed during the drain, after the
+			// in-flight submits of the pool have been rejected. The submits
+			// registered since then will never be answered.
+			if (connection != null && pool.getConnection() != connection) {
+				rejectInFlight(connection, "The target pool is no more ready.");
+			}
+		} catch (Exception e) {
+			LOGGER.error("Unexpected error while sending the submits of pool {}.", pool.getName(), e);
+		} finally {
+			isDrainScheduled.set(false);
+		}
+
+		// Submits may have been queued after the last poll.
+		if (!queuedSubmits.isEmpty() && numberOfInFlightSubmits.get() < maxInFlightSubmits) {
+			scheduleDrain();
+		}
+	}
+
+	private void reject(PendingSubmit submit, String cause) {
+		MiningSubmitResponse fakePoolResponse = new MiningSubmitResponse();
+		fakePoolResponse.setId(submit.request.getId());
+		fakePoolResponse.setIsAccepted(false);
+		JsonRpcError error = new JsonRpcError();
+		error.setCode(JsonRpcError.ErrorCode.UNKNOWN.getCode());
+		error.setMessage(cause);
+		fakePoolResponse.setErrorRpc(error);
+		try {
+			submit.callback.onResponseReceived(submit.request, fakePoolResponse);
+		} catch (Exception e) {
+			LOGGER.error("Failed to reject a submit on pool {}.", pool.getName(), e);
+		}
+	}
+
+	/**
+	 * Return the number of submits waiting to be sent.
+	 *
+	 * @return
+	 */
+	public int getNumberOfQueuedSubmits() {
+		return numberOfQueuedSubmits.get();
+	}
+
+	/**
+	 * Return the number of submits sent and waiting for the pool response.
+	 *
+	 * @return
+	 */
+	public int getNumberOfInFlightSubmits() {
+		return numberOfInFlightSubmits.get();
+	}
+
+	public int getMaxInFlightSubmits() {
+		return maxInFlightSubmits;
+	}
+
+	public void setMaxInFlightSubmits(int maxInFlightSubmits) {
+		this.maxInFlightSubmits = maxInFlightSubmits;
+	}
+
+	public BackpressurePolicy getBackpressurePolicy() {
+		return backpressurePolicy;
+	}
+
+	public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+		this.backpressurePolicy = backpressurePolicy;
+	}
+
+	private static class PendingSubmit {
+
+		private final MiningSubmitRequest request;
+		private final ResponseReceivedCallback<MiningSubmitRequest, MiningSubmitResponse> callback;
+
+		// Set when the submit is sent.
+		private PoolConnection connection;
+		private Task responseTimeoutTask;
+
+		public PendingSubmit(MiningSubmitRequest request, ResponseReceivedCallback<MiningSubmitRequest, MiningSubmitResponse> callback) {
+			this.request = request;
+			this.callback = callback;
+		}
+	}
+
+}
@@ -0,0 +1,295 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timing wheel. Scheduling and cancellation are O(1) and never block:
+ * they only enqueue the timeout, and the wheel thread moves it in/out of its
+ * bucket. The precision is the tick duration, so it is used for the timeouts
+ * which are often cancelled and rescheduled, not for precise delays.
+ *
+ * @author Strat
+ *
+ */
+class HashedTimingWheel {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(HashedTimingWheel.class);
+
+	private final long tickDuration;
+	private final Bucket[] buckets;
+	private final int mask;
+
+	private final Executor executor;
+
+	// Timeouts added/cancelled since the last tick. Only drained by the wheel
+	// thread.
+	private final Queue<Timeout> newTimeouts;
+	private final Queue<Timeout> cancelledTimeouts;
+
+	private final AtomicLong numberOfPendingTimeouts;
+
+	private final long startTime;
+
+	/**
+	 * Create and start the wheel.
+	 *
+	 * @param tickDuration
+	 *            duration of a tick in milliseconds.
+	 * @param wheelSize
+	 *            number of buckets. Rounded up to a power of 2.
+	 * @param executor
+	 *            the executor of the expired tasks.
+	 */
+	public HashedTimingWheel(long tickDuration, int wheelSize, Executor executor) {
+		this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		this.buckets = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			buckets[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		this.executor = executor;
+		this.newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+		this.cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+		this.numberOfPendingTimeouts = new AtomicLong(0);
+		this.startTime = System.nanoTime();
+
+		Thread wheelThread = new Thread(new Worker(), "TimerWheelThread");
+		wheelThread.setDaemon(true);
+		wheelThread.start();
+	}
+
+	/**
+	 * Schedule the given task to be given to the executor in delay
+	 * milliseconds.
+	 *
+	 * @param task
+	 * @param delay
+	 * @return
+	 */
+	public Timeout newTimeout(Runnable task, long delay) {
+		numberOfPendingTimeouts.incrementAndGet();
+		Timeout timeout = new Timeout(task, System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delay));
+		newTimeouts.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Return the number of timeouts neither expired nor cancelled.
+	 *
+	 * @return
+	 */
+	public long getNumberOfPendingTimeouts() {
+		return numberOfPendingTimeouts.get();
+	}
+
+	/**
+	 * A task scheduled on the wheel.
+	 *
+	 * @author Strat
+	 *
+	 */
+	class Timeout {
+
+		private static final int STATE_PENDING = 0;
+		private static final int STATE_CANCELLED = 1;
+		private static final int STATE_EXPIRED = 2;
+
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state;
+
+		// Only accessed by the wheel thread.
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout previous;
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+			this.state = new AtomicInteger(STATE_PENDING);
+		}
+
+		/**
+		 * Cancel the timeout. Return false if it has already expired or been
+		 * cancelled.
+		 *
+		 * @return
+		 */
+		public boolean cancel() {
+			boolean isCancelled = state.compareAndSet(STATE_PENDING, STATE_CANCELLED);
+			if (isCancelled) {
+				numberOfPendingTimeouts.decrementAndGet();
+				cancelledTimeouts.add(this);
+			}
+			return isCancelled;
+		}
+
+		private boolean expire() {
+			boolean isExpired = state.compareAndSet(STATE_PENDING, STATE_EXPIRED);
+			if (isExpired) {
+				numberOfPendingTimeouts.decrementAndGet();
+			}
+			return isExpired;
+		}
+
+		private boolean isCancelled() {
+			return state.get() == STATE_CANCELLED;
+		}
+	}
+
+	/**
+	 * A doubly-linked list of timeouts. Only accessed by the wheel thread.
+	 *
+	 * @author Strat
+	 *
+	 */
+	private class Bucket {
+
+		private Timeout head;
+		private Timeout tail;
+
+		public void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = timeout;
+				tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.previous = tail;
+				tail = timeout;
+			}
+		}
+
+		public void remove(Timeout timeout) {
+			if (timeout.previous != null) {
+				timeout.previous.next = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.previous = timeout.previous;
+			}
+			if (timeout == head) {
+				head = timeout.next;
+			}
+			if (timeout == tail) {
+				tail = timeout.previous;
+			}
+			timeout.previous = null;
+			timeout.next = null;
+			timeout.bucket = null;
+		}
+
+		/**
+		 * Give the expired timeouts to the executor and decrease the rounds
+		 * of the others.
+		 *
+		 * @param currentTime
+		 */
+		public void expireTimeouts(long currentTime) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.remainingRounds <= 0 && timeout.deadline <= currentTime) {
+					remove(timeout);
+					if (timeout.expire()) {
+						try {
+							executor.execute(timeout.task);
+						} catch (Exception e) {
+							LOGGER.error("Failed to execute an expired timeout.", e);
+						}
+					}
+				} else if (timeout.isCancelled()) {
+					remove(timeout);
+				} else {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		private long tick;
+
+		public void run() {
+			while (true) {
+				try {
+					long currentTime = waitForNextTick();
+					removeCancelledTimeouts();
+					addNewTimeouts();
+					buckets[(int) (tick & mask)].expireTimeouts(currentTime);
+					tick++;
+				} catch (Exception e) {
+					LOGGER.error("Unexpected error in TimerWheelThread", e);
+				}
+			}
+		}
+
+		private long waitForNextTick() {
+			long tickEndTime = tickDuration * (tick + 1);
+			long currentTime = System.nanoTime() - startTime;
+			while (currentTime < tickEndTime) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(tickEndTime - currentTime);
+				} catch (InterruptedException e) {
+				}
+				currentTime = System.nanoTime() - startTime;
+			}
+			return currentTime;
+		}
+
+		private void removeCancelledTimeouts() {
+			Timeout timeout = cancelledTimeouts.poll();
+			while (timeout != null) {
+				if (timeout.bucket != null) {
+					timeout.bucket.remove(timeout);
+				}
+				timeout = cancelledTimeouts.poll();
+			}
+		}
+
+		private void addNewTimeouts() {
+			Timeout timeout = newTimeouts.poll();
+			while (timeout != null) {
+				if (!timeout.isCancelled()) {
+					long expirationTick = timeout.deadline / tickDuration;
+					timeout.remainingRounds = (expirationTick - tick) / buckets.length;
+					// A timeout already in the past is expired on the current
+					// tick.
+					long bucketTick = Math.max(expirationTick, tick);
+					buckets[(int) (bucketTick & mask)].add(timeout);
+				}
+				timeout = newTimeouts.poll();
+			}
+		}
+	}
+
+}
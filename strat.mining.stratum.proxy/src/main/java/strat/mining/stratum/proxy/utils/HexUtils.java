@@ -0,0 +1,63 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.utils;
+
+/**
+ * Hexadecimal utility class.
+ * 
+ * @author Strat
+ * 
+ */
+public final class HexUtils {
+
+	private HexUtils() {
+	}
+
+	/**
+	 * Decode the given hexadecimal string into the into array, starting at
+	 * the intoStartIndex. The string is decoded without building any
+	 * intermediate array.
+	 * 
+	 * @param hex
+	 * @param into
+	 * @param intoStartIndex
+	 * @return the number of decoded bytes.
+	 * @throws IllegalArgumentException
+	 *             if the string is not a valid hexadecimal string.
+	 */
+	public static final int decodeHexInto(String hex, byte[] into, int intoStartIndex) throws IllegalArgumentException {
+		if (hex.length() % 2 != 0) {
+			throw new IllegalArgumentException("Invalid hexadecimal string length: " + hex.length());
+		}
+		int length = hex.length() / 2;
+		for (int i = 0; i < length; i++) {
+			into[intoStartIndex + i] = (byte) (hexDigit(hex, 2 * i) << 4 | hexDigit(hex, 2 * i + 1));
+		}
+		return length;
+	}
+
+	private static int hexDigit(String hex, int index) {
+		int digit = Character.digit(hex.charAt(index), 16);
+		if (digit < 0) {
+			throw new IllegalArgumentException("Invalid hexadecimal character " + hex.charAt(index) + " at index " + index);
+		}
+		return digit;
+	}
+
+}
@@ -18,55 +18,74 @@
  */
 package strat.mining.stratum.proxy.utils;
 
-import java.util.Comparator;
-import java.util.PriorityQueue;
-import java.util.Queue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import strat.mining.stratum.proxy.constant.Constants;
+
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+/**
+ * Run tasks after a delay.
+ * 
+ * The tasks are scheduled either on a scheduled thread pool (precise delay,
+ * O(log n) cancellation) or on a hashed timing wheel (tick precision, O(1)
+ * scheduling and cancellation) for the timeouts which are cancelled and
+ * rescheduled very often. In both cases, the tasks are run by a bounded
+ * executor. When the executor is saturated, the scheduling thread runs the
+ * task itself.
+ * 
+ * @author Strat
+ * 
+ */
 public class Timer {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(Timer.class);
 
-	private static Timer instance;
+	private static volatile Timer instance;
+
+	private final ThreadPoolExecutor executor;
 
-	private ExecutorService executor;
+	private final ScheduledThreadPoolExecutor scheduler;
 
-	private Queue<Task> waitingTasks;
+	private final HashedTimingWheel wheel;
 
-	private Scheduler scheduler;
+	private final AtomicLong numberOfExecutedTasks;
+	private final AtomicLong totalLateness;
+	private final AtomicLong maxLateness;
 
 	private Timer() {
-		waitingTasks = new PriorityQueue<Task>(16, new Comparator<Task>() {
-			public int compare(Task o1, Task o2) {
-				int result = 0;
-				if (o1 == null || o1.getExpectedExecutionTime() == null) {
-					result = -1;
-				} else if (o2 == null || o2.getExpectedExecutionTime() == null) {
-					result = 1;
-				} else {
-					result = o1.getExpectedExecutionTime().compareTo(o2.getExpectedExecutionTime());
-				}
-				return result;
-			}
-		});
-		scheduler = new Scheduler();
-		executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("TimerExecutorThread-%s").setDaemon(true).build());
+		executor = new ThreadPoolExecutor(Constants.DEFAULT_TIMER_EXECUTOR_THREADS, Constants.DEFAULT_TIMER_EXECUTOR_THREADS, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Constants.DEFAULT_TIMER_EXECUTOR_QUEUE_SIZE), new ThreadFactoryBuilder()
+						.setNameFormat("TimerExecutorThread-%s").setDaemon(true).build(), new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+
+		scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("TimerSchedulerThread").setDaemon(true).build());
+		// Remove the cancelled tasks from the queue instead of keeping them
+		// until their delay is elapsed.
+		scheduler.setRemoveOnCancelPolicy(true);
+
+		wheel = new HashedTimingWheel(Constants.DEFAULT_TIMER_WHEEL_TICK_DURATION, Constants.DEFAULT_TIMER_WHEEL_SIZE, executor);
 
-		Thread timerThread = new Thread(scheduler, "TimerSchedulerThread");
-		timerThread.setDaemon(true);
-		timerThread.start();
+		numberOfExecutedTasks = new AtomicLong(0);
+		totalLateness = new AtomicLong(0);
+		maxLateness = new AtomicLong(0);
 	}
 
 	public static Timer getInstance() {
 		if (instance == null) {
-			instance = new Timer();
+			synchronized (Timer.class) {
+				if (instance == null) {
+					instance = new Timer();
+				}
+			}
 		}
 		return instance;
 	}
@@ -77,21 +96,19 @@ public class Timer {
 	 * @param task
 	 * @param delay
 	 */
-	public void schedule(Task task, long delay) {
+	public void schedule(final Task task, long delay) {
 		// Check that the task is not null and delay is valid.
 		if (task != null && delay >= 0) {
 			LOGGER.debug("Scheduling of task {} in {} ms.", task.getName(), delay);
 			task.setExpectedExecutionTime(System.currentTimeMillis() + delay);
-			LOGGER.trace("Expected execution time of task {}: {}.", task.getName(), task.getExpectedExecutionTime());
-			// Wake up the scheduler.
-			synchronized (waitingTasks) {
-				boolean isInserted = waitingTasks.offer(task);
-				waitingTasks.notifyAll();
-				if (isInserted) {
-					LOGGER.trace("Task {} added in queue => Waking up the scheduler. {}", task.getName(), waitingTasks);
-				} else {
-					LOGGER.warn("Task {} not added in queue. {}", task.getName(), waitingTasks);
+			task.scheduledFuture = scheduler.schedule(new Runnable() {
+				public void run() {
+					executor.execute(new TaskRunner(task));
 				}
+			}, delay, TimeUnit.MILLISECONDS);
+			// The task may have been cancelled before the future is set.
+			if (task.isCancelled()) {
+				task.scheduledFuture.cancel(false);
 			}
 		} else {
 			LOGGER.info("Failed to schedule task {} in {} ms.", task != null ? task.getName() : "null", delay);
@@ -99,56 +116,110 @@ public class Timer {
 	}
 
 	/**
-	 * The scheduler of the timer.
+	 * Schedule the given task to execute in delay milliseconds, with a
+	 * precision of {@link Constants#DEFAULT_TIMER_WHEEL_TICK_DURATION} ms. To
+	 * use for timeouts which are often cancelled before they expire.
+	 * 
+	 * @param task
+	 * @param delay
+	 */
+	public void scheduleTimeout(Task task, long delay) {
+		if (task != null && delay >= 0) {
+			LOGGER.debug("Scheduling of timeout {} in {} ms.", task.getName(), delay);
+			task.setExpectedExecutionTime(System.currentTimeMillis() + delay);
+			task.timeout = wheel.newTimeout(new TaskRunner(task), delay);
+			if (task.isCancelled()) {
+				task.timeout.cancel();
+			}
+		} else {
+			LOGGER.info("Failed to schedule timeout {} in {} ms.", task != null ? task.getName() : "null", delay);
+		}
+	}
+
+	/**
+	 * Return the number of tasks waiting for their delay.
+	 * 
+	 * @return
+	 */
+	public long getNumberOfScheduledTasks() {
+		return scheduler.getQueue().size() + wheel.getNumberOfPendingTimeouts();
+	}
+
+	/**
+	 * Return the number of tasks whose delay is elapsed and waiting for an
+	 * executor thread.
+	 * 
+	 * @return
+	 */
+	public int getExecutorQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Return the number of tasks executed since the start.
+	 * 
+	 * @return
+	 */
+	public long getNumberOfExecutedTasks() {
+		return numberOfExecutedTasks.get();
+	}
+
+	/**
+	 * Return the maximum delay (in ms) between the expected and the real
+	 * execution time of the tasks.
+	 * 
+	 * @return
+	 */
+	public long getMaxLateness() {
+		return maxLateness.get();
+	}
+
+	/**
+	 * Return the average delay (in ms) between the expected and the real
+	 * execution time of the tasks.
+	 * 
+	 * @return
+	 */
+	public double getAverageLateness() {
+		long executed = numberOfExecutedTasks.get();
+		return executed > 0 ? (double) totalLateness.get() / executed : 0;
+	}
+
+	private void updateLateness(long lateness) {
+		numberOfExecutedTasks.incrementAndGet();
+		totalLateness.addAndGet(lateness);
+		long currentMax = maxLateness.get();
+		while (lateness > currentMax && !maxLateness.compareAndSet(currentMax, lateness)) {
+			currentMax = maxLateness.get();
+		}
+	}
+
+	/**
+	 * Run the task on the executor if it is not cancelled.
 	 * 
 	 * @author Strat
 	 * 
 	 */
-	protected class Scheduler implements Runnable {
+	private class TaskRunner implements Runnable {
+
+		private final Task task;
+
+		public TaskRunner(Task task) {
+			this.task = task;
+		}
 
 		public void run() {
-			while (true) {
-				Task nextTask = null;
-				long currentTime = System.currentTimeMillis();
+			if (!task.isCancelled()) {
+				long lateness = System.currentTimeMillis() - task.getExpectedExecutionTime();
+				updateLateness(Math.max(0, lateness));
+				LOGGER.debug("Executing task {} now ({} ms late).", task.getName(), lateness);
 				try {
-					synchronized (waitingTasks) {
-						LOGGER.trace("Looking for next task to execute: {}", waitingTasks);
-						nextTask = waitingTasks.peek();
-
-						if (nextTask == null || nextTask.getExpectedExecutionTime() > currentTime) {
-							// Wait for a new task add if no task is present
-							// or wait for the delay before the execution of the
-							// next task.
-							long timeToWait = 500;
-							if (nextTask != null) {
-								timeToWait = nextTask.getExpectedExecutionTime() - currentTime;
-								LOGGER.trace("Next task to execute {}: waiting for {} ms.", nextTask.getName(), timeToWait);
-							} else {
-								LOGGER.trace("No task in the queue. Waiting for {} ms.", timeToWait);
-							}
-
-							waitingTasks.wait(timeToWait);
-
-						} else {
-							nextTask = waitingTasks.poll();
-
-							LOGGER.trace("Task to execute now: {}.", nextTask.getName());
-
-							// Run the task only if it is not cancelled.
-							if (!nextTask.isCancelled()) {
-								LOGGER.debug("Executing task {} now.", nextTask.getName());
-								executor.execute(nextTask);
-							} else {
-								LOGGER.trace("Task {} cancelled. Do not execute.", nextTask.getName());
-							}
-						}
-					}
-
-				} catch (InterruptedException e) {
+					task.run();
 				} catch (Exception e) {
-					LOGGER.error("Unexpected error in TimerSchedulerThread", e);
+					LOGGER.error("Unexpected error while executing task {}.", task.getName(), e);
 				}
-
+			} else {
+				LOGGER.trace("Task {} cancelled. Do not execute.", task.getName());
 			}
 		}
 	}
@@ -165,6 +236,10 @@ public class Timer {
 
 		volatile boolean isCancelled = false;
 
+		// Set when scheduled on the scheduler or on the wheel.
+		volatile Future<?> scheduledFuture;
+		volatile HashedTimingWheel.Timeout timeout;
+
 		private Long expectedExecutionTime;
 
 		private String name;
@@ -178,13 +253,13 @@ public class Timer {
 		public void cancel() {
 			LOGGER.debug("Cancelling the task {}.", getName());
 			isCancelled = true;
-			synchronized (Timer.getInstance().waitingTasks) {
-				boolean removed = Timer.getInstance().waitingTasks.remove(this);
-				if (removed) {
-					LOGGER.debug("Task {} removed. {}", getName(), Timer.getInstance().waitingTasks);
-				} else {
-					LOGGER.debug("Failed to remove task {} but still cancelled. {}", getName(), Timer.getInstance().waitingTasks);
-				}
+			Future<?> future = scheduledFuture;
+			if (future != null) {
+				future.cancel(false);
+			}
+			HashedTimingWheel.Timeout currentTimeout = timeout;
+			if (currentTimeout != null) {
+				currentTimeout.cancel();
 			}
 		}
 
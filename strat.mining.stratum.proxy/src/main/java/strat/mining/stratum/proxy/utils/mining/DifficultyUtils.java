@@ -1,6 +1,7 @@
 package strat.mining.stratum.proxy.utils.mining;
 
 import strat.mining.stratum.proxy.CryptoAlgorithm;
+import strat.mining.stratum.proxy.exception.UnsupportedCryptoAlgorithmException;
 import strat.mining.stratum.proxy.worker.GetworkJobTemplate;
 import strat.mining.stratum.proxy.worker.GetworkJobTemplate.GetworkRequestResult;
 
@@ -43,4 +44,87 @@ public final class DifficultyUtils {
 		return realDifficulty;
 	}
 
+	/**
+	 * Return the hash of the given 80 bytes block header as an unsigned
+	 * integer (the hash is a little-endian 256 bits integer).
+	 * 
+	 * @param blockHeader
+	 * @param algo
+	 * @return
+	 * @throws UnsupportedCryptoAlgorithmException
+	 *             if the algorithm is not SHA256 or Scrypt.
+	 */
+	public static UInt256 getBlockHeaderHash(byte[] blockHeader, CryptoAlgorithm algo) {
+		byte[] hash = new byte[SHA256Engine.DIGEST_LENGTH];
+		hashBlockHeader(blockHeader, algo, hash);
+		return UInt256.fromLittleEndian(hash, 0);
+	}
+
+	/**
+	 * Write the hash of the given 80 bytes block header in the given 32 bytes
+	 * array. The hash is a little-endian 256 bits integer, to compare with
+	 * {@link UInt256#compareToLittleEndian(byte[], int)}. Nothing is
+	 * allocated.
+	 * 
+	 * @param blockHeader
+	 * @param algo
+	 * @param hash
+	 * @throws UnsupportedCryptoAlgorithmException
+	 *             if the algorithm is not SHA256 or Scrypt.
+	 */
+	public static void hashBlockHeader(byte[] blockHeader, CryptoAlgorithm algo, byte[] hash) {
+		switch (algo) {
+		case Scrypt:
+			ScryptHasher.get().hash(blockHeader, 0, hash, 0);
+			break;
+		case SHA256:
+			SHA256Engine.get().doubleHash(blockHeader, 0, blockHeader.length, hash, 0);
+			break;
+		default:
+			throw new UnsupportedCryptoAlgorithmException(algo);
+		}
+	}
+
+	/**
+	 * Return the target of the given difficulty. A share is valid if its hash
+	 * is lower or equal to the target.
+	 * 
+	 * @param difficulty
+	 * @param algo
+	 * @return
+	 * @throws UnsupportedCryptoAlgorithmException
+	 *             if the algorithm is not SHA256 or Scrypt.
+	 */
+	public static UInt256 getTarget(double difficulty, CryptoAlgorithm algo) {
+		return UInt256.fromDifficulty(difficulty, getDifficulty1Target(algo));
+	}
+
+	/**
+	 * Return the difficulty of the given target (or hash).
+	 * 
+	 * @param target
+	 * @param algo
+	 * @return
+	 * @throws UnsupportedCryptoAlgorithmException
+	 *             if the algorithm is not SHA256 or Scrypt.
+	 */
+	public static double getDifficulty(UInt256 target, CryptoAlgorithm algo) {
+		return target.toDifficulty(getDifficulty1Target(algo));
+	}
+
+	private static UInt256 getDifficulty1Target(CryptoAlgorithm algo) {
+		UInt256 difficulty1 = null;
+		switch (algo) {
+		case Scrypt:
+			difficulty1 = ScryptHashingUtils.DIFFICULTY_1_TARGET_UINT256;
+			break;
+		case SHA256:
+			difficulty1 = SHA256HashingUtils.DIFFICULTY_1_TARGET_UINT256;
+			break;
+		default:
+			throw new UnsupportedCryptoAlgorithmException(algo);
+		}
+		return difficulty1;
+	}
+
 }
@@ -41,8 +41,33 @@ public final class HashrateUtils {
 			totalDifficultyInSamplingPeriod += share.getDifficulty();
 		}
 
+		return getHashrate(totalDifficultyInSamplingPeriod, samplingHashesPeriod, algo);
+	}
+
+	/**
+	 * Compute the hashrate from the total difficulty of the shares submitted
+	 * during the given sampling period (in milliseconds).
+	 * 
+	 * @param totalDifficulty
+	 * @param samplingHashesPeriod
+	 * @param algo
+	 * @return
+	 */
+	public static double getHashrate(double totalDifficulty, int samplingHashesPeriod, CryptoAlgorithm algo) {
+		double hashesPerSeconds = (totalDifficulty / (samplingHashesPeriod / 1000)) * getAverageNumberOfHashesPerShareAtDifficultyOne(algo);
+		return hashesPerSeconds;
+	}
+
+	/**
+	 * Return the average number of hashes needed to find a share at difficulty
+	 * one with the given algorithm.
+	 * 
+	 * @param algo
+	 * @return
+	 */
+	public static double getAverageNumberOfHashesPerShareAtDifficultyOne(CryptoAlgorithm algo) {
 		double averageNumberOfHashesPerShareAtDifficultyOne = 0;
-		
+
 		switch (algo) {
 		case Scrypt:
 			averageNumberOfHashesPerShareAtDifficultyOne = Constants.AVERAGE_NUMBER_OF_HASHES_PER_SHARE_AT_DIFFICULTY_ONE_SCRYPT;
@@ -53,9 +78,7 @@ public final class HashrateUtils {
 			averageNumberOfHashesPerShareAtDifficultyOne = Constants.AVERAGE_NUMBER_OF_HASHES_PER_SHARE_AT_DIFFICULTY_ONE;
 			break;
 		}
-
-		double hashesPerSeconds = (totalDifficultyInSamplingPeriod / (samplingHashesPeriod / 1000)) * averageNumberOfHashesPerShareAtDifficultyOne;
-		return hashesPerSeconds;
+		return averageNumberOfHashesPerShareAtDifficultyOne;
 	}
 
 	/**
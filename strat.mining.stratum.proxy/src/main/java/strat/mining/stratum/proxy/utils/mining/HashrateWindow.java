@@ -0,0 +1,178 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.utils.mining;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import strat.mining.stratum.proxy.CryptoAlgorithm;
+
+/**
+ * Sliding window of submitted share difficulties used to compute a hashrate.
+ *
+ * The window is a ring of one second buckets. Each bucket is striped in a few
+ * cells (selected by thread) to limit the contention when many threads submit
+ * shares at the same time. An update is O(1) and does not allocate, a read is
+ * O(buckets).
+ *
+ * @author Strat
+ *
+ */
+public class HashrateWindow {
+
+	// Number of cells per bucket. Has to be a power of 2.
+	private static final int NUMBER_OF_STRIPES = 4;
+
+	private final CryptoAlgorithm algo;
+
+	private volatile Ring ring;
+
+	/**
+	 * Create a window of the given period.
+	 *
+	 * @param samplingPeriod
+	 *            the period in seconds.
+	 * @param algo
+	 */
+	public HashrateWindow(int samplingPeriod, CryptoAlgorithm algo) {
+		this.algo = algo;
+		this.ring = new Ring(samplingPeriod);
+	}
+
+	/**
+	 * Add a share submitted at the given time (in milliseconds).
+	 *
+	 * @param time
+	 * @param difficulty
+	 */
+	public void addShare(long time, double difficulty) {
+		ring.add(time / 1000, difficulty);
+	}
+
+	/**
+	 * Return the total difficulty of the shares submitted during the sampling
+	 * period.
+	 *
+	 * @return
+	 */
+	public double getTotalDifficulty() {
+		return ring.sum(System.currentTimeMillis() / 1000);
+	}
+
+	/**
+	 * Return the number of hashes per seconds computed from the shares
+	 * submitted during the sampling period.
+	 *
+	 * @return
+	 */
+	public double getHashrate() {
+		Ring currentRing = ring;
+		return HashrateUtils.getHashrate(currentRing.sum(System.currentTimeMillis() / 1000), currentRing.period * 1000, algo);
+	}
+
+	/**
+	 * Change the sampling period (in seconds). The already recorded shares are
+	 * dropped.
+	 *
+	 * @param samplingPeriod
+	 */
+	public void setSamplingPeriod(int samplingPeriod) {
+		if (samplingPeriod != ring.period) {
+			ring = new Ring(samplingPeriod);
+		}
+	}
+
+	/**
+	 * Return the sampling period in seconds.
+	 *
+	 * @return
+	 */
+	public int getSamplingPeriod() {
+		return ring.period;
+	}
+
+	private static class Ring {
+
+		// Marks a cell being reset for a new second.
+		private static final long RESETTING = -1;
+
+		private final int period;
+		private final int numberOfBuckets;
+
+		// For each cell, the second of the bucket it currently holds.
+		private final AtomicLongArray seconds;
+		// For each cell, the raw bits of the difficulty sum.
+		private final AtomicLongArray sums;
+
+		public Ring(int period) {
+			this.period = Math.max(1, period);
+			// One more bucket for the current (partial) second.
+			this.numberOfBuckets = this.period + 1;
+			this.seconds = new AtomicLongArray(numberOfBuckets * NUMBER_OF_STRIPES);
+			this.sums = new AtomicLongArray(numberOfBuckets * NUMBER_OF_STRIPES);
+		}
+
+		public void add(long second, double difficulty) {
+			int stripe = (int) (Thread.currentThread().getId() & (NUMBER_OF_STRIPES - 1));
+			int cell = (int) (second % numberOfBuckets) * NUMBER_OF_STRIPES + stripe;
+
+			while (true) {
+				long cellSecond = seconds.get(cell);
+				if (cellSecond == second) {
+					addToSum(cell, difficulty);
+					return;
+				} else if (cellSecond > second) {
+					// The cell already holds a more recent second. The share
+					// is older than the window, drop it.
+					return;
+				} else if (cellSecond == RESETTING) {
+					// Another thread is moving the cell to a new second.
+					Thread.yield();
+				} else if (seconds.compareAndSet(cell, cellSecond, RESETTING)) {
+					// The cell holds an expired second. Reuse it.
+					sums.set(cell, Double.doubleToRawLongBits(difficulty));
+					seconds.set(cell, second);
+					return;
+				}
+			}
+		}
+
+		private void addToSum(int cell, double difficulty) {
+			while (true) {
+				long current = sums.get(cell);
+				long next = Double.doubleToRawLongBits(Double.longBitsToDouble(current) + difficulty);
+				if (sums.compareAndSet(cell, current, next)) {
+					return;
+				}
+			}
+		}
+
+		public double sum(long currentSecond) {
+			long oldestSecond = currentSecond - period;
+			double total = 0;
+			for (int cell = 0; cell < seconds.length(); cell++) {
+				long cellSecond = seconds.get(cell);
+				if (cellSecond > oldestSecond && cellSecond <= currentSecond) {
+					total += Double.longBitsToDouble(sums.get(cell));
+				}
+			}
+			return total;
+		}
+	}
+
+}
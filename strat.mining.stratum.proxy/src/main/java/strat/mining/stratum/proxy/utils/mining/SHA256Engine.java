@@ -0,0 +1,319 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.utils.mining;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 hashing without any allocation per call. The digest, the message
+ * schedule, the state and the padding block are reused, so an engine must not
+ * be shared between threads: use {@link #get()} to retrieve the engine of the
+ * current thread.
+ * 
+ * The plain and double hashes are computed by the JDK digest. The midstate
+ * of a 64 bytes block and the hash continued from a midstate need the
+ * internal state, so they are computed by an int based compression function.
+ * The first block of a block header is then compressed once for many nonces.
+ * 
+ * @author Strat
+ * 
+ */
+public final class SHA256Engine {
+
+	private static final int[] INITIAL_STATE = { 0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab,
+			0x5be0cd19 };
+
+	private static final int[] K = { 0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+			0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786,
+			0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da, 0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+			0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967, 0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb,
+			0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+			0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3, 0x748f82ee, 0x78a5636f,
+			0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2 };
+
+	public static final int DIGEST_LENGTH = 32;
+	public static final int BLOCK_LENGTH = 64;
+
+	private static final ThreadLocal<SHA256Engine> ENGINES = new ThreadLocal<SHA256Engine>() {
+		protected SHA256Engine initialValue() {
+			return new SHA256Engine();
+		}
+	};
+
+	// The full hashes are computed by the JDK digest, which uses the SHA
+	// intrinsics of the JVM when available.
+	private final MessageDigest messageDigest;
+
+	private final int[] w = new int[64];
+	private final int[] state = new int[8];
+	private final byte[] block = new byte[BLOCK_LENGTH];
+	private final byte[] digest = new byte[DIGEST_LENGTH];
+
+	private SHA256Engine() {
+		try {
+			messageDigest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not supported by the JVM.", e);
+		}
+	}
+
+	/**
+	 * Return the engine of the current thread.
+	 * 
+	 * @return
+	 */
+	public static SHA256Engine get() {
+		return ENGINES.get();
+	}
+
+	/**
+	 * Write the SHA-256 hash of the given data in out at outOffset.
+	 * 
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param out
+	 * @param outOffset
+	 */
+	public void hash(byte[] data, int offset, int length, byte[] out, int outOffset) {
+		messageDigest.update(data, offset, length);
+		try {
+			messageDigest.digest(out, outOffset, DIGEST_LENGTH);
+		} catch (DigestException e) {
+			throw new IllegalArgumentException("Not enough room in the output array.", e);
+		}
+	}
+
+	/**
+	 * Write the double SHA-256 hash (SHA-256 of the SHA-256) of the given data
+	 * in out at outOffset.
+	 * 
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param out
+	 * @param outOffset
+	 */
+	public void doubleHash(byte[] data, int offset, int length, byte[] out, int outOffset) {
+		hash(data, offset, length, digest, 0);
+		hash(digest, 0, DIGEST_LENGTH, out, outOffset);
+	}
+
+	/**
+	 * Write in midstate the state after the compression of the 64 bytes block
+	 * at the given offset.
+	 * 
+	 * @param data
+	 * @param offset
+	 * @param midstate
+	 *            8 ints.
+	 */
+	public void midstate(byte[] data, int offset, int[] midstate) {
+		System.arraycopy(INITIAL_STATE, 0, midstate, 0, 8);
+		compress(midstate, data, offset, false);
+	}
+
+	/**
+	 * Write the double SHA-256 hash of a message in out at outOffset. The
+	 * first 64 bytes block of the message has already been compressed in the
+	 * given midstate, the data is the remaining of the message.
+	 * 
+	 * @param midstate
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param out
+	 * @param outOffset
+	 */
+	public void doubleHashFromMidstate(int[] midstate, byte[] data, int offset, int length, byte[] out, int outOffset) {
+		hashFromState(midstate, BLOCK_LENGTH, data, offset, length, digest, 0);
+		hash(digest, 0, DIGEST_LENGTH, out, outOffset);
+	}
+
+	/**
+	 * Compress the 64 bytes block at the given offset into the given state.
+	 * 
+	 * @param state
+	 *            8 ints.
+	 * @param data
+	 * @param offset
+	 */
+	public void compressBlock(int[] state, byte[] data, int offset) {
+		compress(state, data, offset, false);
+	}
+
+	/**
+	 * Write the SHA-256 hash of a message in out at outOffset. The first
+	 * processedLength bytes of the message (a multiple of 64) have already
+	 * been compressed in the given state, the data is the remaining of the
+	 * message. The given state is not modified.
+	 * 
+	 * @param state
+	 * @param processedLength
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param out
+	 * @param outOffset
+	 */
+	public void hashFromState(int[] state, long processedLength, byte[] data, int offset, int length, byte[] out, int outOffset) {
+		System.arraycopy(state, 0, this.state, 0, 8);
+		finish(data, offset, length, processedLength + length);
+		writeState(out, outOffset);
+	}
+
+	/**
+	 * Write the getwork midstate of the 64 bytes block at the given offset in
+	 * out at outOffset. The getwork data words are little-endian, so the
+	 * words are read and the midstate is written in little-endian.
+	 * 
+	 * @param data
+	 * @param offset
+	 * @param out
+	 * @param outOffset
+	 */
+	public void getworkMidstate(byte[] data, int offset, byte[] out, int outOffset) {
+		System.arraycopy(INITIAL_STATE, 0, state, 0, 8);
+		compress(state, data, offset, true);
+		for (int i = 0; i < 8; i++) {
+			int word = state[i];
+			int index = outOffset + i * 4;
+			out[index] = (byte) word;
+			out[index + 1] = (byte) (word >>> 8);
+			out[index + 2] = (byte) (word >>> 16);
+			out[index + 3] = (byte) (word >>> 24);
+		}
+	}
+
+	/**
+	 * Compress the remaining data into the state and pad the message. The
+	 * total length is the length of the whole message, in bytes.
+	 * 
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param totalLength
+	 */
+	private void finish(byte[] data, int offset, int length, long totalLength) {
+		while (length >= BLOCK_LENGTH) {
+			compress(state, data, offset, false);
+			offset += BLOCK_LENGTH;
+			length -= BLOCK_LENGTH;
+		}
+
+		System.arraycopy(data, offset, block, 0, length);
+		block[length] = (byte) 0x80;
+		if (length >= BLOCK_LENGTH - 8) {
+			// No room left for the message length.
+			for (int i = length + 1; i < BLOCK_LENGTH; i++) {
+				block[i] = 0;
+			}
+			compress(state, block, 0, false);
+			length = -1;
+		}
+		for (int i = length + 1; i < BLOCK_LENGTH - 8; i++) {
+			block[i] = 0;
+		}
+
+		long bitLength = totalLength << 3;
+		for (int i = 0; i < 8; i++) {
+			block[BLOCK_LENGTH - 1 - i] = (byte) (bitLength >>> (8 * i));
+		}
+		compress(state, block, 0, false);
+	}
+
+	/**
+	 * Compress the 64 bytes block at the given offset into the given state.
+	 * 
+	 * @param s
+	 * @param data
+	 * @param offset
+	 * @param isLittleEndian
+	 *            true if the words of the block are little-endian.
+	 */
+	private void compress(int[] s, byte[] data, int offset, boolean isLittleEndian) {
+		for (int i = 0; i < 16; i++) {
+			int index = offset + i * 4;
+			if (isLittleEndian) {
+				w[i] = (data[index] & 0xFF) | (data[index + 1] & 0xFF) << 8 | (data[index + 2] & 0xFF) << 16 | data[index + 3] << 24;
+			} else {
+				w[i] = data[index] << 24 | (data[index + 1] & 0xFF) << 16 | (data[index + 2] & 0xFF) << 8 | (data[index + 3] & 0xFF);
+			}
+		}
+		for (int i = 16; i < 64; i++) {
+			int w15 = w[i - 15];
+			int w2 = w[i - 2];
+			int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+			int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+			w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+		}
+
+		int a = s[0];
+		int b = s[1];
+		int c = s[2];
+		int d = s[3];
+		int e = s[4];
+		int f = s[5];
+		int g = s[6];
+		int h = s[7];
+
+		for (int i = 0; i < 64; i++) {
+			int t1 = h + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25)) + ((e & f) ^ (~e & g)) + K[i]
+					+ w[i];
+			int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22)) + ((a & b) ^ (a & c) ^ (b & c));
+			h = g;
+			g = f;
+			f = e;
+			e = d + t1;
+			d = c;
+			c = b;
+			b = a;
+			a = t1 + t2;
+		}
+
+		s[0] += a;
+		s[1] += b;
+		s[2] += c;
+		s[3] += d;
+		s[4] += e;
+		s[5] += f;
+		s[6] += g;
+		s[7] += h;
+	}
+
+	/**
+	 * Write the state in big-endian in out at outOffset.
+	 * 
+	 * @param out
+	 * @param outOffset
+	 */
+	private void writeState(byte[] out, int outOffset) {
+		for (int i = 0; i < 8; i++) {
+			int word = state[i];
+			int index = outOffset + i * 4;
+			out[index] = (byte) (word >>> 24);
+			out[index + 1] = (byte) (word >>> 16);
+			out[index + 2] = (byte) (word >>> 8);
+			out[index + 3] = (byte) word;
+		}
+	}
+
+}
@@ -0,0 +1,225 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.utils.mining;
+
+/**
+ * Scrypt (N=1024, r=1, p=1) hashing of a block header without any allocation
+ * per call. The 128 KB scratchpad and the other buffers are reused, so a
+ * hasher must not be shared between threads: use {@link #get()} to retrieve
+ * the hasher of the current thread.
+ * 
+ * The HMAC-SHA256 of the PBKDF2 steps is keyed once per hash: the inner and
+ * outer padded keys are compressed into midstates, and the first 64 bytes of
+ * the salt are compressed once for the four blocks of the first PBKDF2 step.
+ * 
+ * @author Strat
+ * 
+ */
+public final class ScryptHasher {
+
+	public static final int HEADER_LENGTH = 80;
+
+	private static final int N = 1024;
+
+	private static final ThreadLocal<ScryptHasher> HASHERS = new ThreadLocal<ScryptHasher>() {
+		protected ScryptHasher initialValue() {
+			return new ScryptHasher();
+		}
+	};
+
+	private final SHA256Engine sha256 = SHA256Engine.get();
+
+	private final int[] v = new int[32 * N];
+	private final int[] x = new int[32];
+	private final byte[] b = new byte[128 + 4];
+	private final byte[] h = new byte[SHA256Engine.DIGEST_LENGTH];
+	private final byte[] pad = new byte[SHA256Engine.BLOCK_LENGTH];
+
+	// HMAC states after the inner and outer padded keys.
+	private final int[] innerState = new int[8];
+	private final int[] outerState = new int[8];
+	// Inner state after the first 64 bytes of the block header salt.
+	private final int[] saltState = new int[8];
+
+	private ScryptHasher() {
+	}
+
+	/**
+	 * Return the hasher of the current thread.
+	 * 
+	 * @return
+	 */
+	public static ScryptHasher get() {
+		return HASHERS.get();
+	}
+
+	/**
+	 * Write the Scrypt hash of the 80 bytes block header at the given offset in
+	 * out at outOffset.
+	 * 
+	 * @param data
+	 * @param offset
+	 * @param out
+	 * @param outOffset
+	 */
+	public void hash(byte[] data, int offset, byte[] out, int outOffset) {
+		int i, j, k;
+
+		initKey(data, offset);
+
+		// PBKDF2(header, header, 1, 128). The salt is the key, the 4 blocks
+		// only differ by their last 20 bytes.
+		sha256.compressBlock(saltState, data, offset);
+		System.arraycopy(data, offset + SHA256Engine.BLOCK_LENGTH, b, 0, HEADER_LENGTH - SHA256Engine.BLOCK_LENGTH);
+		int tailLength = HEADER_LENGTH - SHA256Engine.BLOCK_LENGTH + 4;
+		b[tailLength - 4] = 0;
+		b[tailLength - 3] = 0;
+		b[tailLength - 2] = 0;
+		for (i = 0; i < 4; i++) {
+			b[tailLength - 1] = (byte) (i + 1);
+			sha256.hashFromState(saltState, 2 * SHA256Engine.BLOCK_LENGTH, b, 0, tailLength, h, 0);
+			sha256.hashFromState(outerState, SHA256Engine.BLOCK_LENGTH, h, 0, SHA256Engine.DIGEST_LENGTH, h, 0);
+			for (j = 0; j < 8; j++) {
+				x[i * 8 + j] = (h[j * 4 + 0] & 0xff) << 0 | (h[j * 4 + 1] & 0xff) << 8 | (h[j * 4 + 2] & 0xff) << 16
+						| (h[j * 4 + 3] & 0xff) << 24;
+			}
+		}
+
+		for (i = 0; i < N; i++) {
+			System.arraycopy(x, 0, v, i * 32, 32);
+			xorSalsa8(0, 16, x);
+			xorSalsa8(16, 0, x);
+		}
+		for (i = 0; i < N; i++) {
+			k = (x[16] & (N - 1)) * 32;
+			for (j = 0; j < 32; j++)
+				x[j] ^= v[k + j];
+			xorSalsa8(0, 16, x);
+			xorSalsa8(16, 0, x);
+		}
+
+		// PBKDF2(header, X, 1, 32)
+		for (i = 0; i < 32; i++) {
+			b[i * 4 + 0] = (byte) (x[i] >> 0);
+			b[i * 4 + 1] = (byte) (x[i] >> 8);
+			b[i * 4 + 2] = (byte) (x[i] >> 16);
+			b[i * 4 + 3] = (byte) (x[i] >> 24);
+		}
+		b[128 + 0] = 0;
+		b[128 + 1] = 0;
+		b[128 + 2] = 0;
+		b[128 + 3] = 1;
+		sha256.hashFromState(innerState, SHA256Engine.BLOCK_LENGTH, b, 0, 128 + 4, h, 0);
+		sha256.hashFromState(outerState, SHA256Engine.BLOCK_LENGTH, h, 0, SHA256Engine.DIGEST_LENGTH, out, outOffset);
+	}
+
+	/**
+	 * Compute the HMAC inner and outer states of the block header key. The key
+	 * is longer than a block, so it is hashed first.
+	 * 
+	 * @param data
+	 * @param offset
+	 */
+	private void initKey(byte[] data, int offset) {
+		sha256.hash(data, offset, HEADER_LENGTH, pad, 0);
+		for (int i = 0; i < SHA256Engine.DIGEST_LENGTH; i++) {
+			pad[i] ^= 0x36;
+		}
+		for (int i = SHA256Engine.DIGEST_LENGTH; i < SHA256Engine.BLOCK_LENGTH; i++) {
+			pad[i] = 0x36;
+		}
+		sha256.midstate(pad, 0, innerState);
+		System.arraycopy(innerState, 0, saltState, 0, 8);
+
+		for (int i = 0; i < SHA256Engine.BLOCK_LENGTH; i++) {
+			pad[i] ^= 0x36 ^ 0x5c;
+		}
+		sha256.midstate(pad, 0, outerState);
+	}
+
+	private static void xorSalsa8(int di, int xi, int[] x) {
+		int x00 = (x[di + 0] ^= x[xi + 0]);
+		int x01 = (x[di + 1] ^= x[xi + 1]);
+		int x02 = (x[di + 2] ^= x[xi + 2]);
+		int x03 = (x[di + 3] ^= x[xi + 3]);
+		int x04 = (x[di + 4] ^= x[xi + 4]);
+		int x05 = (x[di + 5] ^= x[xi + 5]);
+		int x06 = (x[di + 6] ^= x[xi + 6]);
+		int x07 = (x[di + 7] ^= x[xi + 7]);
+		int x08 = (x[di + 8] ^= x[xi + 8]);
+		int x09 = (x[di + 9] ^= x[xi + 9]);
+		int x10 = (x[di + 10] ^= x[xi + 10]);
+		int x11 = (x[di + 11] ^= x[xi + 11]);
+		int x12 = (x[di + 12] ^= x[xi + 12]);
+		int x13 = (x[di + 13] ^= x[xi + 13]);
+		int x14 = (x[di + 14] ^= x[xi + 14]);
+		int x15 = (x[di + 15] ^= x[xi + 15]);
+		for (int i = 0; i < 8; i += 2) {
+			x04 ^= Integer.rotateLeft(x00 + x12, 7);
+			x08 ^= Integer.rotateLeft(x04 + x00, 9);
+			x12 ^= Integer.rotateLeft(x08 + x04, 13);
+			x00 ^= Integer.rotateLeft(x12 + x08, 18);
+			x09 ^= Integer.rotateLeft(x05 + x01, 7);
+			x13 ^= Integer.rotateLeft(x09 + x05, 9);
+			x01 ^= Integer.rotateLeft(x13 + x09, 13);
+			x05 ^= Integer.rotateLeft(x01 + x13, 18);
+			x14 ^= Integer.rotateLeft(x10 + x06, 7);
+			x02 ^= Integer.rotateLeft(x14 + x10, 9);
+			x06 ^= Integer.rotateLeft(x02 + x14, 13);
+			x10 ^= Integer.rotateLeft(x06 + x02, 18);
+			x03 ^= Integer.rotateLeft(x15 + x11, 7);
+			x07 ^= Integer.rotateLeft(x03 + x15, 9);
+			x11 ^= Integer.rotateLeft(x07 + x03, 13);
+			x15 ^= Integer.rotateLeft(x11 + x07, 18);
+			x01 ^= Integer.rotateLeft(x00 + x03, 7);
+			x02 ^= Integer.rotateLeft(x01 + x00, 9);
+			x03 ^= Integer.rotateLeft(x02 + x01, 13);
+			x00 ^= Integer.rotateLeft(x03 + x02, 18);
+			x06 ^= Integer.rotateLeft(x05 + x04, 7);
+			x07 ^= Integer.rotateLeft(x06 + x05, 9);
+			x04 ^= Integer.rotateLeft(x07 + x06, 13);
+			x05 ^= Integer.rotateLeft(x04 + x07, 18);
+			x11 ^= Integer.rotateLeft(x10 + x09, 7);
+			x08 ^= Integer.rotateLeft(x11 + x10, 9);
+			x09 ^= Integer.rotateLeft(x08 + x11, 13);
+			x10 ^= Integer.rotateLeft(x09 + x08, 18);
+			x12 ^= Integer.rotateLeft(x15 + x14, 7);
+			x13 ^= Integer.rotateLeft(x12 + x15, 9);
+			x14 ^= Integer.rotateLeft(x13 + x12, 13);
+			x15 ^= Integer.rotateLeft(x14 + x13, 18);
+		}
+		x[di + 0] += x00;
+		x[di + 1] += x01;
+		x[di + 2] += x02;
+		x[di + 3] += x03;
+		x[di + 4] += x04;
+		x[di + 5] += x05;
+		x[di + 6] += x06;
+		x[di + 7] += x07;
+		x[di + 8] += x08;
+		x[di + 9] += x09;
+		x[di + 10] += x10;
+		x[di + 11] += x11;
+		x[di + 12] += x12;
+		x[di + 13] += x13;
+		x[di + 14] += x14;
+		x[di + 15] += x15;
+	}
+
+}
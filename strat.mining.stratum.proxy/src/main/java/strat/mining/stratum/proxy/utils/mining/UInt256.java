@@ -0,0 +1,267 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.utils.mining;
+
+import java.math.BigInteger;
+
+/**
+ * An unsigned 256 bits integer stored in four longs, used for the hashes and
+ * the targets. A hash can be compared to a target directly from its bytes,
+ * without building any object.
+ * 
+ * The difficulty to target conversions are computed with doubles (53 bits of
+ * precision), which is far more than needed to check a share.
+ * 
+ * @author Strat
+ * 
+ */
+public final class UInt256 implements Comparable<UInt256> {
+
+	public static final UInt256 ZERO = new UInt256(0, 0, 0, 0);
+	public static final UInt256 ONE = new UInt256(0, 0, 0, 1);
+	public static final UInt256 MAX_VALUE = new UInt256(-1L, -1L, -1L, -1L);
+
+	private static final double TWO_POWER_64 = 18446744073709551616d;
+	private static final int LENGTH = 32;
+
+	// Most significant word first.
+	private final long w3;
+	private final long w2;
+	private final long w1;
+	private final long w0;
+
+	public UInt256(long w3, long w2, long w1, long w0) {
+		this.w3 = w3;
+		this.w2 = w2;
+		this.w1 = w1;
+		this.w0 = w0;
+	}
+
+	/**
+	 * Build the integer from the 32 bytes at the given offset, as written by
+	 * the hash functions (little-endian).
+	 * 
+	 * @param data
+	 * @param offset
+	 * @return
+	 */
+	public static UInt256 fromLittleEndian(byte[] data, int offset) {
+		return new UInt256(readLittleEndianLong(data, offset + 24), readLittleEndianLong(data, offset + 16), readLittleEndianLong(data,
+				offset + 8), readLittleEndianLong(data, offset));
+	}
+
+	/**
+	 * Build the integer from the given positive BigInteger. The value is
+	 * truncated to its 256 lowest bits.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	public static UInt256 fromBigInteger(BigInteger value) {
+		return new UInt256(value.shiftRight(192).longValue(), value.shiftRight(128).longValue(), value.shiftRight(64).longValue(),
+				value.longValue());
+	}
+
+	/**
+	 * Build the integer part of the given positive double. Return MAX_VALUE if
+	 * the value does not fit on 256 bits.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	public static UInt256 fromDouble(double value) {
+		if (!(value >= 1)) {
+			return ZERO;
+		}
+		int exponent = Math.getExponent(value);
+		if (exponent >= 256) {
+			return MAX_VALUE;
+		}
+
+		// value = mantissa * 2^(exponent - 52)
+		long mantissa = (Double.doubleToRawLongBits(value) & 0x000FFFFFFFFFFFFFL) | 0x0010000000000000L;
+		int shift = exponent - 52;
+		if (shift <= 0) {
+			return new UInt256(0, 0, 0, mantissa >>> -shift);
+		}
+
+		long[] words = new long[4];
+		int wordIndex = shift / 64;
+		int bitIndex = shift % 64;
+		words[wordIndex] = mantissa << bitIndex;
+		if (bitIndex > 0 && wordIndex < 3) {
+			words[wordIndex + 1] = mantissa >>> (64 - bitIndex);
+		}
+		return new UInt256(words[3], words[2], words[1], words[0]);
+	}
+
+	/**
+	 * Return the target of the given difficulty, given the target of the
+	 * difficulty 1. A share is valid if its hash is lower or equal to the
+	 * target.
+	 * 
+	 * @param difficulty
+	 * @param difficulty1Target
+	 * @return
+	 */
+	public static UInt256 fromDifficulty(double difficulty, UInt256 difficulty1Target) {
+		return fromDouble(difficulty1Target.doubleValue() / difficulty);
+	}
+
+	/**
+	 * Return the difficulty of the given target (or hash), given the target of
+	 * the difficulty 1.
+	 * 
+	 * @param difficulty1Target
+	 * @return
+	 */
+	public double toDifficulty(UInt256 difficulty1Target) {
+		return difficulty1Target.doubleValue() / doubleValue();
+	}
+
+	/**
+	 * Compare this integer with the little-endian integer of 32 bytes at the
+	 * given offset. Return a negative, zero or positive value if this integer
+	 * is lower, equal or greater.
+	 * 
+	 * @param data
+	 * @param offset
+	 * @return
+	 */
+	public int compareToLittleEndian(byte[] data, int offset) {
+		int result = compareUnsigned(w3, readLittleEndianLong(data, offset + 24));
+		if (result == 0) {
+			result = compareUnsigned(w2, readLittleEndianLong(data, offset + 16));
+			if (result == 0) {
+				result = compareUnsigned(w1, readLittleEndianLong(data, offset + 8));
+				if (result == 0) {
+					result = compareUnsigned(w0, readLittleEndianLong(data, offset));
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public int compareTo(UInt256 other) {
+		int result = compareUnsigned(w3, other.w3);
+		if (result == 0) {
+			result = compareUnsigned(w2, other.w2);
+			if (result == 0) {
+				result = compareUnsigned(w1, other.w1);
+				if (result == 0) {
+					result = compareUnsigned(w0, other.w0);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the closest double of this integer.
+	 * 
+	 * @return
+	 */
+	public double doubleValue() {
+		return ((unsignedToDouble(w3) * TWO_POWER_64 + unsignedToDouble(w2)) * TWO_POWER_64 + unsignedToDouble(w1)) * TWO_POWER_64
+				+ unsignedToDouble(w0);
+	}
+
+	public BigInteger toBigInteger() {
+		byte[] bigEndian = new byte[LENGTH + 1];
+		writeBigEndianLong(w3, bigEndian, 1);
+		writeBigEndianLong(w2, bigEndian, 9);
+		writeBigEndianLong(w1, bigEndian, 17);
+		writeBigEndianLong(w0, bigEndian, 25);
+		// The first byte is 0, so the integer is positive.
+		return new BigInteger(bigEndian);
+	}
+
+	/**
+	 * Write the 32 bytes of the integer in little-endian in out at outOffset.
+	 * 
+	 * @param out
+	 * @param outOffset
+	 */
+	public void toLittleEndian(byte[] out, int outOffset) {
+		writeLittleEndianLong(w0, out, outOffset);
+		writeLittleEndianLong(w1, out, outOffset + 8);
+		writeLittleEndianLong(w2, out, outOffset + 16);
+		writeLittleEndianLong(w3, out, outOffset + 24);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof UInt256)) {
+			return false;
+		}
+		UInt256 other = (UInt256) obj;
+		return w3 == other.w3 && w2 == other.w2 && w1 == other.w1 && w0 == other.w0;
+	}
+
+	@Override
+	public int hashCode() {
+		long hash = w3 * 31 + w2;
+		hash = hash * 31 + w1;
+		hash = hash * 31 + w0;
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%016x%016x%016x%016x", w3, w2, w1, w0);
+	}
+
+	private static int compareUnsigned(long a, long b) {
+		// Flip the sign bits to compare as unsigned.
+		a ^= Long.MIN_VALUE;
+		b ^= Long.MIN_VALUE;
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+
+	private static double unsignedToDouble(long value) {
+		double result = (double) (value & Long.MAX_VALUE);
+		if (value < 0) {
+			result += 9223372036854775808d;
+		}
+		return result;
+	}
+
+	private static long readLittleEndianLong(byte[] data, int offset) {
+		return (data[offset] & 0xffL) | (data[offset + 1] & 0xffL) << 8 | (data[offset + 2] & 0xffL) << 16 | (data[offset + 3] & 0xffL) << 24
+				| (data[offset + 4] & 0xffL) << 32 | (data[offset + 5] & 0xffL) << 40 | (data[offset + 6] & 0xffL) << 48
+				| (data[offset + 7] & 0xffL) << 56;
+	}
+
+	private static void writeLittleEndianLong(long value, byte[] out, int offset) {
+		for (int i = 0; i < 8; i++) {
+			out[offset + i] = (byte) (value >>> (8 * i));
+		}
+	}
+
+	private static void writeBigEndianLong(long value, byte[] out, int offset) {
+		for (int i = 0; i < 8; i++) {
+			out[offset + 7 - i] = (byte) (value >>> (8 * i));
+		}
+	}
+
+}
@@ -18,9 +18,6 @@
  */
 package strat.mining.stratum.proxy.utils.mining;
 
-import java.util.Deque;
-import java.util.concurrent.ConcurrentLinkedDeque;
-
 import strat.mining.stratum.proxy.CryptoAlgorithm;
 import strat.mining.stratum.proxy.constant.Constants;
 import strat.mining.stratum.proxy.model.Share;
@@ -33,15 +30,12 @@ import strat.mining.stratum.proxy.model.Share;
  */
 public class WorkerConnectionHashrateDelegator {
 
-	private Deque<Share> lastAcceptedShares;
-	private Deque<Share> lastRejectedShares;
-	private Integer samplingHashesPeriod = Constants.DEFAULT_WORKER_CONNECTION_HASHRATE_SAMPLING_PERIOD * 1000;
-	private final CryptoAlgorithm algo;
+	private final HashrateWindow acceptedHashrate;
+	private final HashrateWindow rejectedHashrate;
 
 	public WorkerConnectionHashrateDelegator(CryptoAlgorithm algo) {
-		this.algo = algo;
-		lastAcceptedShares = new ConcurrentLinkedDeque<Share>();
-		lastRejectedShares = new ConcurrentLinkedDeque<Share>();
+		acceptedHashrate = new HashrateWindow(Constants.DEFAULT_WORKER_CONNECTION_HASHRATE_SAMPLING_PERIOD, algo);
+		rejectedHashrate = new HashrateWindow(Constants.DEFAULT_WORKER_CONNECTION_HASHRATE_SAMPLING_PERIOD, algo);
 	}
 
 	/**
@@ -50,8 +44,7 @@ public class WorkerConnectionHashrateDelegator {
 	 * @return
 	 */
 	public double getAcceptedHashrate() {
-		HashrateUtils.purgeShareList(lastAcceptedShares, samplingHashesPeriod);
-		return HashrateUtils.getHashrateFromShareList(lastAcceptedShares, samplingHashesPeriod, algo);
+		return acceptedHashrate.getHashrate();
 	}
 
 	/**
@@ -60,8 +53,7 @@ public class WorkerConnectionHashrateDelegator {
 	 * @return
 	 */
 	public double getRejectedHashrate() {
-		HashrateUtils.purgeShareList(lastRejectedShares, samplingHashesPeriod);
-		return HashrateUtils.getHashrateFromShareList(lastRejectedShares, samplingHashesPeriod, algo);
+		return rejectedHashrate.getHashrate();
 	}
 
 	/**
@@ -72,11 +64,9 @@ public class WorkerConnectionHashrateDelegator {
 	 */
 	public void updateShareLists(Share share, boolean isAccepted) {
 		if (isAccepted) {
-			lastAcceptedShares.addLast(share);
-			HashrateUtils.purgeShareList(lastAcceptedShares, samplingHashesPeriod);
+			acceptedHashrate.addShare(share.getTime(), share.getDifficulty());
 		} else {
-			lastRejectedShares.addLast(share);
-			HashrateUtils.purgeShareList(lastRejectedShares, samplingHashesPeriod);
+			rejectedHashrate.addShare(share.getTime(), share.getDifficulty());
 		}
 	}
 
@@ -87,7 +77,8 @@ public class WorkerConnectionHashrateDelegator {
 	 * @param samplingHashesPeriod
 	 */
 	public void setSamplingHashesPeriod(Integer samplingHashesPeriod) {
-		this.samplingHashesPeriod = samplingHashesPeriod * 1000;
+		acceptedHashrate.setSamplingPeriod(samplingHashesPeriod);
+		rejectedHashrate.setSamplingPeriod(samplingHashesPeriod);
 	}
 
 }
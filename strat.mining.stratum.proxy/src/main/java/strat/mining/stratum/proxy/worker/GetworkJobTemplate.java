@@ -20,10 +20,7 @@ package strat.mining.stratum.proxy.worker;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.math.RoundingMode;
-import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.commons.lang.ArrayUtils;
@@ -31,10 +28,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import strat.mining.stratum.proxy.CryptoAlgorithm;
-import strat.mining.stratum.proxy.exception.UnsupportedCryptoAlgorithmException;
 import strat.mining.stratum.proxy.utils.AtomicBigInteger;
-import strat.mining.stratum.proxy.utils.mining.SHA256HashingUtils;
-import strat.mining.stratum.proxy.utils.mining.ScryptHashingUtils;
+import strat.mining.stratum.proxy.utils.HexUtils;
+import strat.mining.stratum.proxy.utils.mining.DifficultyUtils;
+import strat.mining.stratum.proxy.utils.mining.SHA256Engine;
+import strat.mining.stratum.proxy.utils.mining.UInt256;
 
 import com.google.common.io.BaseEncoding;
 
@@ -73,6 +71,13 @@ public class GetworkJobTemplate {
 	// The first index of the merkle root hash in the block header
 	private static final int MERKLE_ROOT_BLOCK_HEADER_POSITION = 36;
 
+	// The buffers used to build the merkle roots, by thread.
+	private static final ThreadLocal<MerkleRootBuffers> MERKLE_ROOT_BUFFERS = new ThreadLocal<MerkleRootBuffers>() {
+		protected MerkleRootBuffers initialValue() {
+			return new MerkleRootBuffers();
+		}
+	};
+
 	private volatile String jobId;
 
 	private volatile byte[] version;
@@ -82,11 +87,12 @@ public class GetworkJobTemplate {
 
 	private byte[] nonce;
 
-	// Stratum parameters
-	private volatile List<String> merkleBranches;
-	private volatile String coinbase1;
-	private volatile String coinbase2;
-	private volatile String extranonce1;
+	// Stratum parameters, decoded when received. The arrays are never
+	// modified, so they are shared by the cloned templates.
+	private volatile byte[][] merkleBranches;
+	private volatile byte[] coinbase1;
+	private volatile byte[] coinbase2;
+	private volatile byte[] extranonce1;
 
 	private volatile byte[] templateData;
 
@@ -95,7 +101,7 @@ public class GetworkJobTemplate {
 
 	private volatile double difficulty;
 	private volatile String target;
-	private volatile BigInteger targetInteger;
+	private volatile UInt256 targetInteger;
 
 	private volatile long lastDataTemplateUpdateTime;
 
@@ -105,29 +111,29 @@ public class GetworkJobTemplate {
 			String coinbase1, String coinbase2, String extranonce1, boolean noMidState) {
 		this.jobId = jobId;
 		this.noMidState = noMidState;
-		this.merkleBranches = merkleBranches;
-		this.coinbase1 = coinbase1;
-		this.coinbase2 = coinbase2;
-		this.extranonce1 = extranonce1;
+		this.merkleBranches = decodeMerkleBranches(merkleBranches);
+		this.coinbase1 = BaseEncoding.base16().decode(coinbase1.toUpperCase());
+		this.coinbase2 = BaseEncoding.base16().decode(coinbase2.toUpperCase());
+		this.extranonce1 = BaseEncoding.base16().decode(extranonce1.toUpperCase());
 
-		this.hashPrevBlock = BaseEncoding.base16().decode(hashPrevBlock);
-		this.version = BaseEncoding.base16().decode(version);
+		this.hashPrevBlock = BaseEncoding.base16().decode(hashPrevBlock.toUpperCase());
+		this.version = BaseEncoding.base16().decode(version.toUpperCase());
 		// Create the time BigInteger from the LittleEndian hex data.
-		this.time = new AtomicBigInteger(BaseEncoding.base16().decode(time));
-		this.bits = BaseEncoding.base16().decode(bits);
+		this.time = new AtomicBigInteger(BaseEncoding.base16().decode(time.toUpperCase()));
+		this.bits = BaseEncoding.base16().decode(bits.toUpperCase());
 		this.nonce = DEFAULT_NONCE;
 
 		this.lastDataTemplateUpdateTime = System.currentTimeMillis() / 1000;
 
 		this.target = DEFAULT_TARGET;
-		this.targetInteger = BigInteger.ONE;
+		this.targetInteger = UInt256.ONE;
 
 		computeTemplateData();
 	}
 
 	public GetworkJobTemplate(GetworkJobTemplate toClone) {
 		this.jobId = toClone.jobId;
-		this.merkleBranches = new ArrayList<String>(toClone.merkleBranches);
+		this.merkleBranches = toClone.merkleBranches;
 		this.coinbase1 = toClone.coinbase1;
 		this.coinbase2 = toClone.coinbase2;
 		this.extranonce1 = toClone.extranonce1;
@@ -142,7 +148,7 @@ public class GetworkJobTemplate {
 		this.lastDataTemplateUpdateTime = toClone.lastDataTemplateUpdateTime;
 
 		this.target = DEFAULT_TARGET;
-		this.targetInteger = BigInteger.ONE;
+		this.targetInteger = UInt256.ONE;
 		this.noMidState = toClone.noMidState;
 
 		computeTemplateData();
@@ -157,45 +163,45 @@ public class GetworkJobTemplate {
 	}
 
 	public void setVersion(String version) {
-		this.version = BaseEncoding.base16().decode(version);
+		this.version = BaseEncoding.base16().decode(version.toUpperCase());
 		isDataDirty = true;
 	}
 
 	public void setHashPrevBlock(String hashPrevBlock) {
-		this.hashPrevBlock = BaseEncoding.base16().decode(hashPrevBlock);
+		this.hashPrevBlock = BaseEncoding.base16().decode(hashPrevBlock.toUpperCase());
 		isDataDirty = true;
 	}
 
 	public void setTime(String time) {
-		this.time.set(BaseEncoding.base16().decode(time));
+		this.time.set(BaseEncoding.base16().decode(time.toUpperCase()));
 		isDataDirty = true;
 	}
 
 	public void setBits(String bits) {
-		this.bits = BaseEncoding.base16().decode(bits);
+		this.bits = BaseEncoding.base16().decode(bits.toUpperCase());
 		isDataDirty = true;
 	}
 
 	public void setMerkleBranches(List<String> merkleBranches) {
 		if (merkleBranches != null && merkleBranches.size() > 0) {
-			this.merkleBranches = merkleBranches;
+			this.merkleBranches = decodeMerkleBranches(merkleBranches);
 		}
 	}
 
 	public void setCoinbase1(String coinbase1) {
-		this.coinbase1 = coinbase1;
+		this.coinbase1 = BaseEncoding.base16().decode(coinbase1.toUpperCase());
 	}
 
 	public void setCoinbase2(String coinbase2) {
-		this.coinbase2 = coinbase2;
+		this.coinbase2 = BaseEncoding.base16().decode(coinbase2.toUpperCase());
 	}
 
 	public void setExtranonce1(String extranonce1) {
-		this.extranonce1 = extranonce1;
+		this.extranonce1 = BaseEncoding.base16().decode(extranonce1.toUpperCase());
 	}
 
 	public void setNonce(String nonce) {
-		this.nonce = BaseEncoding.base16().decode(nonce);
+		this.nonce = BaseEncoding.base16().decode(nonce.toUpperCase());
 		isDataDirty = true;
 	}
 
@@ -251,25 +257,26 @@ public class GetworkJobTemplate {
 		// Build the merkleRoot with the given extranonce2
 		byte[] bigEndianMerkleRootHash = buildMerkleRootHash(extranonce2);
 
-		// Byte swap the merkleRoot of 4-bytes words.
-		byte[] littleEndianMerkleRootHash = strat.mining.stratum.proxy.utils.ArrayUtils.swapBytes(bigEndianMerkleRootHash, 4);
-
-		// And reverse the order of the 4-bytes words.
-		// littleEndianMerkleRootHash =
-		// strat.mining.stratum.proxy.utils.ArrayUtils.reverseWords(littleEndianMerkleRootHash,
-		// 4);
-
-		// Then build the data
-		byte[] data = buildData(littleEndianMerkleRootHash);
+		// Clone the templateData, then copy the merkleRoot into the data with
+		// the bytes of its 4-bytes words swapped.
+		byte[] data = ArrayUtils.clone(templateData);
+		for (int i = 0; i < SHA256Engine.DIGEST_LENGTH; i += 4) {
+			data[MERKLE_ROOT_BLOCK_HEADER_POSITION + i] = bigEndianMerkleRootHash[i + 3];
+			data[MERKLE_ROOT_BLOCK_HEADER_POSITION + i + 1] = bigEndianMerkleRootHash[i + 2];
+			data[MERKLE_ROOT_BLOCK_HEADER_POSITION + i + 2] = bigEndianMerkleRootHash[i + 1];
+			data[MERKLE_ROOT_BLOCK_HEADER_POSITION + i + 3] = bigEndianMerkleRootHash[i];
+		}
 
 		// Compute midstate only if enabled.
 		String midstate = null;
 		if (!noMidState) {
-			midstate = BaseEncoding.base16().encode(buildMidstate(data));
+			byte[] midstateBytes = new byte[SHA256Engine.DIGEST_LENGTH];
+			SHA256Engine.get().getworkMidstate(data, 0, midstateBytes, 0);
+			midstate = BaseEncoding.base16().encode(midstateBytes);
 		}
 
 		GetworkRequestResult result = new GetworkRequestResult();
-		result.setMerkleRoot(BaseEncoding.base16().encode(littleEndianMerkleRootHash));
+		result.setMerkleRoot(BaseEncoding.base16().encode(data, MERKLE_ROOT_BLOCK_HEADER_POSITION, SHA256Engine.DIGEST_LENGTH));
 		result.setData(BaseEncoding.base16().encode(data));
 		result.setHash1(getHash1());
 		result.setTarget(getTarget());
@@ -278,60 +285,52 @@ public class GetworkJobTemplate {
 		return result;
 	}
 
-	/**
-	 * Build the midstate of the given block header.
-	 * 
-	 * @param data
-	 * @return
-	 */
-	private byte[] buildMidstate(byte[] data) {
-
-		byte[] midstateData = ArrayUtils.subarray(data, 0, 64);
-
-		return SHA256HashingUtils.midstateSHA256(midstateData);
-	}
-
-	/**
-	 * Build the getwork data based on the given littleEndianMerkleRootHash.
-	 * 
-	 * @param littleEndianMerkleRootHash
-	 * @return
-	 */
-	private byte[] buildData(byte[] littleEndianMerkleRootHash) {
-		// Clone the templateData
-		byte[] data = ArrayUtils.clone(templateData);
-
-		// Then copy the merkleRoot into the data.
-		strat.mining.stratum.proxy.utils.ArrayUtils.copyInto(littleEndianMerkleRootHash, data, MERKLE_ROOT_BLOCK_HEADER_POSITION);
-		return data;
-	}
-
 	/**
 	 * Return the merkleRoot based on the extranonce2. The merkleRoot hash is in
 	 * BigEndian. So all 32 bits word should be converted in LittleEndian.
 	 * 
+	 * The returned array is a buffer of the current thread, reused on the next
+	 * call: the merkleRoot is in its first 32 bytes.
+	 * 
 	 * @param extranonce2
 	 * @return
 	 */
 	private byte[] buildMerkleRootHash(String extranonce2) {
-		byte[] merkleRoot = buildCoinbaseHash(extranonce2);
-
-		for (String merkleBranch : merkleBranches) {
-			merkleRoot = SHA256HashingUtils.doubleSha256Hash(ArrayUtils.addAll(merkleRoot, BaseEncoding.base16().decode(merkleBranch)));
+		MerkleRootBuffers buffers = MERKLE_ROOT_BUFFERS.get();
+		SHA256Engine sha256 = SHA256Engine.get();
+
+		// coinbase = coinbase1 + extranonce1 + extranonce2 + coinbase2
+		byte[] coinbase1 = this.coinbase1;
+		byte[] extranonce1 = this.extranonce1;
+		byte[] coinbase2 = this.coinbase2;
+		int coinbaseLength = coinbase1.length + extranonce1.length + extranonce2.length() / 2 + coinbase2.length;
+		byte[] coinbase = buffers.getCoinbase(coinbaseLength);
+		System.arraycopy(coinbase1, 0, coinbase, 0, coinbase1.length);
+		System.arraycopy(extranonce1, 0, coinbase, coinbase1.length, extranonce1.length);
+		int extranonce2Length = HexUtils.decodeHexInto(extranonce2, coinbase, coinbase1.length + extranonce1.length);
+		System.arraycopy(coinbase2, 0, coinbase, coinbase1.length + extranonce1.length + extranonce2Length, coinbase2.length);
+
+		// The current hash is in the first half of the buffer, the branch is
+		// appended in the second half.
+		byte[] merkleRoot = buffers.merkleRoot;
+		sha256.doubleHash(coinbase, 0, coinbaseLength, merkleRoot, 0);
+		for (byte[] merkleBranch : merkleBranches) {
+			System.arraycopy(merkleBranch, 0, merkleRoot, SHA256Engine.DIGEST_LENGTH, SHA256Engine.DIGEST_LENGTH);
+			sha256.doubleHash(merkleRoot, 0, 2 * SHA256Engine.DIGEST_LENGTH, merkleRoot, 0);
 		}
 
 		return merkleRoot;
 	}
 
-	/**
-	 * 
-	 * @param extranonce2
-	 * @return
-	 */
-	private byte[] buildCoinbaseHash(String extranonce2) {
-		String coinbaseString = coinbase1 + extranonce1 + extranonce2 + coinbase2;
-		byte[] rawCoinbase = BaseEncoding.base16().decode(coinbaseString);
-		return SHA256HashingUtils.doubleSha256Hash(rawCoinbase);
+	private static byte[][] decodeMerkleBranches(List<String> merkleBranches) {
+		if (merkleBranches == null) {
+			return new byte[0][];
+		}
+		byte[][] result = new byte[merkleBranches.size()][];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = BaseEncoding.base16().decode(merkleBranches.get(i).toUpperCase());
+		}
+		return result;
 	}
 
 	public double getDifficulty() {
@@ -354,7 +353,7 @@ public class GetworkJobTemplate {
 		return target;
 	}
 
-	public BigInteger getTargetInteger() {
+	public UInt256 getTargetInteger() {
 		return targetInteger;
 	}
 
@@ -369,32 +368,33 @@ public class GetworkJobTemplate {
 	 * @param isScrypt
 	 */
 	private void computeTarget(double difficulty, CryptoAlgorithm algo) {
-		BigDecimal difficulty1 = new BigDecimal(0);
-		switch(algo){
-		case Scrypt: 
-			difficulty1 = ScryptHashingUtils.DIFFICULTY_1_TARGET;
-			break;
-		case SHA256:
-			difficulty1 = SHA256HashingUtils.DIFFICULTY_1_TARGET;
-			break;
-		default:
-			throw new UnsupportedCryptoAlgorithmException(algo);
-		}
+		targetInteger = DifficultyUtils.getTarget(difficulty, algo);
 
-		targetInteger = difficulty1.divide(BigDecimal.valueOf(difficulty), 0, RoundingMode.HALF_EVEN).toBigInteger();
-		byte[] bigEndianTargetBytes = targetInteger.toByteArray();
-
-		// Build the target on 32 Bytes
+		// The getwork target is a little-endian 256-bits integer.
 		byte[] littleEndianTargetBytes = new byte[32];
-		strat.mining.stratum.proxy.utils.ArrayUtils.copyInto(bigEndianTargetBytes, littleEndianTargetBytes, 32 - bigEndianTargetBytes.length);
-		// Then swap bytes from big-endian to little-endian
-		littleEndianTargetBytes = strat.mining.stratum.proxy.utils.ArrayUtils.swapBytes(littleEndianTargetBytes, 4);
-		// And reverse the order of 4-bytes words (big-endian to little-endian
-		// 256-bits integer)
-		littleEndianTargetBytes = strat.mining.stratum.proxy.utils.ArrayUtils.reverseWords(littleEndianTargetBytes, 4);
+		targetInteger.toLittleEndian(littleEndianTargetBytes, 0);
 		this.target = BaseEncoding.base16().encode(littleEndianTargetBytes);
 	}
 
+	/**
+	 * The buffers of a thread to build the merkle roots.
+	 * 
+	 * @author Strat
+	 * 
+	 */
+	private static class MerkleRootBuffers {
+		// The current hash followed by the merkle branch.
+		private final byte[] merkleRoot = new byte[2 * SHA256Engine.DIGEST_LENGTH];
+		private byte[] coinbase = new byte[256];
+
+		public byte[] getCoinbase(int length) {
+			if (coinbase.length < length) {
+				coinbase = new byte[length];
+			}
+			return coinbase;
+		}
+	}
+
 	/**
 	 * Contains all fields needed to reply to a getwork request.
 	 * 
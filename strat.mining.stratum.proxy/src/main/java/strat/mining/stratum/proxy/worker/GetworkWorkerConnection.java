@@ -27,6 +27,7 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -43,18 +44,22 @@ import strat.mining.stratum.proxy.json.MiningSetDifficultyNotification;
 import strat.mining.stratum.proxy.json.MiningSubmitRequest;
 import strat.mining.stratum.proxy.json.MiningSubmitResponse;
 import strat.mining.stratum.proxy.manager.ProxyInstance;
+import strat.mining.stratum.proxy.manager.ShareValidationExecutor;
 import strat.mining.stratum.proxy.model.Share;
+import strat.mining.stratum.proxy.network.EncodedNotification;
 import strat.mining.stratum.proxy.pool.Pool;
 import strat.mining.stratum.proxy.utils.ArrayUtils;
 import strat.mining.stratum.proxy.utils.AtomicBigInteger;
 import strat.mining.stratum.proxy.utils.Pair;
 import strat.mining.stratum.proxy.utils.Timer;
 import strat.mining.stratum.proxy.utils.Timer.Task;
-import strat.mining.stratum.proxy.utils.mining.DifficultyUtils;
+import strat.mining.stratum.proxy.utils.mining.UInt256;
 import strat.mining.stratum.proxy.utils.mining.WorkerConnectionHashrateDelegator;
 import strat.mining.stratum.proxy.worker.GetworkJobTemplate.GetworkRequestResult;
 
 import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 
 public class GetworkWorkerConnection implements WorkerConnection {
 
@@ -119,11 +124,7 @@ public class GetworkWorkerConnection implements WorkerConnection {
 
 	@Override
 	public void close() {
-		if (pool != null) {
-			if (extranonce1Tail != null) {
-				pool.releaseTail(extranonce1Tail);
-			}
-		}
+		releaseTail();
 
 		// Cancel all long polling requests
 		cancelAllLongPolling();
@@ -187,31 +188,41 @@ public class GetworkWorkerConnection implements WorkerConnection {
 
 	@Override
 	public void rebindToPool(Pool newPool) throws TooManyWorkersException, ChangeExtranonceNotSupportedException {
-		if (pool != null) {
-			if (extranonce1Tail != null) {
-				pool.releaseTail(extranonce1Tail);
-			}
-		}
+		// Retrieve a free tail from the new pool before releasing the old one,
+		// so the connection keeps its tail if the new pool is full.
+		String newExtranonce1Tail = newPool.getFreeTail();
+		releaseTail();
 
 		pool = newPool;
-		extranonce1Tail = newPool.getFreeTail();
+		extranonce1Tail = newExtranonce1Tail;
 		updateCurrentJobTemplateFromStratumJob(getPool().getCurrentStratumJob());
 	}
 
+	/**
+	 * Release the extranonce1 tail of the connection on its pool. Does
+	 * nothing if already released.
+	 */
+	private synchronized void releaseTail() {
+		if (pool != null && extranonce1Tail != null) {
+			pool.releaseTail(extranonce1Tail);
+			extranonce1Tail = null;
+		}
+	}
+
 	@Override
 	public void onPoolExtranonceChange() throws ChangeExtranonceNotSupportedException {
 		updateCurrentJobTemplateFromStratumJob(getPool().getCurrentStratumJob());
 	}
 
 	@Override
-	public void onPoolDifficultyChanged(MiningSetDifficultyNotification notification) {
-		currentJob.setDifficulty(notification.getDifficulty(), manager.getConfiguration().getAlgo());
+	public void onPoolDifficultyChanged(EncodedNotification<MiningSetDifficultyNotification> notification) {
+		currentJob.setDifficulty(notification.getNotification().getDifficulty(), manager.getConfiguration().getAlgo());
 		callLongPollingCallbacks();
 	}
 
 	@Override
-	public void onPoolNotify(MiningNotifyNotification notification) {
-		updateCurrentJobTemplateFromStratumJob(notification);
+	public void onPoolNotify(EncodedNotification<MiningNotifyNotification> notification) {
+		updateCurrentJobTemplateFromStratumJob(notification.getNotification());
 	}
 
 	@Override
@@ -282,6 +293,17 @@ public class GetworkWorkerConnection implements WorkerConnection {
 		workerHashrateDelegator.updateShareLists(share, isAccepted);
 	}
 
+	@Override
+	public Double getWorkerDifficulty() {
+		// Getwork workers always work at the pool difficulty.
+		return null;
+	}
+
+	@Override
+	public void onWorkerShareAccepted() {
+		// Nothing to do.
+	}
+
 	@Override
 	public void setSamplingHashesPeriod(Integer samplingHashesPeriod) {
 		workerHashrateDelegator.setSamplingHashesPeriod(samplingHashesPeriod);
@@ -365,7 +387,7 @@ public class GetworkWorkerConnection implements WorkerConnection {
 	 * 
 	 * @return
 	 */
-	public BigInteger getGetworkTarget() {
+	public UInt256 getGetworkTarget() {
 		return currentJob.getTargetInteger();
 	}
 
@@ -383,7 +405,7 @@ public class GetworkWorkerConnection implements WorkerConnection {
 		GetworkJobSubmit jobSubmit = new GetworkJobSubmit(data);
 		Pair<String, String> extranonce2JobId = extranonce2AndJobIdByMerkleRoot.get(jobSubmit.getMerkleRoot());
 
-		MiningSubmitRequest submitRequest = new MiningSubmitRequest();
+		final MiningSubmitRequest submitRequest = new MiningSubmitRequest();
 		submitRequest.setWorkerName(workerName);
 		submitRequest.setExtranonce2(extranonce1Tail + extranonce2JobId.getFirst());
 		submitRequest.setJobId(extranonce2JobId.getSecond());
@@ -407,23 +429,36 @@ public class GetworkWorkerConnection implements WorkerConnection {
 				LOGGER.warn("Share MAYBE accepted (diff: {}) from {}@{}. (Timeout on submit request on pool {}", pool != null ? pool.getDifficulty()
 						: "Unknown", submitRequest.getWorkerName(), getConnectionName(), pool.getName());
 			} else {
-				MiningSubmitResponse response = submitResponses.remove(submitRequest.getId());
+				final MiningSubmitResponse response = submitResponses.remove(submitRequest.getId());
 
 				// Build the real difficulty string if enabled. Else, just
 				// display the pool difficulty
-				String difficultyString = pool != null ? Double.toString(pool.getDifficulty()) : "Unknown";
-				if (logRealShareDifficulty) {
-					Double realShareDifficulty = DifficultyUtils.getRealShareDifficulty(currentJob, extranonce1Tail, submitRequest.getExtranonce2(),
-							submitRequest.getNtime(), submitRequest.getNonce(), manager.getConfiguration().getAlgo());
-					difficultyString = Double.toString(realShareDifficulty) + "/" + difficultyString;
+				final String difficultyString = pool != null ? Double.toString(pool.getDifficulty()) : "Unknown";
+				final String poolName = pool != null ? pool.getName() : "Unknown";
+				ShareValidationExecutor shareValidationExecutor = manager.getShareValidationExecutor();
+				if (logRealShareDifficulty && currentJob != null && shareValidationExecutor != null) {
+					// The hash is computed on the validation threads. The
+					// worker gets its response without waiting for it.
+					try {
+						Futures.addCallback(shareValidationExecutor.getRealShareDifficulty(currentJob, extranonce1Tail, submitRequest),
+								new FutureCallback<Double>() {
+									public void onSuccess(Double realShareDifficulty) {
+										logSubmitResponse(submitRequest, response, Double.toString(realShareDifficulty) + "/" + difficultyString,
+												poolName);
+									}
+
+									public void onFailure(Throwable t) {
+										logSubmitResponse(submitRequest, response, difficultyString, poolName);
+									}
+								});
+					} catch (RejectedExecutionException e) {
+						logSubmitResponse(submitRequest, response, difficultyString, poolName);
+					}
+				} else {
+					logSubmitResponse(submitRequest, response, difficultyString, poolName);
 				}
 
-				if (response.getIsAccepted() != null && response.getIsAccepted()) {
-					LOGGER.info("Accepted share (diff: {}) from {}@{} on {}. Yeah !!!!", difficultyString, submitRequest.getWorkerName(),
-							getConnectionName(), pool.getName());
-				} else {
-					LOGGER.info("REJECTED share (diff: {}) from {}@{} on {}. Booo !!!!. Error: {}", difficultyString, submitRequest.getWorkerName(),
-							getConnectionName(), pool.getName(), response.getJsonError());
+				if (response.getIsAccepted() == null || !response.getIsAccepted()) {
 					errorMessage = response.getJsonError() != null && response.getJsonError().getMessage() != null ? response.getJsonError()
 							.getMessage() : "Unknown";
 				}
@@ -435,6 +470,16 @@ public class GetworkWorkerConnection implements WorkerConnection {
 		return errorMessage;
 	}
 
+	private void logSubmitResponse(MiningSubmitRequest submitRequest, MiningSubmitResponse response, String difficultyString, String poolName) {
+		if (response.getIsAccepted() != null && response.getIsAccepted()) {
+			LOGGER.info("Accepted share (diff: {}) from {}@{} on {}. Yeah !!!!", difficultyString, submitRequest.getWorkerName(),
+					getConnectionName(), poolName);
+		} else {
+			LOGGER.info("REJECTED share (diff: {}) from {}@{} on {}. Booo !!!!. Error: {}", difficultyString, submitRequest.getWorkerName(),
+					getConnectionName(), poolName, response.getJsonError());
+		}
+	}
+
 	/**
 	 * Reset the timeout of the getwork request.
 	 */
@@ -449,7 +494,7 @@ public class GetworkWorkerConnection implements WorkerConnection {
 			}
 		};
 		getworkTimeoutTask.setName("GetworkTimeoutTask-" + getConnectionName());
-		Timer.getInstance().schedule(getworkTimeoutTask, 1000 * getworkTimeoutDelay);
+		Timer.getInstance().scheduleTimeout(getworkTimeoutTask, 1000 * getworkTimeoutDelay);
 	}
 
 	@Override
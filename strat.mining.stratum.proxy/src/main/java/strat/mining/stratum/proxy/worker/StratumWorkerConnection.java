@@ -19,16 +19,20 @@
 package strat.mining.stratum.proxy.worker;
 
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import strat.mining.stratum.proxy.ProxyConfiguration;
 import strat.mining.stratum.proxy.constant.Constants;
 import strat.mining.stratum.proxy.exception.AuthorizationException;
 import strat.mining.stratum.proxy.exception.ChangeExtranonceNotSupportedException;
@@ -50,14 +54,22 @@ import strat.mining.stratum.proxy.json.MiningSubmitResponse;
 import strat.mining.stratum.proxy.json.MiningSubscribeRequest;
 import strat.mining.stratum.proxy.json.MiningSubscribeResponse;
 import strat.mining.stratum.proxy.manager.ProxyInstance;
+import strat.mining.stratum.proxy.manager.ShareValidationExecutor;
 import strat.mining.stratum.proxy.model.Share;
+import strat.mining.stratum.proxy.network.EncodedNotification;
+import strat.mining.stratum.proxy.network.NioEventLoopGroup;
 import strat.mining.stratum.proxy.network.StratumConnection;
 import strat.mining.stratum.proxy.pool.Pool;
 import strat.mining.stratum.proxy.utils.Timer;
 import strat.mining.stratum.proxy.utils.Timer.Task;
-import strat.mining.stratum.proxy.utils.mining.DifficultyUtils;
 import strat.mining.stratum.proxy.utils.mining.WorkerConnectionHashrateDelegator;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
 public class StratumWorkerConnection extends StratumConnection implements WorkerConnection {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(WorkerConnection.class);
@@ -77,6 +89,8 @@ public class StratumWorkerConnection extends StratumConnection implements Worker
 	private Integer extranonce2Size;
 
 	private Map<String, String> authorizedWorkers;
+	// The authorizations waiting for the pool response, by worker name.
+	private Map<String, ListenableFuture<Void>> pendingAuthorizations;
 
 	private boolean isSetExtranonceNotificationSupported = false;
 
@@ -85,12 +99,30 @@ public class StratumWorkerConnection extends StratumConnection implements Worker
 	private Boolean logRealShareDifficulty;
 	private GetworkJobTemplate currentHeader;
 
+	// Null if the worker works at the pool difficulty.
+	private VardiffController vardiff;
+
 	public StratumWorkerConnection(Socket socket, ProxyInstance manager) {
 		super(socket);
+		initialize(manager);
+	}
+
+	public StratumWorkerConnection(SocketChannel channel, NioEventLoopGroup eventLoopGroup, ProxyInstance manager) {
+		super(channel, eventLoopGroup);
+		initialize(manager);
+	}
+
+	private void initialize(ProxyInstance manager) {
 		this.manager = manager;
 		this.authorizedWorkers = Collections.synchronizedMap(new HashMap<String, String>());
+		this.pendingAuthorizations = new ConcurrentHashMap<String, ListenableFuture<Void>>();
 		logRealShareDifficulty = manager.getConfiguration().getLogRealShareDifficulty();
 		this.workerHashrateDelegator = new WorkerConnectionHashrateDelegator(manager.getConfiguration().getAlgo());
+		if (manager.isVardiffEnabled()) {
+			ProxyConfiguration configuration = manager.getConfiguration();
+			this.vardiff = new VardiffController(configuration.getVardiffTargetSharesPerMinute(), configuration.getVardiffMinimumDifficulty(),
+					configuration.getVardiffRetargetPeriod(), configuration.getVardiffGracePeriod());
+		}
 	}
 
 	@Override
@@ -105,7 +137,7 @@ public class StratumWorkerConnection extends StratumConnection implements Worker
 			}
 		};
 		subscribeTimeoutTask.setName("SubscribeTimeoutTask-" + getConnectionName());
-		Timer.getInstance().schedule(subscribeTimeoutTask, subscribeReceiveTimeout);
+		Timer.getInstance().scheduleTimeout(subscribeTimeoutTask, subscribeReceiveTimeout);
 	}
 
 	@Override
@@ -139,24 +171,56 @@ public class StratumWorkerConnection extends StratumConnection implements Worker
 	}
 
 	@Override
-	protected void onAuthorizeRequest(MiningAuthorizeRequest request) {
+	protected void onAuthorizeRequest(final MiningAuthorizeRequest request) {
+		try {
+			// Throws an exception if the worker is not authorized on the proxy.
+			// The response is sent once the pool has answered, without
+			// blocking the read of the connection.
+			ListenableFuture<Void> poolAuthorization = manager.onAuthorizeRequest(this, request);
+
+			// Completed once the connection state is updated. The submits
+			// received in the meantime wait for it.
+			final SettableFuture<Void> authorization = SettableFuture.create();
+			pendingAuthorizations.put(request.getUsername(), authorization);
+			Futures.addCallback(poolAuthorization, new FutureCallback<Void>() {
+				public void onSuccess(Void result) {
+					authorizedWorkers.put(request.getUsername(), request.getPassword());
+					pendingAuthorizations.remove(request.getUsername(), authorization);
+					sendAuthorizeResponse(request, null);
+					authorization.set(null);
+				}
+
+				public void onFailure(Throwable t) {
+					pendingAuthorizations.remove(request.getUsername(), authorization);
+					sendAuthorizeResponse(request, t);
+					authorization.set(null);
+				}
+			});
+		} catch (AuthorizationException e) {
+			sendAuthorizeResponse(request, e);
+		}
+	}
+
+	/**
+	 * Send the response to the given authorize request. The worker is
+	 * authorized if failure is null.
+	 * 
+	 * @param request
+	 * @param failure
+	 */
+	private void sendAuthorizeResponse(MiningAuthorizeRequest request, Throwable failure) {
 		MiningAuthorizeResponse response = new MiningAuthorizeResponse();
 		response.setId(request.getId());
-
-		try {
-			// Throws an exception if the worker is not authorized
-			manager.onAuthorizeRequest(this, request);
+		if (failure == null) {
 			response.setIsAuthorized(true);
-			authorizedWorkers.put(request.getUsername(), request.getPassword());
-		} catch (AuthorizationException e) {
+		} else {
 			response.setIsAuthorized(false);
 			JsonRpcError error = new JsonRpcError();
 			error.setCode(JsonRpcError.ErrorCode.UNAUTHORIZED_WORKER.getCode());
-			error.setMessage("The worker is not authorized. " + e.getMessage());
+			error.setMessage("The worker is not authorized. " + failure.getMessage());
 			response.setErrorRpc(error);
-			LOGGER.warn("User connection not authorized. {}", e.getMessage());
+			LOGGER.warn("User connection not authorized. {}", failure.getMessage());
 		}
-
 		sendResponse(response);
 	}
 
@@ -167,6 +231,9 @@ public class StratumWorkerConnection extends StratumConnection implements Worker
 			subscribeTimeoutTask.cancel();
 		}
 
+		// Release the tail of a previous subscribe, if any.
+		releaseTail();
+
 		JsonRpcError error = null;
 		try {
 			pool = manager.onSubscribeRequest(this, request);
@@ -212,11 +279,20 @@ public class StratumWorkerConnection extends StratumConnection implements Worker
 	}
 
 	@Override
-	protected void onSubmitRequest(MiningSubmitRequest request) {
+	protected void onSubmitRequest(final MiningSubmitRequest request) {
 		MiningSubmitResponse response = new MiningSubmitResponse();
 		response.setId(request.getId());
 		JsonRpcError error = null;
-		if (authorizedWorkers.get(request.getWorkerName()) != null) {
+		ListenableFuture<Void> pendingAuthorization = pendingAuthorizations.get(request.getWorkerName());
+		if (pendingAuthorization != null) {
+			// The worker authorization is in progress. Process the submit once
+			// it is done.
+			pendingAuthorization.addListener(new Runnable() {
+				public void run() {
+					onSubmitRequest(request);
+				}
+			}, MoreExecutors.sameThreadExecutor());
+		} else if (authorizedWorkers.get(request.getWorkerName()) != null) {
 			// Modify the request to add the tail of extranonce1 to the
 			// submitted extranonce2
 			request.setExtranonce2(extranonce1Tail + request.getExtranonce2());
@@ -254,21 +330,30 @@ public class StratumWorkerConnection extends StratumConnection implements Worker
 	 * @param workerRequest
 	 * @param poolResponse
 	 */
-	public void onPoolSubmitResponse(MiningSubmitRequest workerRequest, MiningSubmitResponse poolResponse) {
-		String difficultyString = pool != null ? Double.toString(pool.getDifficulty()) : "Unknown";
-
-		if (logRealShareDifficulty) {
-			Double realDifficulty = DifficultyUtils.getRealShareDifficulty(currentHeader, extranonce1Tail, workerRequest.getExtranonce2(),
-					workerRequest.getNtime(), workerRequest.getNonce(), manager.getConfiguration().getAlgo());
-			difficultyString = Double.toString(realDifficulty) + "/" + difficultyString;
-		}
-
-		if (poolResponse.getIsAccepted() != null && poolResponse.getIsAccepted()) {
-			LOGGER.info("Accepted share (diff: {}) from {}@{} on {}. Yeah !!!!", difficultyString, workerRequest.getWorkerName(),
-					getConnectionName(), pool.getName());
+	public void onPoolSubmitResponse(final MiningSubmitRequest workerRequest, final MiningSubmitResponse poolResponse) {
+		final String difficultyString = pool != null ? Double.toString(pool.getDifficulty()) : "Unknown";
+		final String poolName = pool != null ? pool.getName() : "Unknown";
+
+		ShareValidationExecutor shareValidationExecutor = manager.getShareValidationExecutor();
+		if (logRealShareDifficulty && currentHeader != null && shareValidationExecutor != null) {
+			// The hash is computed on the validation threads. The response
+			// is sent to the worker without waiting for it.
+			try {
+				Futures.addCallback(shareValidationExecutor.getRealShareDifficulty(currentHeader, extranonce1Tail, workerRequest),
+						new FutureCallback<Double>() {
+							public void onSuccess(Double realDifficulty) {
+								logSubmitResponse(workerRequest, poolResponse, Double.toString(realDifficulty) + "/" + difficultyString, poolName);
+							}
+
+							public void onFailure(Throwable t) {
+								logSubmitResponse(workerRequest, poolResponse, difficultyString, poolName);
+							}
+						});
+			} catch (RejectedExecutionException e) {
+				logSubmitResponse(workerRequest, poolResponse, difficultyString, poolName);
+			}
 		} else {
-			LOGGER.info("REJECTED share (diff: {}) from {}@{} on {}. Booo !!!!. Error: {}", difficultyString, workerRequest.getWorkerName(),
-					getConnectionName(), pool.getName(), poolResponse.getJsonError());
+			logSubmitResponse(workerRequest, poolResponse, difficultyString, poolName);
 		}
 
 		MiningSubmitResponse workerResponse = new MiningSubmitResponse();
@@ -279,6 +364,17 @@ public class StratumWorkerConnection extends StratumConnection implements Worker
 		sendResponse(workerResponse);
 	}
 
+	private void logSubmitResponse(MiningSubmitRequest workerRequest, MiningSubmitResponse poolResponse, String difficultyString,
+			String poolName) {
+		if (poolResponse.getIsAccepted() != null && poolResponse.getIsAccepted()) {
+			LOGGER.info("Accepted share (diff: {}) from {}@{} on {}. Yeah !!!!", difficultyString, workerRequest.getWorkerName(),
+					getConnectionName(), poolName);
+		} else {
+			LOGGER.info("REJECTED share (diff: {}) from {}@{} on {}. Booo !!!!. Error: {}", difficultyString, workerRequest.getWorkerName(),
+					getConnectionName(), poolName, poolResponse.getJsonError());
+		}
+	}
+
 	/**
 	 * Called when the pool change its extranonce. Send the extranonce change to
 	 * the worker. Throw an exception if the extranonce change is not supported
@@ -371,6 +467,10 @@ public class StratumWorkerConnection extends StratumConnection implements Worker
 
 		// Send the difficulty if available
 		Double difficulty = pool.getDifficulty();
+		if (difficulty != null && vardiff != null) {
+			vardiff.onPoolDifficulty(difficulty, System.currentTimeMillis());
+			difficulty = vardiff.getDifficulty();
+		}
 		if (difficulty != null) {
 			MiningSetDifficultyNotification setDifficulty = new MiningSetDifficultyNotification();
 			setDifficulty.setDifficulty(difficulty);
@@ -381,6 +481,9 @@ public class StratumWorkerConnection extends StratumConnection implements Worker
 		// Then send the first job if available.
 		MiningNotifyNotification notify = pool.getCurrentStratumJob();
 		if (notify != null) {
+			if (logRealShareDifficulty) {
+				updateBlockHeader(notify);
+			}
 			sendNotification(notify);
 			LOGGER.debug("Initial job sent to {}.", getConnectionName());
 		}
@@ -399,11 +502,11 @@ public class StratumWorkerConnection extends StratumConnection implements Worker
 		if (isSetExtranonceNotificationSupported) {
 			LOGGER.info("Rebind connection {} from pool {} to pool {} with setExtranonce notification.", getConnectionName(), pool.getName(),
 					newPool.getName());
-			// Release the old extranonce
-			pool.releaseTail(extranonce1Tail);
-
-			// Then retrieve a free tail from the new pool.
-			extranonce1Tail = newPool.getFreeTail();
+			// Retrieve a free tail from the new pool before releasing the old
+			// one, so the connection keeps its tail if the new pool is full.
+			String newExtranonce1Tail = newPool.getFreeTail();
+			releaseTail();
+			extranonce1Tail = newExtranonce1Tail;
 			extranonce2Size = newPool.getWorkerExtranonce2Size();
 			pool = newPool;
 
@@ -419,8 +522,17 @@ public class StratumWorkerConnection extends StratumConnection implements Worker
 	@Override
 	public void close() {
 		super.close();
-		if (pool != null) {
+		releaseTail();
+	}
+
+	/**
+	 * Release the extranonce1 tail of the connection on its pool. Does
+	 * nothing if already released.
+	 */
+	private synchronized void releaseTail() {
+		if (pool != null && extranonce1Tail != null) {
 			pool.releaseTail(extranonce1Tail);
+			extranonce1Tail = null;
 		}
 	}
 
@@ -463,21 +575,60 @@ public class StratumWorkerConnection extends StratumConnection implements Worker
 	}
 
 	@Override
-	public void onPoolDifficultyChanged(MiningSetDifficultyNotification notification) {
+	public Double getWorkerDifficulty() {
+		return vardiff != null ? vardiff.getAcceptedDifficulty(System.currentTimeMillis()) : null;
+	}
+
+	@Override
+	public void onWorkerShareAccepted() {
+		if (vardiff != null) {
+			vardiff.onShare();
+		}
+	}
+
+	@Override
+	public void onPoolDifficultyChanged(EncodedNotification<MiningSetDifficultyNotification> notification) {
 		if (logRealShareDifficulty) {
 			updateBlockDifficulty();
 		}
-		sendNotification(notification);
+		if (vardiff == null) {
+			sendNotification(notification);
+		} else {
+			Double workerDifficulty = vardiff.onPoolDifficulty(notification.getNotification().getDifficulty(), System.currentTimeMillis());
+			if (workerDifficulty != null) {
+				sendWorkerDifficulty(workerDifficulty);
+			}
+		}
 	}
 
 	@Override
-	public void onPoolNotify(MiningNotifyNotification notification) {
+	public void onPoolNotify(EncodedNotification<MiningNotifyNotification> notification) {
 		if (logRealShareDifficulty) {
-			updateBlockHeader(notification);
+			updateBlockHeader(notification.getNotification());
+		}
+		if (vardiff != null) {
+			// Retarget before the job, so the worker uses the new difficulty
+			// for it.
+			Double workerDifficulty = vardiff.retarget(System.currentTimeMillis());
+			if (workerDifficulty != null) {
+				sendWorkerDifficulty(workerDifficulty);
+			}
 		}
 		sendNotification(notification);
 	}
 
+	/**
+	 * Send the difficulty computed by the proxy to the worker.
+	 * 
+	 * @param difficulty
+	 */
+	private void sendWorkerDifficulty(double difficulty) {
+		LOGGER.debug("Set difficulty {} on worker connection {}.", difficulty, getConnectionName());
+		MiningSetDifficultyNotification setDifficulty = new MiningSetDifficultyNotification();
+		setDifficulty.setDifficulty(difficulty);
+		sendNotification(setDifficulty);
+	}
+
 	/**
 	 * Update the block header based on the notification
 	 * 
@@ -0,0 +1,158 @@
+/**
+ * stratum-proxy is a proxy supporting the crypto-currency stratum pool mining
+ * protocol.
+ * Copyright (C) 2014  Stratehm (stratehm@hotmail.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with multipool-stats-backend. If not, see <http://www.gnu.org/licenses/>.
+ */
+package strat.mining.stratum.proxy.worker;
+
+/**
+ * Compute the difficulty of a worker connection from the rate of its shares.
+ * The difficulty is retargeted so that the worker submits about the target
+ * number of shares per minute. It never goes above the pool difficulty, so
+ * all the shares reaching the pool difficulty are still found by the worker.
+ * 
+ * The difficulty is only changed by the retarget, called before a new job is
+ * sent to the worker. The shares computed with the previous difficulty are
+ * still accepted during the grace period.
+ * 
+ * @author Strat
+ * 
+ */
+public class VardiffController {
+
+	// The max ratio between two successive difficulties.
+	private static final double MAX_RETARGET_FACTOR = 4;
+
+	// The difficulty is not changed if the variation is below this ratio.
+	private static final double MIN_RETARGET_VARIATION = 0.1;
+
+	private final double targetSharesPerMinute;
+	private final double minimumDifficulty;
+	private final long retargetPeriod;
+	private final long gracePeriod;
+
+	private double poolDifficulty;
+	private double difficulty;
+	private double previousDifficulty;
+	private long lastChangeTime;
+
+	private int numberOfShares;
+	private long periodStartTime;
+
+	/**
+	 * 
+	 * @param targetSharesPerMinute
+	 * @param minimumDifficulty
+	 * @param retargetPeriod
+	 *            in milli seconds.
+	 * @param gracePeriod
+	 *            in milli seconds.
+	 */
+	public VardiffController(double targetSharesPerMinute, double minimumDifficulty, long retargetPeriod, long gracePeriod) {
+		this.targetSharesPerMinute = targetSharesPerMinute;
+		this.minimumDifficulty = minimumDifficulty;
+		this.retargetPeriod = retargetPeriod;
+		this.gracePeriod = gracePeriod;
+	}
+
+	/**
+	 * Return the current difficulty of the worker. 0 until the pool difficulty
+	 * is known.
+	 * 
+	 * @return
+	 */
+	public synchronized double getDifficulty() {
+		return difficulty;
+	}
+
+	/**
+	 * Return the lowest difficulty of the shares accepted from the worker. It
+	 * is the previous difficulty during the grace period if it was lower.
+	 * 
+	 * @param now
+	 * @return
+	 */
+	public synchronized double getAcceptedDifficulty(long now) {
+		double result = difficulty;
+		if (previousDifficulty > 0 && previousDifficulty < difficulty && now - lastChangeTime < gracePeriod) {
+			result = previousDifficulty;
+		}
+		return result;
+	}
+
+	/**
+	 * Called when a share reaching the worker difficulty is received.
+	 */
+	public synchronized void onShare() {
+		numberOfShares++;
+	}
+
+	/**
+	 * Called when the pool difficulty is set. The worker starts at the pool
+	 * difficulty and is lowered if the pool difficulty goes below the worker
+	 * one. Return the new worker difficulty, or null if it has not changed.
+	 * 
+	 * @param poolDifficulty
+	 * @param now
+	 * @return
+	 */
+	public synchronized Double onPoolDifficulty(double poolDifficulty, long now) {
+		Double result = null;
+		this.poolDifficulty = poolDifficulty;
+		if (difficulty <= 0) {
+			difficulty = poolDifficulty;
+			periodStartTime = now;
+			result = difficulty;
+		} else if (difficulty > poolDifficulty) {
+			setDifficulty(poolDifficulty, now);
+			result = difficulty;
+		}
+		return result;
+	}
+
+	/**
+	 * Retarget the difficulty if the retarget period is elapsed. Return the
+	 * new difficulty, or null if it has not changed.
+	 * 
+	 * @param now
+	 * @return
+	 */
+	public synchronized Double retarget(long now) {
+		Double result = null;
+		long elapsed = now - periodStartTime;
+		if (difficulty > 0 && elapsed >= retargetPeriod) {
+			double sharesPerMinute = numberOfShares * 60000d / elapsed;
+			double factor = Math.max(1 / MAX_RETARGET_FACTOR, Math.min(MAX_RETARGET_FACTOR, sharesPerMinute / targetSharesPerMinute));
+			double newDifficulty = Math.min(poolDifficulty, Math.max(minimumDifficulty, difficulty * factor));
+
+			numberOfShares = 0;
+			periodStartTime = now;
+
+			if (Math.abs(newDifficulty - difficulty) > difficulty * MIN_RETARGET_VARIATION) {
+				setDifficulty(newDifficulty, now);
+				result = difficulty;
+			}
+		}
+		return result;
+	}
+
+	private void setDifficulty(double newDifficulty, long now) {
+		previousDifficulty = difficulty;
+		difficulty = newDifficulty;
+		lastChangeTime = now;
+	}
+
+}
@@ -29,6 +29,7 @@ import strat.mining.stratum.proxy.json.MiningSubmitRequest;
 import strat.mining.stratum.proxy.json.MiningSubmitResponse;
 import strat.mining.stratum.proxy.model.Share;
 import strat.mining.stratum.proxy.network.Connection;
+import strat.mining.stratum.proxy.network.EncodedNotification;
 import strat.mining.stratum.proxy.pool.Pool;
 
 public interface WorkerConnection extends Connection {
@@ -65,18 +66,21 @@ public interface WorkerConnection extends Connection {
 	public void onPoolExtranonceChange() throws ChangeExtranonceNotSupportedException;
 
 	/**
-	 * Called when the pool difficulty has changed
+	 * Called when the pool difficulty has changed. The notification is shared
+	 * by all the connections of the pool and must not be modified.
 	 * 
 	 * @param notification
 	 */
-	public void onPoolDifficultyChanged(MiningSetDifficultyNotification notification);
+	public void onPoolDifficultyChanged(EncodedNotification<MiningSetDifficultyNotification> notification);
 
 	/**
-	 * Called when the pool has send a new notify notification.
+	 * Called when the pool has send a new notify notification. The
+	 * notification is shared by all the connections of the pool and must not
+	 * be modified.
 	 * 
 	 * @param notification
 	 */
-	public void onPoolNotify(MiningNotifyNotification notification);
+	public void onPoolNotify(EncodedNotification<MiningNotifyNotification> notification);
 
 	/**
 	 * Update the shares lists with the given share to compute hashrate
@@ -86,6 +90,19 @@ public interface WorkerConnection extends Connection {
 	 */
 	public void updateShareLists(Share share, boolean isAccepted);
 
+	/**
+	 * Return the lowest difficulty of the shares accepted from the worker, or
+	 * null if the worker works at the pool difficulty.
+	 * 
+	 * @return
+	 */
+	public Double getWorkerDifficulty();
+
+	/**
+	 * Called when a share reaching the worker difficulty has been accepted.
+	 */
+	public void onWorkerShareAccepted();
+
 	/**
 	 * Called when the pool has answered to a submit request.
 	 * 